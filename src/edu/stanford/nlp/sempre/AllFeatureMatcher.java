@@ -0,0 +1,8 @@
+package edu.stanford.nlp.sempre;
+
+final class AllFeatureMatcher implements FeatureMatcher {
+  private AllFeatureMatcher() { }
+  @Override
+  public boolean matches(String feature) { return true; }
+  public static final AllFeatureMatcher matcher = new AllFeatureMatcher();
+}
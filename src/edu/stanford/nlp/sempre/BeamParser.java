@@ -7,7 +7,7 @@ import com.google.common.collect.ImmutableList;
 
 import fig.basic.*;
 import fig.exec.Execution;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 
 /**
  * A simple bottom-up chart-based parser that keeps the |beamSize| top
@@ -76,6 +76,7 @@ class BeamParserState extends ChartParserState {
 
   private final BeamParser parser;
   private final BeamParserState coarseState;  // Used to prune
+  private final BitSet cellsPruned = new BitSet();  // Categories pruned in the current span
 
   public BeamParserState(BeamParser parser, Params params, Example ex, boolean computeExpectedCounts,
                          Mode mode, BeamParserState coarseState) {
@@ -118,7 +119,7 @@ public void infer() {
       // Compute gradient with respect to the predicted derivations
       ensureExecuted();
       if (computeExpectedCounts) {
-        expectedCounts = new TObjectDoubleHashMap<>();
+        expectedCounts = new TIntDoubleHashMap();
         ParserState.computeExpectedCounts(predDerivations, expectedCounts);
       }
     }
@@ -128,15 +129,11 @@ public void infer() {
   protected void build(int start, int end) {
     applyNonCatUnaryRules(start, end, start, parser.trie, new ArrayList<Derivation>(), new IntRef(0));
 
-    Set<String> cellsPruned = new HashSet<>();
-    applyCatUnaryRules(start, end, cellsPruned);
+    cellsPruned.clear();
+    applyCatUnaryRules(start, end);
 
     for (Map.Entry<String, List<Derivation>> entry : chart[start][end].entrySet())
-      pruneCell(cellsPruned, entry.getKey(), start, end, entry.getValue());
-  }
-
-  private static String cellString(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
+      pruneCell(entry.getKey(), start, end, entry.getValue());
   }
 
   // Return number of new derivations added
@@ -178,17 +175,17 @@ public void infer() {
   }
 
   // Don't prune the same cell more than once.
-  protected void pruneCell(Set<String> cellsPruned, String cat, int start, int end, List<Derivation> derivations) {
-    String cell = cellString(cat, start, end);
-    if (cellsPruned.contains(cell)) return;
-    cellsPruned.add(cell);
-    pruneCell(cell, derivations);
+  protected void pruneCell(String cat, int start, int end, List<Derivation> derivations) {
+    int id = parser.getCategoryId(cat);
+    if (cellsPruned.get(id)) return;
+    cellsPruned.set(id);
+    pruneCell(new CatSpan(start, end, cat), derivations);
   }
 
   // Apply all unary rules with RHS category.
   // Before applying each unary rule (rule.lhs -> rhsCat), we can prune the cell of rhsCat
   // because we assume acyclicity, so rhsCat's cell will never grow.
-  private void applyCatUnaryRules(int start, int end, Set<String> cellsPruned) {
+  private void applyCatUnaryRules(int start, int end) {
     for (Rule rule : parser.catUnaryRules) {
       if (!coarseAllows(rule.lhs, start, end))
         continue;
@@ -198,7 +195,7 @@ public void infer() {
         LogInfo.logs("applyCatUnaryRules %s %s %s %s", start, end, rule, derivations);
       if (derivations == null) continue;
 
-      pruneCell(cellsPruned, rhsCat, start, end, derivations);  // Prune before applying rules to eliminate cruft!
+      pruneCell(rhsCat, start, end, derivations);  // Prune before applying rules to eliminate cruft!
 
       for (Derivation deriv : derivations)
         applyRule(start, end, rule, Collections.singletonList(deriv));
@@ -267,7 +264,8 @@ public void infer() {
   public void keepTopDownReachable() {
     if (numTokens == 0) return;
 
-    Set<String> reachable = new HashSet<>();
+    // Reachable categories of each span
+    BitSet[][] reachable = new BitSet[numTokens][numTokens + 1];
     collectReachable(reachable, Rule.rootCat, 0, numTokens);
 
     // Remove all derivations associated with (cat, start, end) that aren't reachable.
@@ -275,8 +273,7 @@ public void infer() {
       for (int end = start + 1; end <= numTokens; end++) {
         List<String> toRemoveCats = new LinkedList<>();
         for (String cat : chart[start][end].keySet()) {
-          String key = catStartEndKey(cat, start, end);
-          if (!reachable.contains(key)) {
+          if (!isReachable(reachable, cat, start, end)) {
             toRemoveCats.add(cat);
           }
         }
@@ -291,16 +288,17 @@ public void infer() {
     }
   }
 
-  private void collectReachable(Set<String> reachable, String cat, int start, int end) {
-    String key = catStartEndKey(cat, start, end);
-    if (reachable.contains(key)) return;
+  private void collectReachable(BitSet[][] reachable, String cat, int start, int end) {
+    if (isReachable(reachable, cat, start, end)) return;
 
     if (!chart[start][end].containsKey(cat)) {
       // This should only happen for the root when there are no parses.
       return;
     }
 
-    reachable.add(key);
+    if (reachable[start][end] == null)
+      reachable[start][end] = new BitSet();
+    reachable[start][end].set(parser.getCategoryId(cat));
     for (Derivation deriv : chart[start][end].get(cat)) {
       for (Derivation subderiv : deriv.children) {
         collectReachable(reachable, subderiv.cat, subderiv.start, subderiv.end);
@@ -308,8 +306,8 @@ public void infer() {
     }
   }
 
-  private String catStartEndKey(String cat, int start, int end) {
-    return cat + ":" + start + ":" + end;
+  private boolean isReachable(BitSet[][] reachable, String cat, int start, int end) {
+    return reachable[start][end] != null && reachable[start][end].get(parser.getCategoryId(cat));
   }
 
   // For pruning with the coarse state
@@ -67,13 +67,7 @@ public class Builder {
     if (params == null) {
       params = new Params();
 
-      String precomputed = null;
-      for (Pair<String, String> pair : opts.languageInParamsPath) {
-        if (pair.getFirst().equals(languageTag)) {
-          precomputed = pair.getSecond();
-          break;
-        }
-      }
+      String precomputed = getLanguageInParamsPath(languageTag);
       if (!Strings.isNullOrEmpty(precomputed) && (new File(precomputed)).exists())
         params.read(precomputed);
     }
@@ -89,6 +83,15 @@ public class Builder {
     buildLanguageAgnostic();
   }
 
+  // Return the parameters file for |languageTag|, or null if there is none.
+  public static String getLanguageInParamsPath(String languageTag) {
+    for (Pair<String, String> pair : opts.languageInParamsPath) {
+      if (pair.getFirst().equals(languageTag))
+        return pair.getSecond();
+    }
+    return null;
+  }
+
   public void buildUnspecified() {
     // Grammar
     if (grammar == null) {
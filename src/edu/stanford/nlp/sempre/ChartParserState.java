@@ -104,6 +104,11 @@ public abstract class ChartParserState extends ParserState {
       this.end = end;
       this.cat = cat;
     }
+
+    @Override
+    public String toString() {
+      return cat + ":" + start + ":" + end;
+    }
   }
 
   public static class ChartFillingData {
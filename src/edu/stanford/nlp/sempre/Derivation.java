@@ -1,8 +1,10 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fig.basic.*;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
@@ -119,7 +121,7 @@ public class Derivation implements SemanticFn.Callable, HasScore {
   // Each derivation that gets created gets a unique ID in increasing order so that
   // we can break ties consistently for reproducible results.
   long creationIndex;
-  public static long numCreated = 0;  // Incremented for each derivation we create.
+  public static final AtomicLong numCreated = new AtomicLong();  // Incremented for each derivation we create.
   public static final Comparator<Derivation> derivScoreComparator = new ScoredDerivationComparator();
 
   public static final List<Derivation> emptyList = Collections.emptyList();
@@ -231,7 +233,14 @@ public class Derivation implements SemanticFn.Callable, HasScore {
     this.canonicalUtterance = canonicalUtterance;
     this.nerUtterance = nerUtterance;
     this.cache = cache;
-    this.creationIndex = numCreated++;
+    this.creationIndex = numCreated.getAndIncrement();
+  }
+
+  // Give this derivation a new creation index, as if it were created now.
+  // Derivations built concurrently are renumbered in a fixed order so that
+  // ties are broken as if they had been built sequentially.
+  public void renewCreationIndex() {
+    creationIndex = numCreated.getAndIncrement();
   }
 
   public Formula getFormula() { return formula; }
@@ -332,7 +341,7 @@ public class Derivation implements SemanticFn.Callable, HasScore {
     this.globalFeatureVector.add(fv);
   }
 
-  private void computeScoreRecursive(Params params) {
+  private void computeScoreRecursive(Params.Snapshot params) {
     if (scored)
       return;
     localScore = localFeatureVector.dotProduct(params);
@@ -352,6 +361,10 @@ public class Derivation implements SemanticFn.Callable, HasScore {
    * field as well as return its value.
    */
   public double computeScore(Params params) {
+    return computeScore(params.getSnapshot());
+  }
+
+  public double computeScore(Params.Snapshot params) {
     computeScoreRecursive(params);
     return score;
   }
@@ -459,6 +472,18 @@ public String toString() { return toLispTree().toString(); }
       child.incrementAllFeatureVectorRecursive(factor, map, updateFeatureMatcher);
   }
 
+  // Same as above, but |map| is keyed by FeatureIndex index.
+  public void incrementAllFeatureVector(double factor, TIntDoubleMap map) {
+    globalFeatureVector.increment(factor, map);
+    incrementAllFeatureVectorRecursive(factor, map);
+  }
+
+  private void incrementAllFeatureVectorRecursive(double factor, TIntDoubleMap map) {
+    localFeatureVector.increment(factor, map);
+    for (Derivation child : children)
+      child.incrementAllFeatureVectorRecursive(factor, map);
+  }
+
   // returns feature vector with renamed features by prefix
   public FeatureVector addPrefixLocalFeatureVector(String prefix) {
     return localFeatureVector.addPrefix(prefix);
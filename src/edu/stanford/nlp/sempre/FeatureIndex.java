@@ -0,0 +1,56 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global registry mapping feature strings ("domain :: name") to dense integer
+ * indices.  A feature string is hashed once when it is first added to a
+ * FeatureVector; after that, scoring and updating only touch integers.
+ *
+ * Indices are never reused or removed, so they are stable for the lifetime of
+ * the JVM and can be shared by all Params and FeatureVector instances.
+ *
+ * Lookups are lock-free; adding a new feature takes a lock.
+ */
+public final class FeatureIndex {
+  private FeatureIndex() { }
+
+  private static final ConcurrentHashMap<String, Integer> indices = new ConcurrentHashMap<>();
+  // Index => feature.  Written only while holding the class lock; an index
+  // is published through |indices| only after its entry has been written.
+  private static volatile String[] features = new String[1024];
+  private static volatile int size = 0;
+
+  // Return the index of |feature|, adding it if it has not been seen before.
+  public static int getIndex(String feature) {
+    Integer index = indices.get(feature);
+    if (index != null) return index;
+    synchronized (FeatureIndex.class) {
+      index = indices.get(feature);
+      if (index != null) return index;
+      int i = size;
+      if (i == features.length)
+        features = Arrays.copyOf(features, 2 * i);
+      features[i] = feature;
+      size = i + 1;
+      indices.put(feature, i);
+      return i;
+    }
+  }
+
+  // Return the index of |feature|, or -1 if it has never been added.
+  public static int lookup(String feature) {
+    Integer index = indices.get(feature);
+    return index == null ? -1 : index;
+  }
+
+  public static String getFeature(int index) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Unknown feature index: " + index);
+    return features[index];
+  }
+
+  // Number of features registered so far; every valid index is below this.
+  public static int size() { return size; }
+}
@@ -4,13 +4,6 @@ public interface FeatureMatcher {
   boolean matches(String feature);
 }
 
-final class AllFeatureMatcher implements FeatureMatcher {
-  private AllFeatureMatcher() { }
-  @Override
-  public boolean matches(String feature) { return true; }
-  public static final AllFeatureMatcher matcher = new AllFeatureMatcher();
-}
-
 final class ExactFeatureMatcher implements FeatureMatcher {
   private String match;
   public ExactFeatureMatcher(String match) { this.match = match; }
@@ -6,8 +6,12 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 
 import fig.basic.*;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.iterator.TObjectDoubleIterator;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
 /**
@@ -17,6 +21,9 @@ import gnu.trove.map.hash.TObjectDoubleHashMap;
  * We enforce the convention that each feature is (domain, name),
  * so that the key space isn't a free-for-all.
  *
+ * Features are stored by their FeatureIndex index, so that computing the
+ * dot product with Params does not hash feature strings.
+ *
  * @author Percy Liang
  * @author Jonathan Berant
  */
@@ -30,12 +37,14 @@ public class FeatureVector {
   public static Options opts = new Options();
 
   // These features map to the value 1 (most common case in NLP).
-  private ArrayList<String> indicatorFeatures;
+  private TIntArrayList indicatorFeatures;
   // General features
-  private TObjectDoubleMap<String> generalFeatures;
+  private TIntDoubleMap generalFeatures;
   // A dense array of features to save memory
   private double[] denseFeatures;
   private static final String DENSE_NAME = "Dns";
+  // Dense feature i => FeatureIndex index of DENSE_NAME_i
+  private static volatile int[] denseIndices = new int[0];
 
   public FeatureVector() { } // constructor that does nothing
 
@@ -49,18 +58,20 @@ public class FeatureVector {
     StringBuilder builder = new StringBuilder();
     builder.append("[");
     if (indicatorFeatures != null) {
-      for (String indicator : indicatorFeatures) {
-        builder.append(indicator);
+      for (int i = 0; i < indicatorFeatures.size(); i++) {
+        builder.append(FeatureIndex.getFeature(indicatorFeatures.get(i)));
         builder.append(" = ");
         builder.append(1.0);
         builder.append(", ");
       }
     }
     if (generalFeatures != null) {
-      for (String general : generalFeatures.keySet()) {
-        builder.append(general);
+      TIntDoubleIterator it = generalFeatures.iterator();
+      while (it.hasNext()) {
+        it.advance();
+        builder.append(FeatureIndex.getFeature(it.key()));
         builder.append(" = ");
-        builder.append(generalFeatures.get(general));
+        builder.append(it.value());
         builder.append(", ");
       }
     }
@@ -80,11 +91,32 @@ public class FeatureVector {
 
   private static String toFeature(String domain, String name) { return domain + " :: " + name; }
 
+  // Return the FeatureIndex index of the |i|-th dense feature.
+  private static int getDenseIndex(int i) {
+    int[] indices = denseIndices;
+    if (i < indices.length)
+      return indices[i];
+    synchronized (FeatureVector.class) {
+      indices = denseIndices;
+      if (i >= indices.length) {
+        int n = indices.length;
+        indices = Arrays.copyOf(indices, Math.max(i + 1, 2 * n));
+        for (int j = n; j < indices.length; j++)
+          indices[j] = FeatureIndex.getIndex(DENSE_NAME + "_" + j);
+        denseIndices = indices;
+      }
+      return indices[i];
+    }
+  }
+
   public void add(String domain, String name) {
     add(toFeature(domain, name));
   }
   private void add(String feature) {
-    if (indicatorFeatures == null) indicatorFeatures = new ArrayList<>();
+    add(FeatureIndex.getIndex(feature));
+  }
+  private void add(int feature) {
+    if (indicatorFeatures == null) indicatorFeatures = new TIntArrayList();
     indicatorFeatures.add(feature);
   }
 
@@ -92,8 +124,11 @@ public class FeatureVector {
     add(toFeature(domain, name), value);
   }
   private void add(String feature, double value) {
+    add(FeatureIndex.getIndex(feature), value);
+  }
+  private void add(int feature, double value) {
     if (generalFeatures == null)
-      generalFeatures = new TObjectDoubleHashMap<>();
+      generalFeatures = new TIntDoubleHashMap();
     generalFeatures.adjustOrPutValue(feature, value, value);
   }
 
@@ -141,17 +176,19 @@ public class FeatureVector {
   public void add(FeatureVector that, FeatureMatcher matcher) { add(1, that, matcher); }
   public void add(double scale, FeatureVector that, FeatureMatcher matcher) {
     if (that.indicatorFeatures != null) {
-      for (String f : that.indicatorFeatures)
-        if (matcher.matches(f)) {
+      for (int i = 0; i < that.indicatorFeatures.size(); i++) {
+        int f = that.indicatorFeatures.get(i);
+        if (matches(matcher, f)) {
           if (scale == 1)
             add(f);
           else
             add(f, scale);
         }
+      }
     }
     if (that.generalFeatures != null) {
       that.generalFeatures.forEachEntry((key, value) -> {
-        if (matcher.matches(key))
+        if (matches(matcher, key))
           add(key, scale * value);
         return true;
       });
@@ -163,15 +200,23 @@ public class FeatureVector {
     }
   }
 
+  private static boolean matches(FeatureMatcher matcher, int feature) {
+    return matcher == AllFeatureMatcher.matcher || matcher.matches(FeatureIndex.getFeature(feature));
+  }
+
   // Return the dot product between this feature vector and the weight vector (parameters).
   public double dotProduct(Params params) {
+    return dotProduct(params.getSnapshot());
+  }
+
+  public double dotProduct(Params.Snapshot params) {
     double sum = 0;
     if (indicatorFeatures != null) {
-      for (String f : indicatorFeatures)
-        sum += params.getWeight(f);
+      for (int i = 0; i < indicatorFeatures.size(); i++)
+        sum += params.getWeight(indicatorFeatures.get(i));
     }
     if (generalFeatures != null) {
-      TObjectDoubleIterator<String> it = generalFeatures.iterator();
+      TIntDoubleIterator it = generalFeatures.iterator();
       while (it.hasNext()) {
         it.advance();
         sum += params.getWeight(it.key()) * it.value();
@@ -179,7 +224,7 @@ public class FeatureVector {
     }
     if (denseFeatures != null) {
       for (int i = 0; i < denseFeatures.length; ++i)
-        sum += params.getWeight(DENSE_NAME + "_" + i) * denseFeatures[i];
+        sum += params.getWeight(getDenseIndex(i)) * denseFeatures[i];
     }
     return sum;
   }
@@ -192,14 +237,17 @@ public class FeatureVector {
 
   public void increment(double factor, TObjectDoubleMap<String> map, FeatureMatcher matcher) {
     if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
+      for (int i = 0; i < indicatorFeatures.size(); i++) {
+        String feature = FeatureIndex.getFeature(indicatorFeatures.get(i));
         if (matcher.matches(feature))
           map.adjustOrPutValue(feature, factor, factor);
+      }
     }
     if (generalFeatures != null) {
       generalFeatures.forEachEntry((key, value) -> {
-        if (matcher.matches(key))
-          map.adjustOrPutValue(key, factor * value, factor * value);
+        String feature = FeatureIndex.getFeature(key);
+        if (matcher.matches(feature))
+          map.adjustOrPutValue(feature, factor * value, factor * value);
         return true;
       });
     }
@@ -209,16 +257,42 @@ public class FeatureVector {
     }
   }
 
+  // Same as above, but |map| is keyed by FeatureIndex index.
+  public void increment(double factor, TIntDoubleMap map) {
+    increment(factor, map, AllFeatureMatcher.matcher);
+  }
+
+  public void increment(double factor, TIntDoubleMap map, FeatureMatcher matcher) {
+    if (indicatorFeatures != null) {
+      for (int i = 0; i < indicatorFeatures.size(); i++) {
+        int feature = indicatorFeatures.get(i);
+        if (matches(matcher, feature))
+          map.adjustOrPutValue(feature, factor, factor);
+      }
+    }
+    if (generalFeatures != null) {
+      generalFeatures.forEachEntry((key, value) -> {
+        if (matches(matcher, key))
+          map.adjustOrPutValue(key, factor * value, factor * value);
+        return true;
+      });
+    }
+    if (denseFeatures != null) {
+      for (int i = 0; i < denseFeatures.length; ++i)
+        map.adjustOrPutValue(getDenseIndex(i), factor * denseFeatures[i], factor * denseFeatures[i]);
+    }
+  }
+
   // returns a feature vector where all features are prefixed
   public FeatureVector addPrefix(String prefix) {
     FeatureVector res = new FeatureVector();
     if (indicatorFeatures != null) {
-      for (String feature : indicatorFeatures)
-        res.add(prefix + feature);
+      for (int i = 0; i < indicatorFeatures.size(); i++)
+        res.add(prefix + FeatureIndex.getFeature(indicatorFeatures.get(i)));
     }
     if (generalFeatures != null) {
       generalFeatures.forEachEntry((key, value) -> {
-        res.add(prefix + key, value);
+        res.add(prefix + FeatureIndex.getFeature(key), value);
         return true;
       });
     }
@@ -4,10 +4,17 @@ import static fig.basic.LogInfo.logs;
 
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import fig.basic.*;
 import fig.exec.Execution;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 
 /**
  * A FloatingParser builds Derivations according to a Grammar without having to
@@ -59,11 +66,148 @@ public class FloatingParser extends Parser {
     public boolean useSizeInsteadOfDepth = false;
     @Option(gloss = "Custom beam size at training time (default = Parser.beamSize)")
     public int trainBeamSize = -1;
+    @Option(gloss = "Number of threads that build the floating cells of one depth concurrently (1 = sequential)")
+    public int numExpansionThreads = 1;
   }
 
   public static Options opts = new Options();
 
-  public FloatingParser(Spec spec) { super(spec); }
+  // Indexes of the grammar, so that building a cell only visits the rules that
+  // could apply to it.  Rules are numbered in grammar order, and the indexes
+  // store these numbers so that candidates can be applied in the same order.
+  final List<Rule> indexedRules = new ArrayList<>();
+  final Map<String, TIntList> anchoredUnariesByToken = new HashMap<>();  // $A => token
+  final Map<String, TIntList> anchoredBinariesByFirstToken = new HashMap<>();  // $A => token (token | $B)
+  final Map<String, TIntList> anchoredBinariesBySecondToken = new HashMap<>();  // $A => $B token
+  final Map<String, TIntList> anchoredBinariesByFirstCat = new HashMap<>();  // $A => $B $C
+  final TIntList floatingUnaries = new TIntArrayList();  // $A => token
+  final TIntList floatingTokenBinaries = new TIntArrayList();  // $A => token token
+  final Map<String, TIntList> floatingBinariesByCat = new HashMap<>();  // $A => ... $B ...
+  final TIntList floatingCatBinaries = new TIntArrayList();  // $A => $B $C
+  // Subsets of catUnaryRules, still in topological order
+  final List<Rule> anchoredCatUnaryRules = new ArrayList<>();
+  final List<Rule> floatingCatUnaryRules = new ArrayList<>();
+  final Set<String> lhsCategories = new HashSet<>();  // Categories whose cells are pruned
+
+  // Workers for numExpansionThreads; shared by all examples parsed with this parser
+  private ExecutorService expansionWorkers;
+
+  public FloatingParser(Spec spec) {
+    super(spec);
+    for (Rule rule : catUnaryRules)
+      indexCatUnaryRule(rule);
+    for (Rule rule : grammar.rules)
+      indexRule(rule);
+    LogInfo.logs("FloatingParser: indexed %d rules", indexedRules.size());
+  }
+
+  @Override
+  public synchronized void addRule(Rule rule) {
+    super.addRule(rule);
+    if (rule.isCatUnary())
+      indexCatUnaryRule(rule);
+    indexRule(rule);
+  }
+
+  private void indexCatUnaryRule(Rule rule) {
+    if (rule.isAnchored()) anchoredCatUnaryRules.add(rule);
+    if (rule.isFloating()) floatingCatUnaryRules.add(rule);
+  }
+
+  private void indexRule(Rule rule) {
+    lhsCategories.add(rule.lhs);
+    int n = rule.rhs.size();
+    if (rule.isCatUnary() || (n != 1 && n != 2)) return;
+    int id = indexedRules.size();
+    indexedRules.add(rule);
+
+    String rhs1 = rule.rhs.get(0);
+    String rhs2 = (n == 2) ? rule.rhs.get(1) : null;
+    if (rule.isAnchored()) {
+      if (n == 1)
+        addToIndex(anchoredUnariesByToken, rhs1, id);
+      else if (!Rule.isCat(rhs1))
+        addToIndex(anchoredBinariesByFirstToken, rhs1, id);
+      else if (!Rule.isCat(rhs2))
+        addToIndex(anchoredBinariesBySecondToken, rhs2, id);
+      else
+        addToIndex(anchoredBinariesByFirstCat, rhs1, id);
+    }
+    if (rule.isFloating()) {
+      if (n == 1) {
+        floatingUnaries.add(id);
+      } else if (!Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {
+        floatingTokenBinaries.add(id);
+      } else {
+        if (Rule.isCat(rhs1))
+          addToIndex(floatingBinariesByCat, rhs1, id);
+        if (Rule.isCat(rhs2) && !rhs2.equals(rhs1))
+          addToIndex(floatingBinariesByCat, rhs2, id);
+        if (Rule.isCat(rhs1) && Rule.isCat(rhs2))
+          floatingCatBinaries.add(id);
+      }
+    }
+  }
+
+  private static void addToIndex(Map<String, TIntList> index, String key, int id) {
+    TIntList ids = index.get(key);
+    if (ids == null)
+      index.put(key, ids = new TIntArrayList());
+    ids.add(id);
+  }
+
+  static void addCandidates(Map<String, TIntList> index, String key, BitSet candidates) {
+    TIntList ids = index.get(key);
+    if (ids == null) return;
+    for (int i = 0; i < ids.size(); i++)
+      candidates.set(ids.get(i));
+  }
+
+  static void addCandidates(TIntList ids, BitSet candidates) {
+    for (int i = 0; i < ids.size(); i++)
+      candidates.set(ids.get(i));
+  }
+
+  private synchronized ExecutorService getExpansionWorkers() {
+    if (expansionWorkers == null) {
+      AtomicInteger numWorkers = new AtomicInteger();
+      expansionWorkers = Executors.newFixedThreadPool(opts.numExpansionThreads, r -> {
+        Thread thread = new Thread(r, "expansion worker #" + numWorkers.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return expansionWorkers;
+  }
+
+  /**
+   * Run |expansions|, which must not depend on each other, and return when all
+   * of them are done.  They run concurrently if numExpansionThreads > 1.
+   */
+  public void runExpansions(List<? extends Runnable> expansions) {
+    if (opts.numExpansionThreads <= 1 || expansions.size() <= 1) {
+      for (Runnable expansion : expansions)
+        expansion.run();
+      return;
+    }
+    ExecutorService workers = getExpansionWorkers();
+    List<Future<?>> futures = new ArrayList<>();
+    for (Runnable expansion : expansions)
+      futures.add(workers.submit(expansion));
+    try {
+      for (Future<?> future : futures)
+        future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      for (Future<?> future : futures)
+        future.cancel(false);
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
 
   @Override
 public ParserState newParserState(Params params, Example ex, boolean computeExpectedCounts) {
@@ -86,12 +230,65 @@ class FloatingParserState extends ParserState {
   //   (category, depth)
   //   (category, depth, set of tokens)
 
-  private final Map<Object, List<Derivation>> chart = new HashMap<>();
+  // A chart cell: either anchored (cat, start, end) or floating (cat, depth).
+  private static final class Cell {
+    final String cat;
+    final int start, end, depth;
+    final List<Derivation> derivations = new ArrayList<>();
+
+    Cell(String cat, int start, int end, int depth) {
+      this.cat = cat;
+      this.start = start;
+      this.end = end;
+      this.depth = depth;
+    }
 
+    @Override
+    public String toString() {
+      return (start != -1) ? cat + "[" + start + "," + end + "]" : cat + ":" + depth;
+    }
+  }
+
+  // The derivations that |rule| builds over some of its children.  Building
+  // them only reads cells of lower depths, so the expansions of one depth can
+  // run concurrently; their derivations are then added to the chart in the
+  // order in which the expansions were created.
+  private final class Expansion implements Runnable {
+    final Rule rule;
+    final Consumer<List<Derivation>> build;
+    final List<Derivation> derivations = new ArrayList<>();
+
+    Expansion(Rule rule, Consumer<List<Derivation>> build) {
+      this.rule = rule;
+      this.build = build;
+    }
+
+    @Override
+    public void run() {
+      build.accept(derivations);
+      for (Derivation deriv : derivations) {
+        if (!deriv.isFeaturizedAndScored())
+          featurizeAndScoreDerivation(deriv);
+      }
+    }
+  }
+
+  // Cells keyed by anchoredKey() or floatingKey()
+  private final TLongObjectMap<Cell> chart = new TLongObjectHashMap<>();
+
+  // The cells of each anchored span (indexed by spanIndex()) and of each
+  // floating depth; only rules over their categories need to be tried.
+  private final List<List<Cell>> anchoredCells;
+  private final List<List<Cell>> floatingCells = new ArrayList<>();
+  private final BitSet candidates = new BitSet();  // Rule numbers to apply to the current cell
+
+  private final FloatingParser parser;
   private final DerivationPruner pruner;
 
   public FloatingParserState(FloatingParser parser, Params params, Example ex, boolean computeExpectedCounts) {
     super(parser, params, ex, computeExpectedCounts);
+    this.parser = parser;
+    anchoredCells = new ArrayList<>(Collections.nCopies((numTokens + 1) * (numTokens + 1), (List<Cell>) null));
     pruner = new DerivationPruner(this);
   }
 
@@ -104,28 +301,62 @@ class FloatingParserState extends ParserState {
 
 
 
-  // Construct state names.
-  private Object floatingCell(String cat, int depth) {
-    return cat + ":" + depth;
+  // Construct cell keys: the category number in the high 32 bits, then
+  // (start + 1, end) for anchored cells or (0, depth) for floating cells.
+  private long floatingKey(String cat, int depth) {
+    return ((long) parser.getCategoryId(cat) << 32) | depth;
   }
-  private Object anchoredCell(String cat, int start, int end) {
-    return cat + "[" + start + "," + end + "]";
+  private long anchoredKey(String cat, int start, int end) {
+    return ((long) parser.getCategoryId(cat) << 32) | ((start + 1) << 16) | end;
   }
-  private Object cell(String cat, int start, int end, int depth) {
-    return (start != -1) ? anchoredCell(cat, start, end) : floatingCell(cat, depth);
+
+  private int spanIndex(int start, int end) {
+    return start * (numTokens + 1) + end;
   }
 
-  private void addToChart(Object cell, Derivation deriv) {
+  private List<Cell> getAnchoredCells(int start, int end) {
+    List<Cell> cells = anchoredCells.get(spanIndex(start, end));
+    return cells != null ? cells : Collections.<Cell>emptyList();
+  }
+  private List<Cell> getFloatingCells(int depth) {
+    return depth < floatingCells.size() ? floatingCells.get(depth) : Collections.<Cell>emptyList();
+  }
+
+  private void addToChart(long key, String cat, int start, int end, int depth, Derivation deriv) {
     if (!deriv.isFeaturizedAndScored())  // A derivation could be belong in multiple cells.
       featurizeAndScoreDerivation(deriv);
     if (Parser.opts.pruneErrorValues && deriv.value instanceof ErrorValue) return;
+    Cell cell = chart.get(key);
+    if (cell == null) {
+      cell = new Cell(cat, start, end, depth);
+      chart.put(key, cell);
+      if (start != -1) {
+        List<Cell> cells = anchoredCells.get(spanIndex(start, end));
+        if (cells == null)
+          anchoredCells.set(spanIndex(start, end), cells = new ArrayList<>());
+        cells.add(cell);
+      } else {
+        while (floatingCells.size() <= depth)
+          floatingCells.add(new ArrayList<Cell>());
+        floatingCells.get(depth).add(cell);
+      }
+    }
     if (Parser.opts.verbose >= 4)
       LogInfo.logs("addToChart %s: %s", cell, deriv);
-    MapUtils.addToList(chart, cell, deriv);
+    cell.derivations.add(deriv);
+  }
+
+  private void addToAnchoredChart(String cat, int start, int end, Derivation deriv) {
+    addToChart(anchoredKey(cat, start, end), cat, start, end, -1, deriv);
+  }
+
+  private void addToFloatingChart(String cat, int depth, Derivation deriv) {
+    addToChart(floatingKey(cat, depth), cat, -1, -1, depth, deriv);
   }
 
+  // Add the derivations that survive pruning to |accepted|.
   private void applyRule(Rule rule, int start, int end, int depth, Derivation child1, Derivation child2,
-      String leftCanonical, String rightCanonical, String leftNer, String rightNer) {
+      String leftCanonical, String rightCanonical, String leftNer, String rightNer, List<Derivation> accepted) {
     if (Parser.opts.verbose >= 5) logs("applyRule %s [%s:%s] depth=%s, %s %s", rule, start, end, depth, child1, child2);
     List<Derivation> children;
     if (child1 == null)  // 0-ary
@@ -203,50 +434,57 @@ class FloatingParserState extends ParserState {
 
       if (pruner.isPruned(newDeriv))
         continue;
-      // Avoid repetitive floating cells
-      addToChart(cell(rule.lhs, start, end, depth), newDeriv);
-      if (depth == -1) {
-        // In addition, anchored cells become floating
-        // at level 0
-        addToChart(floatingCell(rule.lhs, 0), newDeriv);
-      }
+      accepted.add(newDeriv);
     }
   }
 
   private void applyAnchoredRule(Rule rule, int start, int end, Derivation child1, Derivation child2,
       String leftCanonical, String rightCanonical, String leftNer, String rightNer) {
-    applyRule(rule, start, end, -1, child1, child2, leftCanonical, rightCanonical, leftNer, rightNer);
+    List<Derivation> results = new ArrayList<>();
+    applyRule(rule, start, end, -1, child1, child2, leftCanonical, rightCanonical, leftNer, rightNer, results);
+    for (Derivation deriv : results) {
+      addToAnchoredChart(rule.lhs, start, end, deriv);
+      // In addition, anchored cells become floating
+      // at level 0
+      addToFloatingChart(rule.lhs, 0, deriv);
+    }
   }
 
   private void applyFloatingRule(Rule rule, int depth, Derivation child1, Derivation child2,
-      String leftCanonical, String rightCanonical, String leftNer, String rightNer) {
-    applyRule(rule, -1, -1, depth, child1, child2, leftCanonical, rightCanonical, leftNer, rightNer);
+      String leftCanonical, String rightCanonical, String leftNer, String rightNer, List<Derivation> results) {
+    applyRule(rule, -1, -1, depth, child1, child2, leftCanonical, rightCanonical, leftNer, rightNer, results);
   }
 
-  private List<Derivation> getDerivations(Object cell) {
-    List<Derivation> derivations = chart.get(cell);
+  private List<Derivation> getDerivations(long key) {
+    Cell cell = chart.get(key);
     // logs("getDerivations %s => %s", cell, derivations);
-    if (derivations == null) return Derivation.emptyList;
-    return derivations;
+    if (cell == null) return Derivation.emptyList;
+    return cell.derivations;
   }
 
   // Build derivations over span |start|, |end|.
   private void buildAnchored(int start, int end) {
     // Apply unary tokens on spans (rule $A (a))
-    for (Rule rule : parser.grammar.rules) {
-      if (!rule.isAnchored()) continue;
-      if (rule.rhs.size() != 1 || rule.isCatUnary()) continue;
-      boolean match = (end - start == 1) && ex.token(start).equals(rule.rhs.get(0));
-      if (match)
+    if (end - start == 1) {
+      FloatingParser.addCandidates(parser.anchoredUnariesByToken, ex.token(start), candidates);
+      for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+        Rule rule = parser.indexedRules.get(id);
         applyAnchoredRule(rule, start, end, null, null, rule.rhs.get(0), null, rule.rhs.get(0), null);
+      }
+      candidates.clear();
     }
 
     // Apply binaries on spans (rule $A ($B $C)), ...
     for (int mid = start + 1; mid < end; mid++) {
-      for (Rule rule : parser.grammar.rules) {
-        if (!rule.isAnchored()) continue;
-        if (rule.rhs.size() != 2) continue;
-
+      if (mid - start == 1)
+        FloatingParser.addCandidates(parser.anchoredBinariesByFirstToken, ex.token(start), candidates);
+      if (end - mid == 1)
+        FloatingParser.addCandidates(parser.anchoredBinariesBySecondToken, ex.token(mid), candidates);
+      for (Cell cell : getAnchoredCells(start, mid))
+        FloatingParser.addCandidates(parser.anchoredBinariesByFirstCat, cell.cat, candidates);
+
+      for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+        Rule rule = parser.indexedRules.get(id);
         String rhs1 = rule.rhs.get(0);
         String rhs2 = rule.rhs.get(1);
         boolean match1 = (mid - start == 1) && ex.token(start).equals(rhs1);
@@ -254,14 +492,14 @@ class FloatingParserState extends ParserState {
 
         if (!Rule.isCat(rhs1) && Rule.isCat(rhs2)) {  // token $Cat
           if (match1) {
-            List<Derivation> derivations = getDerivations(anchoredCell(rhs2, mid, end));
+            List<Derivation> derivations = getDerivations(anchoredKey(rhs2, mid, end));
             for (Derivation deriv : derivations)
               applyAnchoredRule(rule, start, end, deriv, null, rhs1, deriv.canonicalUtterance, rhs1,
                   deriv.nerUtterance);
           }
         } else if (Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // $Cat token
           if (match2) {
-            List<Derivation> derivations = getDerivations(anchoredCell(rhs1, start, mid));
+            List<Derivation> derivations = getDerivations(anchoredKey(rhs1, start, mid));
             for (Derivation deriv : derivations)
               applyAnchoredRule(rule, start, end, deriv, null, deriv.canonicalUtterance, rhs2, deriv.nerUtterance,
                   rhs2);
@@ -270,21 +508,21 @@ class FloatingParserState extends ParserState {
           if (match1 && match2)
             applyAnchoredRule(rule, start, end, null, null, rhs1, rhs2, rhs1, rhs2);
         } else {  // $Cat $Cat
-          List<Derivation> derivations1 = getDerivations(anchoredCell(rhs1, start, mid));
-          List<Derivation> derivations2 = getDerivations(anchoredCell(rhs2, mid, end));
+          List<Derivation> derivations1 = getDerivations(anchoredKey(rhs1, start, mid));
+          List<Derivation> derivations2 = getDerivations(anchoredKey(rhs2, mid, end));
           for (Derivation deriv1 : derivations1)
             for (Derivation deriv2 : derivations2)
               applyAnchoredRule(rule, start, end, deriv1, deriv2,
                   deriv1.canonicalUtterance, deriv2.canonicalUtterance, deriv1.nerUtterance, deriv2.nerUtterance);
         }
       }
+      candidates.clear();
     }
 
     // Apply unary categories on spans (rule $A ($B))
     // Important: do this in topologically sorted order and after all the binaries are done.
-    for (Rule rule : parser.catUnaryRules) {
-      if (!rule.isAnchored()) continue;
-      List<Derivation> derivations = getDerivations(anchoredCell(rule.rhs.get(0), start, end));
+    for (Rule rule : parser.anchoredCatUnaryRules) {
+      List<Derivation> derivations = getDerivations(anchoredKey(rule.rhs.get(0), start, end));
       for (Derivation deriv : derivations) {
         applyAnchoredRule(rule, start, end, deriv, null, deriv.canonicalUtterance, null, deriv.nerUtterance, null);
       }
@@ -293,80 +531,103 @@ class FloatingParserState extends ParserState {
 
   // Build floating derivations of exactly depth |depth|.
   private void buildFloating(int depth) {
+    List<Expansion> expansions = new ArrayList<>();
+
     // Apply unary tokens on spans (rule $A (a))
     if (depth == 1) {
-      for (Rule rule : parser.grammar.rules) {
-        if (!rule.isFloating()) continue;
-        if (rule.rhs.size() != 1 || rule.isCatUnary()) continue;
-        applyFloatingRule(rule, depth, null, null, rule.rhs.get(0), null, rule.rhs.get(0), null);
+      for (int i = 0; i < parser.floatingUnaries.size(); i++) {
+        Rule rule = parser.indexedRules.get(parser.floatingUnaries.get(i));
+        expansions.add(new Expansion(rule, results ->
+            applyFloatingRule(rule, depth, null, null, rule.rhs.get(0), null, rule.rhs.get(0), null, results)));
       }
+      FloatingParser.addCandidates(parser.floatingTokenBinaries, candidates);
     }
 
     // Apply binaries on spans (rule $A ($B $C)), ...
-    for (Rule rule : parser.grammar.rules) {
-      if (!rule.isFloating()) continue;
-      if (rule.rhs.size() != 2) continue;
-
+    // Every rule needs a child of depth |depth| - 1, except that $Cat $Cat
+    // rules can split the size any way when limiting size instead of depth.
+    for (Cell cell : getFloatingCells(depth - 1))
+      FloatingParser.addCandidates(parser.floatingBinariesByCat, cell.cat, candidates);
+    if (FloatingParser.opts.useSizeInsteadOfDepth)
+      FloatingParser.addCandidates(parser.floatingCatBinaries, candidates);
+
+    for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+      Rule rule = parser.indexedRules.get(id);
       String rhs1 = rule.rhs.get(0);
       String rhs2 = rule.rhs.get(1);
 
       if (!Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // token token
         if (depth == 1)
-          applyFloatingRule(rule, depth, null, null, rhs1, rhs2, rhs1, rhs2);
+          expansions.add(new Expansion(rule, results ->
+              applyFloatingRule(rule, depth, null, null, rhs1, rhs2, rhs1, rhs2, results)));
       } else if (!Rule.isCat(rhs1) && Rule.isCat(rhs2)) {  // token $Cat
-        List<Derivation> derivations = getDerivations(floatingCell(rhs2, depth - 1));
-        for (Derivation deriv : derivations)
-          applyFloatingRule(rule, depth, deriv, null, rhs1, deriv.canonicalUtterance, rhs1, deriv.nerUtterance);
+        List<Derivation> derivations = getDerivations(floatingKey(rhs2, depth - 1));
+        expansions.add(new Expansion(rule, results -> {
+          for (Derivation deriv : derivations)
+            applyFloatingRule(rule, depth, deriv, null, rhs1, deriv.canonicalUtterance, rhs1, deriv.nerUtterance,
+                results);
+        }));
       } else if (Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // $Cat token
-        List<Derivation> derivations = getDerivations(floatingCell(rhs1, depth - 1));
-        for (Derivation deriv : derivations)
-          applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance, rhs2, deriv.nerUtterance, rhs2);
+        List<Derivation> derivations = getDerivations(floatingKey(rhs1, depth - 1));
+        expansions.add(new Expansion(rule, results -> {
+          for (Derivation deriv : derivations)
+            applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance, rhs2, deriv.nerUtterance, rhs2,
+                results);
+        }));
       } else {  // $Cat $Cat
         if (FloatingParser.opts.useSizeInsteadOfDepth) {
           for (int depth1 = 0; depth1 < depth; depth1++) {
             int depth2 = depth - 1 - depth1;
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth1));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth2));
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance,
-                    deriv2.canonicalUtterance, deriv1.nerUtterance, deriv2.nerUtterance);
+            addCatCatExpansions(expansions, rule, depth, floatingKey(rhs1, depth1), floatingKey(rhs2, depth2));
           }
         } else {
-          for (int subDepth = 0; subDepth < depth; subDepth++) {  // depth-1 <=depth-1
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, depth - 1));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, subDepth));
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance,
-                    deriv2.canonicalUtterance, deriv1.nerUtterance, deriv2.nerUtterance);
-          }
-          for (int subDepth = 0; subDepth < depth - 1; subDepth++) {  // <depth-1 depth-1
-            List<Derivation> derivations1 = getDerivations(floatingCell(rhs1, subDepth));
-            List<Derivation> derivations2 = getDerivations(floatingCell(rhs2, depth - 1));
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance,
-                    deriv2.canonicalUtterance, deriv1.nerUtterance, deriv2.nerUtterance);
-          }
+          for (int subDepth = 0; subDepth < depth; subDepth++)  // depth-1 <=depth-1
+            addCatCatExpansions(expansions, rule, depth, floatingKey(rhs1, depth - 1), floatingKey(rhs2, subDepth));
+          for (int subDepth = 0; subDepth < depth - 1; subDepth++)  // <depth-1 depth-1
+            addCatCatExpansions(expansions, rule, depth, floatingKey(rhs1, subDepth), floatingKey(rhs2, depth - 1));
         }
       }
     }
+    candidates.clear();
 
     // Apply unary categories on spans (rule $A ($B))
     // Important: do this in topologically sorted order and after all the binaries are done.
-    for (Rule rule : parser.catUnaryRules) {
-      if (!rule.isFloating()) continue;
-      List<Derivation> derivations = getDerivations(floatingCell(rule.rhs.get(0), depth - 1));
-      for (Derivation deriv : derivations)
-        applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance, null, deriv.nerUtterance, null);
+    for (Rule rule : parser.floatingCatUnaryRules) {
+      List<Derivation> derivations = getDerivations(floatingKey(rule.rhs.get(0), depth - 1));
+      expansions.add(new Expansion(rule, results -> {
+        for (Derivation deriv : derivations)
+          applyFloatingRule(rule, depth, deriv, null, deriv.canonicalUtterance, null, deriv.nerUtterance, null,
+              results);
+      }));
+    }
+
+    parser.runExpansions(expansions);
+    for (Expansion expansion : expansions) {
+      for (Derivation deriv : expansion.derivations) {
+        deriv.renewCreationIndex();
+        addToFloatingChart(expansion.rule.lhs, depth, deriv);
+      }
     }
   }
 
-  void addToDerivations(Object cell, List<Derivation> derivations) {
-    List<Derivation> myDerivations = chart.get(cell);
-    if (myDerivations != null)
-      derivations.addAll(myDerivations);
+  // $Cat $Cat rules can have many pairs of children, so make one expansion
+  // for each first child.
+  private void addCatCatExpansions(List<Expansion> expansions, Rule rule, int depth, long key1, long key2) {
+    List<Derivation> derivations2 = getDerivations(key2);
+    if (derivations2.isEmpty()) return;
+    for (Derivation deriv1 : getDerivations(key1)) {
+      expansions.add(new Expansion(rule, results -> {
+        for (Derivation deriv2 : derivations2)
+          applyFloatingRule(rule, depth, deriv1, deriv2, deriv1.canonicalUtterance,
+              deriv2.canonicalUtterance, deriv1.nerUtterance, deriv2.nerUtterance, results);
+      }));
+    }
+  }
+
+  void addToDerivations(long key, List<Derivation> derivations) {
+    Cell cell = chart.get(key);
+    if (cell != null)
+      derivations.addAll(cell.derivations);
   }
 
   @Override public void infer() {
@@ -374,22 +635,18 @@ class FloatingParserState extends ParserState {
 
     // Base case ($TOKEN, $PHRASE)
     for (Derivation deriv : gatherTokenAndPhraseDerivations()) {
-      addToChart(anchoredCell(deriv.cat, deriv.start, deriv.end), deriv);
-      addToChart(floatingCell(deriv.cat, 0), deriv);
+      addToAnchoredChart(deriv.cat, deriv.start, deriv.end, deriv);
+      addToFloatingChart(deriv.cat, 0, deriv);
     }
 
-    Set<String> categories = new HashSet<>();
-    for (Rule rule : parser.grammar.rules)
-      categories.add(rule.lhs);
-
     // Build up anchored derivations (like the BeamParser)
     int numTokens = ex.numTokens();
     for (int len = 1; len <= numTokens; len++) {
       for (int i = 0; i + len <= numTokens; i++)  {
         buildAnchored(i, i + len);
-        for (String cat : categories) {
-          String cell = anchoredCell(cat, i, i + len).toString();
-          pruneCell(cell, chart.get(cell));
+        for (Cell cell : getAnchoredCells(i, i + len)) {
+          if (parser.lhsCategories.contains(cell.cat))
+            pruneCell(cell, cell.derivations);
         }
       }
     }
@@ -397,21 +654,21 @@ class FloatingParserState extends ParserState {
     // Build up floating derivations
     for (int depth = 1; depth <= FloatingParser.opts.maxDepth; depth++) {
       buildFloating(depth);
-      for (String cat : categories) {
-        String cell = floatingCell(cat, depth).toString();
-        pruneCell(cell, chart.get(cell));
+      for (Cell cell : getFloatingCells(depth)) {
+        if (parser.lhsCategories.contains(cell.cat))
+          pruneCell(cell, cell.derivations);
       }
     }
 
     // Collect final predicted derivations
-    addToDerivations(anchoredCell(Rule.rootCat, 0, numTokens), predDerivations);
+    addToDerivations(anchoredKey(Rule.rootCat, 0, numTokens), predDerivations);
     for (int depth = 1; depth <= FloatingParser.opts.maxDepth; depth++)
-      addToDerivations(floatingCell(Rule.rootCat, depth), predDerivations);
+      addToDerivations(floatingKey(Rule.rootCat, depth), predDerivations);
 
     // Compute gradient with respect to the predicted derivations
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new TObjectDoubleHashMap<>();
+      expectedCounts = new TIntDoubleHashMap();
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
 
@@ -454,7 +711,7 @@ class FloatingParserState extends ParserState {
     for (String cat : categories) {
       for (int len = 1; len <= numTokens; ++len) {
         for (int i = 0; i + len <= numTokens; ++i) {
-          List<Derivation> derivations = getDerivations(anchoredCell(cat, i, i + len));
+          List<Derivation> derivations = getDerivations(anchoredKey(cat, i, i + len));
           for (Derivation deriv : derivations) {
             LogInfo.logs("ParserState.visualize: %s(%s:%s): %s", cat, i, i + len, deriv);
           }
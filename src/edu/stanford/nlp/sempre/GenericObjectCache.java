@@ -1,124 +1,311 @@
 package edu.stanford.nlp.sempre;
 
-import java.lang.ref.SoftReference;
-import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A concurrent cache holding at most a fixed number of entries, each with its
+ * own expiration time.
+ *
+ * Eviction follows W-TinyLFU: new entries go into a small LRU window; when an
+ * entry falls out of the window it is only admitted into the main cache if it
+ * has been requested more often (according to a compact frequency sketch) than
+ * the entry it would displace.  The main cache is a segmented LRU, where
+ * entries hit a second time are protected from one-hit wonders.
+ *
+ * Lookups do not block: the map is concurrent, and the bookkeeping for a hit
+ * is skipped if another thread is busy updating the policy.
+ */
 public class GenericObjectCache<K, V> {
-	private static class CacheItem<K, V> {
-		private final K key;
-		private V value;
-		private long expires;
-
-		public CacheItem(K key, V value, long expires) {
-			this.key = key;
-			this.value = value;
-			this.expires = expires;
-		}
-	}
-
-	private static class ListBucket<K, V> extends LinkedList<SoftReference<CacheItem<K, V>>> {
-		private static final long serialVersionUID = 1L;
-	};
-
-	private final int maxBucketSize;
-	private final List<ListBucket<K, V>> buckets;
-
-	public GenericObjectCache(int nBuckets) {
-		maxBucketSize = 3;
-		buckets = new ArrayList<>();
-		for (int i = 0; i < nBuckets; i++)
-			buckets.add(new ListBucket<K, V>());
-	}
-
-	private ListBucket<K, V> getBucket(K key) {
-		int bucket = key.hashCode() % buckets.size();
-		if (bucket < 0)
-			bucket += buckets.size();
-		return buckets.get(bucket);
-	}
-
-	public V hit(K key) {
-		ListBucket<K, V> bucket = getBucket(key);
-		long now = System.currentTimeMillis();
-
-		synchronized (bucket) {
-			Iterator<SoftReference<CacheItem<K, V>>> it = bucket.iterator();
-			while (it.hasNext()) {
-				CacheItem<K, V> item = it.next().get();
-				if (item == null || item.expires <= now) {
-					it.remove();
-					continue;
-				}
-				if (key.equals(item.key))
-					return item.value;
-			}
-		}
-
-		return null;
-	}
+  private enum Queue { WINDOW, PROBATION, PROTECTED }
 
-  public void clear() {
-    for (ListBucket<K, V> bucket : buckets) {
-      synchronized (bucket) {
-        bucket.clear();
+  private static class Node<K, V> {
+    final K key;
+    volatile V value;
+    volatile long expires;
+    Queue queue;
+    Node<K, V> prev, next;
+
+    Node(K key, V value, long expires) {
+      this.key = key;
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  // Doubly-linked list in LRU order (head is the least recently used).
+  private static class AccessOrder<K, V> {
+    private final Node<K, V> sentinel = new Node<>(null, null, 0);
+    int size;
+
+    AccessOrder() {
+      sentinel.prev = sentinel.next = sentinel;
+    }
+
+    Node<K, V> peekFirst() { return sentinel.next == sentinel ? null : sentinel.next; }
+
+    void addLast(Node<K, V> node) {
+      node.prev = sentinel.prev;
+      node.next = sentinel;
+      sentinel.prev.next = node;
+      sentinel.prev = node;
+      size++;
+    }
+
+    void remove(Node<K, V> node) {
+      node.prev.next = node.next;
+      node.next.prev = node.prev;
+      node.prev = node.next = null;
+      size--;
+    }
+
+    void moveToLast(Node<K, V> node) {
+      remove(node);
+      addLast(node);
+    }
+
+    void clear() {
+      sentinel.prev = sentinel.next = sentinel;
+      size = 0;
+    }
+  }
+
+  // Approximate access counts (count-min sketch with 4-bit counters).  All
+  // counters are halved periodically so that old popularity fades.
+  private static class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int samples;
+
+    FrequencySketch(int capacity) {
+      int width = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+      counters = new byte[DEPTH][width];
+      mask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    private int index(int hash, int row) {
+      int h = hash * (0x9E3779B9 + 2 * row + 1);
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    int frequency(Object key) {
+      int hash = key.hashCode();
+      int min = MAX_COUNT;
+      for (int row = 0; row < DEPTH; row++)
+        min = Math.min(min, counters[row][index(hash, row)]);
+      return min;
+    }
+
+    void increment(Object key) {
+      int hash = key.hashCode();
+      for (int row = 0; row < DEPTH; row++) {
+        int i = index(hash, row);
+        if (counters[row][i] < MAX_COUNT)
+          counters[row][i]++;
+      }
+      if (++samples >= sampleSize) {
+        for (byte[] row : counters)
+          for (int i = 0; i < row.length; i++)
+            row[i] >>= 1;
+        samples /= 2;
       }
     }
   }
 
-  public void clear(K key) {
-    ListBucket<K, V> bucket = getBucket(key);
-
-    synchronized (bucket) {
-      Iterator<SoftReference<CacheItem<K, V>>> it = bucket.iterator();
-      while (it.hasNext()) {
-        CacheItem<K, V> other = it.next().get();
-        if (other == null || other.key.equals(key))
-          it.remove();
+  private final int maxSize;
+  private final int maxWindow;
+  private final int maxProtected;
+
+  private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+
+  // Guards the queues and the sketch.
+  private final ReentrantLock policyLock = new ReentrantLock();
+  private final AccessOrder<K, V> window = new AccessOrder<>();
+  private final AccessOrder<K, V> probation = new AccessOrder<>();
+  private final AccessOrder<K, V> protectedQueue = new AccessOrder<>();
+  private final FrequencySketch sketch;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  // Hold at most |maxSize| entries.
+  public GenericObjectCache(int maxSize) {
+    if (maxSize <= 0)
+      throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+    this.maxSize = maxSize;
+    this.maxWindow = Math.max(1, maxSize / 100);
+    this.maxProtected = (int) (0.8 * (maxSize - maxWindow));
+    this.sketch = new FrequencySketch(maxSize);
+  }
+
+  // Return the cached value for |key|, or null if it is absent or expired.
+  public V hit(K key) {
+    Node<K, V> node = map.get(key);
+    if (node != null && node.expires <= System.currentTimeMillis()) {
+      policyLock.lock();
+      try {
+        if (map.remove(key, node)) {
+          unlink(node);
+          expirations.incrementAndGet();
+        }
+      } finally {
+        policyLock.unlock();
+      }
+      node = null;
+    }
+
+    // Recording the access is best-effort: skip it rather than wait.
+    if (policyLock.tryLock()) {
+      try {
+        sketch.increment(key);
+        if (node != null && node.queue != null)
+          onAccess(node);
+      } finally {
+        policyLock.unlock();
+      }
+    }
+
+    if (node == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return node.value;
+  }
+
+  // Cache |value| under |key| until |expires| (in ms since the epoch).
+  // If |expires| is 0, the value is not cacheable and is ignored.
+  public void store(K key, V value, long expires) {
+    if (expires == 0) // ignore if not cacheable
+      return;
+
+    policyLock.lock();
+    try {
+      Node<K, V> other = map.get(key);
+      if (other != null) {
+        // some other thread added it; possibly freshen it
+        if (expires > other.expires) {
+          other.value = value;
+          other.expires = expires;
+        }
+        onAccess(other);
+        return;
       }
+      Node<K, V> node = new Node<>(key, value, expires);
+      map.put(key, node);
+      node.queue = Queue.WINDOW;
+      window.addLast(node);
+      evict();
+    } finally {
+      policyLock.unlock();
+    }
+  }
+
+  public void clear() {
+    policyLock.lock();
+    try {
+      map.clear();
+      window.clear();
+      probation.clear();
+      protectedQueue.clear();
+    } finally {
+      policyLock.unlock();
+    }
+  }
+
+  public void clear(K key) {
+    policyLock.lock();
+    try {
+      Node<K, V> node = map.remove(key);
+      if (node != null)
+        unlink(node);
+    } finally {
+      policyLock.unlock();
+    }
+  }
+
+  public int size() { return map.size(); }
+  public long hitCount() { return hits.get(); }
+  public long missCount() { return misses.get(); }
+  public long evictionCount() { return evictions.get(); }
+  public long expirationCount() { return expirations.get(); }
+
+  public String statsSummary() {
+    long h = hits.get(), m = misses.get();
+    return String.format("size=%d/%d hits=%d misses=%d hitRate=%.3f evictions=%d expirations=%d",
+        map.size(), maxSize, h, m, h + m == 0 ? 0.0 : (double) h / (h + m),
+        evictions.get(), expirations.get());
+  }
+
+  // Must be called with policyLock held.
+  private void onAccess(Node<K, V> node) {
+    switch (node.queue) {
+      case WINDOW:
+        window.moveToLast(node);
+        break;
+      case PROBATION:
+        // Second hit: promote, demoting the coldest protected entry if full.
+        probation.remove(node);
+        node.queue = Queue.PROTECTED;
+        protectedQueue.addLast(node);
+        if (protectedQueue.size > maxProtected) {
+          Node<K, V> demoted = protectedQueue.peekFirst();
+          protectedQueue.remove(demoted);
+          demoted.queue = Queue.PROBATION;
+          probation.addLast(demoted);
+        }
+        break;
+      case PROTECTED:
+        protectedQueue.moveToLast(node);
+        break;
+    }
+  }
+
+  // Must be called with policyLock held.
+  private void unlink(Node<K, V> node) {
+    if (node.queue == null) return;
+    switch (node.queue) {
+      case WINDOW: window.remove(node); break;
+      case PROBATION: probation.remove(node); break;
+      case PROTECTED: protectedQueue.remove(node); break;
     }
+    node.queue = null;
   }
 
-	public void store(K key, V value, long expires) {
-		if (expires == 0) // ignore if not cacheable
-			return;
-
-		CacheItem<K, V> item = new CacheItem<>(key, value, expires);
-		ListBucket<K, V> bucket = getBucket(key);
-
-		long now = System.currentTimeMillis();
-		synchronized (bucket) {
-			Iterator<SoftReference<CacheItem<K, V>>> it = bucket.iterator();
-			while (it.hasNext()) {
-				CacheItem<K, V> other = it.next().get();
-				if (other == null || other.expires <= now) {
-					it.remove();
-					continue;
-				}
-				if (key.equals(other.key)) {
-					// some other thread added it
-					if (item.expires > other.expires) {
-						// possibly freshen it
-						other.expires = item.expires;
-						other.value = item.value;
-					}
-					return;
-				}
-			}
-
-			if (bucket.size() > maxBucketSize) {
-				// too many items in this bucket, policy: purge the one expiring first
-				long minExpire = Long.MAX_VALUE;
-				SoftReference<CacheItem<K, V>> toRemove = null;
-				for (SoftReference<CacheItem<K, V>> maybeother : bucket) {
-					CacheItem<K, V> other = maybeother.get();
-					if (other == null || other.expires < minExpire) {
-						toRemove = maybeother;
-						minExpire = other == null ? 0 : minExpire;
-					}
-				}
-				bucket.remove(toRemove);
-			}
-			bucket.add(new SoftReference<>(item));
-		}
-	}
+  // Must be called with policyLock held.
+  private void evict() {
+    while (window.size > maxWindow) {
+      // The window's LRU entry competes with the main cache's victim.
+      Node<K, V> candidate = window.peekFirst();
+      window.remove(candidate);
+      candidate.queue = Queue.PROBATION;
+      probation.addLast(candidate);
+      if (probation.size + protectedQueue.size <= maxSize - maxWindow)
+        continue;
+
+      Node<K, V> victim = probation.peekFirst();
+      if (victim == candidate) {
+        // Main cache has no probation entries to displace; take from protected.
+        victim = protectedQueue.peekFirst();
+      }
+      long now = System.currentTimeMillis();
+      Node<K, V> loser;
+      if (victim == null || candidate.expires <= now)
+        loser = candidate;
+      else if (victim.expires <= now)
+        loser = victim;
+      else
+        loser = sketch.frequency(candidate.key) > sketch.frequency(victim.key) ? victim : candidate;
+      unlink(loser);
+      map.remove(loser.key, loser);
+      evictions.incrementAndGet();
+    }
+  }
 }
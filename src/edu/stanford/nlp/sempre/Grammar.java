@@ -56,6 +56,10 @@ public class Grammar {
   // Verbatim copy of all the lines read, so we can preserve the grammar file.
   List<String> statements = new ArrayList<>();
 
+  // All the files read, including the ones included from other files.
+  List<String> sourcePaths = new ArrayList<>();
+  public List<String> getSourcePaths() { return sourcePaths; }
+
   public LispTree getMacro(String var) {
     return macros.get(var);
   }
@@ -144,6 +148,7 @@ public class Grammar {
     // Save raw lines
     if (statements.size() > 0) statements.add("");
     statements.add("####### " + path);
+    sourcePaths.add(path);
     for (String line : IOUtils.readLinesHard(path))
       statements.add(line);
 
@@ -1,9 +1,12 @@
 package edu.stanford.nlp.sempre;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -22,6 +25,8 @@ public class JavaExecutor extends Executor {
     @Option(gloss = "Whether to convert NumberValue to int/double") public boolean convertNumberValues = true;
     @Option(gloss = "Whether to unpack ValueFormulas to values") public boolean unpackValues = true;
     @Option(gloss = "Print stack trace on exception") public boolean printStackTrace = false;
+    @Option(gloss = "Number of compiled formulas to keep for repeated execution (0 to disable)")
+    public int compiledFormulaCacheSize = 10000;
 	}
   public static Options opts = new Options();
 
@@ -152,12 +157,8 @@ public class JavaExecutor extends Executor {
 
   @Override
 public Response execute(Formula formula, ContextValue context) {
-    // We can do beta reduction here since macro substitution preserves the
-    // denotation (unlike for lambda DCS).
-    formula = Formulas.betaReduction(formula);
-
     try {
-      return new Response(toValue(processFormula(formula)));
+      return new Response(toValue(getInvoker(formula).invoke()));
     } catch (Exception e) {
       // Comment this out if we expect lots of innocuous type checking failures
       if (opts.printStackTrace) e.printStackTrace();
@@ -165,41 +166,166 @@ public Response execute(Formula formula, ContextValue context) {
     }
   }
 
+  // Return the compiled form of |formula|, compiling it on first use.
+  private Invoker getInvoker(Formula formula) {
+    Invoker invoker = invokers == null ? null : invokers.hit(formula);
+    if (invoker == null) {
+      // We can do beta reduction here since macro substitution preserves the
+      // denotation (unlike for lambda DCS).
+      invoker = compile(Formulas.betaReduction(formula));
+      if (invokers != null)
+        invokers.store(formula, invoker, Long.MAX_VALUE);
+    }
+    return invoker;
+  }
+
   private Object processFormula(Formula formula) {
+    return compile(formula).invoke();
+  }
+
+  /**
+   * A formula compiled for repeated execution.  Function names are resolved
+   * when compiling; methods are resolved on the first call and then reused
+   * as long as the argument types do not change.
+   */
+  private abstract static class Invoker {
+    abstract Object invoke();
+  }
+
+  private Invoker compile(Formula formula) {
 		if (formula instanceof ValueFormula<?>) {
 			// Unpack value and convert to object (e.g., for ints)
 			Value value = ((ValueFormula<?>) formula).value;
-			if (opts.unpackValues)
-				return toObject(value);
-			else
-				return value;
+      if (!opts.unpackValues)
+        return constant(value);
+      // Lists are unpacked into a fresh (mutable) list for every call.
+      if (value instanceof ListValue)
+        return new Invoker() {
+          @Override Object invoke() { return toObject(value); }
+        };
+      return constant(toObject(value));
 		}
 
     if (formula instanceof CallFormula) {  // Invoke the function.
-      //LogInfo.logs("formula=%s", formula);
-      // Recurse
       CallFormula call = (CallFormula) formula;
-      Object func = processFormula(call.func);
-      List<Object> args = Lists.newArrayList();
-      for (Formula arg : call.args) {
-        args.add(processFormula(arg));
-      }
+      Invoker[] args = new Invoker[call.args.size()];
+      for (int i = 0; i < args.length; i++)
+        args[i] = compile(call.args.get(i));
+      return new CallInvoker(call.func, compile(call.func), args);
+    }
+
+    // Just pass it through...
+    return constant(formula);
+  }
+
+  private static Invoker constant(Object obj) {
+    return new Invoker() {
+      @Override Object invoke() { return obj; }
+    };
+  }
+
+  private class CallInvoker extends Invoker {
+    private final Formula funcFormula;
+    private final Invoker func;
+    private final Invoker[] args;
+    // Method used by the previous call from this site.
+    private volatile ResolvedMethod last;
+
+    CallInvoker(Formula funcFormula, Invoker func, Invoker[] args) {
+      this.funcFormula = funcFormula;
+      this.func = func;
+      this.args = args;
+    }
+
+    @Override
+    Object invoke() {
+      Object f = func.invoke();
+      Object[] argValues = new Object[args.length];
+      for (int i = 0; i < args.length; i++)
+        argValues[i] = args[i].invoke();
 
-      if (!(func instanceof NameValue))
-        throw new RuntimeException("Invalid func: " + call.func + " => " + func);
+      if (!(f instanceof NameValue))
+        throw new RuntimeException("Invalid func: " + funcFormula + " => " + f);
 
-      String id = ((NameValue) func).id;
+      String id = ((NameValue) f).id;
       id = MapUtils.get(shortcuts, id, id);
 
-      if (id.startsWith(".")) // Instance method
-        return invoke(id.substring(1), args.get(0), args.subList(1, args.size()).toArray(new Object[0]));
+      ResolvedMethod method = last;
+      if (method == null || !method.matches(id, argValues)) {
+        method = resolve(id, argValues);
+        last = method;
+      }
+      try {
+        Object result = (Object) method.handle.invokeExact(argValues);
+        return result;
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    }
+  }
 
-      else  // Static method
-        return invoke(id, null, args.toArray(new Object[0]));
+  // A method resolved for one combination of function id and argument classes.
+  // |handle| takes all arguments (including the receiver for instance methods)
+  // as one Object[] and returns an Object.
+  private static class ResolvedMethod {
+    final String id;
+    final Class<?>[] argClasses;  // null for null arguments
+    final MethodHandle handle;
+
+    ResolvedMethod(String id, Class<?>[] argClasses, MethodHandle handle) {
+      this.id = id;
+      this.argClasses = argClasses;
+      this.handle = handle;
     }
 
-    // Just pass it through...
-    return formula;
+    boolean matches(String id, Object[] args) {
+      if (!this.id.equals(id) || argClasses.length != args.length) return false;
+      for (int i = 0; i < args.length; i++)
+        if (argClasses[i] != (args[i] == null ? null : args[i].getClass())) return false;
+      return true;
+    }
+  }
+
+  private static class MethodKey {
+    final String id;
+    final Class<?>[] argClasses;
+
+    MethodKey(String id, Class<?>[] argClasses) {
+      this.id = id;
+      this.argClasses = argClasses;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof MethodKey)) return false;
+      MethodKey other = (MethodKey) o;
+      return id.equals(other.id) && Arrays.equals(argClasses, other.argClasses);
+    }
+
+    @Override public int hashCode() {
+      return id.hashCode() * 31 + Arrays.hashCode(argClasses);
+    }
+  }
+
+  // Resolved methods shared by all executors.
+  private static final ConcurrentHashMap<MethodKey, ResolvedMethod> methodCache = new ConcurrentHashMap<>();
+
+  // Compiled formulas (null if disabled).
+  private final GenericObjectCache<Formula, Invoker> invokers =
+      opts.compiledFormulaCacheSize > 0 ? new GenericObjectCache<>(opts.compiledFormulaCacheSize) : null;
+
+  private static ResolvedMethod resolve(String id, Object[] args) {
+    Class<?>[] argClasses = new Class<?>[args.length];
+    for (int i = 0; i < args.length; i++)
+      argClasses[i] = args[i] == null ? null : args[i].getClass();
+    MethodKey key = new MethodKey(id, argClasses);
+    ResolvedMethod method = methodCache.get(key);
+    if (method == null) {
+      method = new ResolvedMethod(id, argClasses, findMethod(id, args));
+      methodCache.putIfAbsent(key, method);
+    }
+    return method;
   }
 
   // Convert the Object back to a Value
@@ -242,11 +368,13 @@ public Response execute(Formula formula, ContextValue context) {
   }
 
   // Example: id = "Math.cos"
-  private Object invoke(String id, Object thisObj, Object[] args) {
+  // Ids starting with "." are instance methods of args[0].
+  private static MethodHandle findMethod(String id, Object[] allArgs) {
     Method[] methods;
     Class<?> cls;
     String methodName;
-    boolean isStatic = thisObj == null;
+    Object[] args;
+    boolean isStatic = !id.startsWith(".");
 
     if (isStatic) {  // Static methods
       int i = id.lastIndexOf('.');
@@ -262,10 +390,12 @@ public Response execute(Formula formula, ContextValue context) {
         throw new RuntimeException(e);
       }
       methods = cls.getMethods();
+      args = allArgs;
     } else {  // Instance methods
-      cls = thisObj.getClass();
-      methodName = id;
+      cls = allArgs[0].getClass();
+      methodName = id.substring(1);
       methods = cls.getMethods();
+      args = Arrays.copyOfRange(allArgs, 1, allArgs.length);
     }
 
     // Find a suitable method
@@ -286,9 +416,11 @@ public Response execute(Formula formula, ContextValue context) {
 
     if (bestMethod != null) {
       try {
-        return bestMethod.invoke(thisObj, args);
-      } catch (InvocationTargetException e) {
-        throw new RuntimeException(e.getCause());
+        // Box/unbox like Method.invoke, and take the arguments as one array.
+        MethodHandle handle = MethodHandles.lookup().unreflect(bestMethod).asFixedArity();
+        return handle.asType(handle.type().generic())
+            .asSpreader(Object[].class, allArgs.length)
+            .asType(MethodType.methodType(Object.class, Object[].class));
       } catch (IllegalAccessException e) {
         throw new RuntimeException(e);
       }
@@ -299,7 +431,7 @@ public Response execute(Formula formula, ContextValue context) {
     throw new RuntimeException("Method " + methodName + " not found in class " + cls + " with arguments " + Arrays.asList(args) + " having types " + types + "; candidates: " + nameMatches);
   }
 
-  private int typeCastCost(Class[] types, Object[] args) {
+  private static int typeCastCost(Class[] types, Object[] args) {
     if (types.length != args.length) return INVALID_TYPE_COST;
     int cost = 0;
     for (int i = 0; i < types.length; i++) {
@@ -317,7 +449,7 @@ public Response execute(Formula formula, ContextValue context) {
   // 1: don't match, but don't lose anything
   // 2: don't match, and can lose something
   // INVALID_TYPE_COST: impossible
-  private int typeCastCost(Class<?> type, Object arg) {
+  private static int typeCastCost(Class<?> type, Object arg) {
     if (arg == null) return !type.isPrimitive() ? 0 : INVALID_TYPE_COST;
     if (type.isInstance(arg)) return 0;
     if (type == Boolean.TYPE) return arg instanceof Boolean ? 0 : INVALID_TYPE_COST;
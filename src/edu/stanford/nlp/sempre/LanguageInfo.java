@@ -33,9 +33,11 @@ public class LanguageInfo implements MemUsage.Instrumented {
   public final List<String> nerValues;  // NER values (contains times, dates, etc.)
   public final List<String> nerTokens; // NER tag if NER value != null, else token
 
-  private Map<String, IntPair> lemmaSpans;
-  private Set<String> lowercasedSpans;
-  private Set<String> nerSpans;
+  // Computed lazily; an analysis can be shared by concurrent requests (see
+  // api.QueryCache), so each one is built fully before it is published.
+  private volatile Map<String, IntPair> lemmaSpans;
+  private volatile Set<String> lowercasedSpans;
+  private volatile Set<String> nerSpans;
 
 
   public static class DependencyEdge {
@@ -331,36 +333,42 @@ public class LanguageInfo implements MemUsage.Instrumented {
   }
 
   public Map<String, IntPair> getLemmaSpans() {
-    if (lemmaSpans == null) {
-      lemmaSpans = new HashMap<>();
+    Map<String, IntPair> spans = lemmaSpans;
+    if (spans == null) {
+      spans = new HashMap<>();
       for (int i = 0; i < numTokens() - 1; ++i) {
         for (int j = i + 1; j < numTokens(); ++j)
-          lemmaSpans.put(lemmaPhrase(i, j), new IntPair(i, j));
+          spans.put(lemmaPhrase(i, j), new IntPair(i, j));
       }
+      lemmaSpans = spans;
     }
-    return lemmaSpans;
+    return spans;
   }
 
   public Set<String> getLowerCasedSpans() {
-    if (lowercasedSpans == null) {
-      lowercasedSpans = new HashSet<>();
+    Set<String> spans = lowercasedSpans;
+    if (spans == null) {
+      spans = new HashSet<>();
       for (int i = 0; i < numTokens() - 1; ++i) {
         for (int j = i + 1; j < numTokens(); ++j)
-          lowercasedSpans.add(phrase(i, j).toLowerCase());
+          spans.add(phrase(i, j).toLowerCase());
       }
+      lowercasedSpans = spans;
     }
-    return lowercasedSpans;
+    return spans;
   }
 
   public Set<String> getNerSpans() {
-    if (nerSpans == null) {
-      nerSpans = new HashSet<>();
+    Set<String> spans = nerSpans;
+    if (spans == null) {
+      spans = new HashSet<>();
       for (int i = 0; i < nerTokens.size(); ++i) {
         for (int j = i + 1; j <= nerTokens.size(); ++j)
-          nerSpans.add(nerPhrase(i, j));
+          spans.add(nerPhrase(i, j));
       }
+      nerSpans = spans;
     }
-    return nerSpans;
+    return spans;
   }
 
   public boolean matchLemmas(List<WordInfo> wordInfos) {
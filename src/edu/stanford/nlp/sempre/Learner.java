@@ -1,18 +1,26 @@
 package edu.stanford.nlp.sempre;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Maps;
 
 import fig.basic.*;
 import fig.exec.Execution;
-import gnu.trove.map.TObjectDoubleMap;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 
 /**
  * The main learning loop.  Goes over a dataset multiple times, calling the
@@ -54,6 +62,11 @@ public class Learner {
 
     @Option(gloss = "whether to reduce the scoring noise at each iteration (see Parser.derivationScoreNoise)")
     public boolean reduceParserScoreNoise = false;
+
+    @Option(gloss = "Write the params.<iter> checkpoints on a background thread while training goes on")
+    public boolean asyncCheckpoints = false;
+    @Option(gloss = "Number of most recent params.<iter> checkpoints to keep (0 = keep all)")
+    public int numCheckpointsToKeep = 0;
   }
   public static Options opts = new Options();
 
@@ -63,6 +76,17 @@ public class Learner {
   private final PrintWriter eventsOut;  // For printing a machine-readable log
   private final List<SemanticFn> semFuncsToUpdate;
 
+  // Processes the minibatches of all iterations and groups; created on first
+  // use and shut down at the end of learn().
+  private ExecutorService workers;
+
+  // Gradient of the current minibatch; each worker thread reuses its own.
+  private final ThreadLocal<TIntDoubleMap> minibatchCounts = ThreadLocal.withInitial(TIntDoubleHashMap::new);
+
+  // For asyncCheckpoints: at most one checkpoint is being written at a time.
+  private ExecutorService checkpointWriter;
+  private Future<?> lastCheckpoint;
+
 	public Learner(Parser parser, Params params, AbstractDataset dataset) {
     this.parser = parser;
     this.params = params;
@@ -132,23 +156,95 @@ public class Learner {
       }
 
       // Write out parameters
-      String path = Execution.getFile("params." + iter);
-      if (path != null) {
-        params.write(path);
-        Utils.systemHard("ln -sf params." + iter + " " + Execution.getFile("params"));
-      }
+      writeCheckpoint(iter);
 
       if (!lastIter && opts.reduceParserScoreNoise)
         Parser.opts.derivationScoreNoise /= 1.5;
 
       LogInfo.end_track();
     }
+    waitForCheckpoint();
+    shutdownWorkers();
     LogInfo.end_track();
   }
 
+  private ExecutorService getWorkers() {
+    if (workers == null) {
+      AtomicInteger numWorkers = new AtomicInteger();
+      workers = Executors.newFixedThreadPool(Math.max(1, opts.numThreads), r -> {
+        Thread thread = new Thread(r, "learner worker #" + numWorkers.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return workers;
+  }
+
+  private void shutdownWorkers() {
+    if (workers != null) {
+      workers.shutdown();
+      workers = null;
+    }
+  }
+
+  private void writeCheckpoint(int iter) {
+    String path = Execution.getFile("params." + iter);
+    if (path == null)
+      return;
+    if (!opts.asyncCheckpoints) {
+      writeCheckpoint(params, iter, path);
+      return;
+    }
+
+    // Don't let checkpoints pile up if writing one takes longer than an iteration
+    waitForCheckpoint();
+    final Params copy = params.copyParamsAndState();
+    if (checkpointWriter == null) {
+      checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "checkpoint writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    lastCheckpoint = checkpointWriter.submit(() -> writeCheckpoint(copy, iter, path));
+  }
+
+  private void waitForCheckpoint() {
+    if (lastCheckpoint == null)
+      return;
+    try {
+      lastCheckpoint.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    lastCheckpoint = null;
+  }
+
+  // Write |params| to |path| and point the params symlink at it.  The file is
+  // renamed into place, so readers never see a partially written checkpoint.
+  private static void writeCheckpoint(Params params, int iter, String path) {
+    try {
+      Path target = Paths.get(path);
+      Path tmp = Paths.get(path + ".tmp");
+      params.write(tmp.toString());
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      Path link = Paths.get(Execution.getFile("params"));
+      Path tmpLink = Paths.get(link + ".tmp");
+      Files.deleteIfExists(tmpLink);
+      Files.createSymbolicLink(tmpLink, target.getFileName());
+      Files.move(tmpLink, link, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      if (opts.numCheckpointsToKeep > 0 && iter >= opts.numCheckpointsToKeep)
+        Files.deleteIfExists(Paths.get(Execution.getFile("params." + (iter - opts.numCheckpointsToKeep))));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void onlineLearnExample(Example ex) {
     LogInfo.begin_track("onlineLearnExample: %s derivations", ex.predDerivations.size());
-    TObjectDoubleMap<String> counts = new TObjectDoubleHashMap<>();
+    TIntDoubleMap counts = new TIntDoubleHashMap();
     for (Derivation deriv : ex.predDerivations)
       deriv.compatibility = parser.valueEvaluator.getCompatibility(ex.targetValue, deriv.value);
     ParserState.computeExpectedCounts(ex.predDerivations, counts);
@@ -175,7 +271,8 @@ public class Learner {
         LogInfo.begin_track_printAll(
             "%s: minibatch %s/%s", prefix, batchno, nbatches);
 
-        TObjectDoubleMap<String> counts = new TObjectDoubleHashMap<>();
+        TIntDoubleMap counts = minibatchCounts.get();
+        counts.clear();
         Evaluation minibatchEval = new Evaluation();
 
         for (Example ex : minibatch) {
@@ -249,15 +346,9 @@ public class Learner {
         "Processing %s: %s examples", prefix, examples.size());
     LogInfo.begin_track("Examples");
 
-    ExecutorService exec;
-    if (opts.numThreads > 1)
-      exec = Executors.newFixedThreadPool(opts.numThreads);
-    else
-      exec = Executors.newSingleThreadExecutor();
-
     LogInfo.begin_threads();
     try {
-      exec.invokeAll(makeTasksForExamples(iter, group, examples, computeExpectedCounts, evaluation));
+      getWorkers().invokeAll(makeTasksForExamples(iter, group, examples, computeExpectedCounts, evaluation));
     } catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
@@ -282,9 +373,10 @@ public class Learner {
     this.params.finalizeWeights();
     this.params.readLock();
     try {
-      for (String feature : state.expectedCounts.keySet()) {
+      for (int index : state.expectedCounts.keys()) {
+        String feature = FeatureIndex.getFeature(index);
         LogInfo.begin_track("feature=%s", feature);
-        double computedGradient = state.expectedCounts.get(feature);
+        double computedGradient = state.expectedCounts.get(index);
         Params perturbedParams = this.params.copyParams();
         perturbedParams.finalizeWeights();
         perturbedParams.getWeights().put(feature, perturbedParams.getWeight(feature) + eps);
@@ -322,7 +414,7 @@ public class Learner {
     return res;
   }
 
-  private void updateWeights(TObjectDoubleMap<String> counts) {
+  private void updateWeights(TIntDoubleMap counts) {
     StopWatchSet.begin("Learner.updateWeights");
     LogInfo.begin_track("Updating learner weights");
     double sum = 0;
@@ -1,10 +1,27 @@
 package edu.stanford.nlp.sempre;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.base.Splitter;
@@ -12,14 +29,28 @@ import com.google.common.collect.Lists;
 
 import fig.basic.*;
 import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TObjectDoubleMap;
-import gnu.trove.map.TObjectIntMap;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.procedure.TIntDoubleProcedure;
+import gnu.trove.set.hash.TIntHashSet;
 
 /**
  * Params contains the parameters of the model. Currently consists of a map from
- * features to weights.
+ * features to weights.  Features are keyed by their FeatureIndex index;
+ * the String-based methods convert through the global index.
+ *
+ * Updates mutate the weights under a write lock and then publish an immutable
+ * Snapshot; readers (e.g., parsers) score against a snapshot without locking.
+ *
+ * The learning state is split into shards, each with its own lock, and
+ * features are hashed to shards.  With more than one shard
+ * (numUpdateShards), concurrent updates only contend on the shards they share
+ * instead of on the whole model.
  *
  * @author Percy Liang
  */
@@ -41,6 +72,11 @@ public class Params {
     @Option(gloss = "Whether to do lazy l1 reg updates") public String l1Reg = "none";
     @Option(gloss = "L1 reg coefficient") public double l1RegCoeff = 0d;
     @Option(gloss = "Lazy L1 full update frequency") public int lazyL1FullUpdateFreq = 5000;
+    @Option(gloss = "Number of lock stripes over the features; with more than one, " +
+        "updates from different threads run concurrently (1 = serialize all updates)")
+    public int numUpdateShards = 1;
+    @Option(gloss = "Write parameters in the binary format (read() accepts either format)")
+    public boolean writeBinary = false;
   }
   public static Options opts = new Options();
   public enum L1Reg {
@@ -57,25 +93,281 @@ public class Params {
 
   private final L1Reg l1Reg = parseReg(opts.l1Reg);
 
-  // Discriminative weights
-  private final TObjectDoubleMap<String> weights = new TObjectDoubleHashMap<>(Constants.DEFAULT_CAPACITY,
-      Constants.DEFAULT_LOAD_FACTOR, opts.defaultWeight);
+  // Learning state for the features of one shard (see shardIndex).  All
+  // access to the maps must hold |lock|.
+  private static final class Shard {
+    final ReentrantLock lock = new ReentrantLock();
 
-  // For AdaGrad
-  private final TObjectDoubleMap<String> sumSquaredGradients = new TObjectDoubleHashMap<>();
+    // Discriminative weights
+    final TIntDoubleMap weights = new TIntDoubleHashMap(Constants.DEFAULT_CAPACITY,
+        Constants.DEFAULT_LOAD_FACTOR, Constants.DEFAULT_INT_NO_ENTRY_VALUE, opts.defaultWeight);
 
-  // For dual averaging
-  private final TObjectDoubleMap<String> sumGradients = new TObjectDoubleHashMap<>();
+    // For AdaGrad
+    final TIntDoubleMap sumSquaredGradients = new TIntDoubleHashMap();
 
-  // Number of stochastic updates we've made so far (for determining step size).
-  private int numUpdates;
+    // For dual averaging
+    final TIntDoubleMap sumGradients = new TIntDoubleHashMap();
+
+    // for lazy l1-reg update
+    final TIntIntMap l1UpdateTimeMap = new TIntIntHashMap();
+  }
+
+  private final Shard[] shards = newShards(opts.numUpdateShards);
+
+  private static Shard[] newShards(int n) {
+    if (n < 1) throw new RuntimeException("numUpdateShards must be positive: " + n);
+    Shard[] result = new Shard[n];
+    for (int i = 0; i < n; i++)
+      result[i] = new Shard();
+    return result;
+  }
+
+  // FeatureIndex assigns indices in order of first use, so the frequent
+  // features have neighboring indices; hash them so they spread over shards.
+  private int shardIndex(int f) {
+    int h = f * 0x9E3779B9;
+    return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.length;
+  }
+
+  private Shard shardOf(int f) {
+    return shards[shardIndex(f)];
+  }
 
-  // for lazy l1-reg update
-  private final TObjectIntMap<String> l1UpdateTimeMap = new TObjectIntHashMap<>();
+  // Number of stochastic updates we've made so far (for determining step size).
+  private final AtomicInteger numUpdates = new AtomicInteger();
 
-  // multi-thread synchronization
+  // multi-thread synchronization: sharded updates hold the read lock;
+  // operations on the whole model (and serialized updates) hold the write lock.
   private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
 
+  // Latest published weights; replaced (never mutated) on every change.
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(this));
+
+  // Held while building and setting a snapshot.  Features waiting to be
+  // published, and the number of publish() calls so far, are guarded by
+  // |pendingFeatures|; the number of those calls already published is
+  // guarded by |publishLock|.
+  private final ReentrantLock publishLock = new ReentrantLock();
+  private final TIntArrayList pendingFeatures = new TIntArrayList();
+  private long numPublishRequests = 0;
+  private long numPublished = 0;
+
+  /**
+   * Immutable view of the weights at one point in time.  Weights are stored in
+   * fixed-size chunks indexed by FeatureIndex index, so publishing a snapshot
+   * after an update only copies the chunks that the update touched.
+   *
+   * With lazy L1 regularization, the pending L1 penalty is applied when a
+   * weight is read, without modifying anything.
+   */
+  public static final class Snapshot {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final Params owner;
+    private final double[][] weights;
+    // For lazy L1 (null otherwise): AdaGrad sums and the time of the last L1
+    // update of each feature (-1 if its L1 clock has not started).
+    private final double[][] sumSquaredGradients;
+    private final int[][] l1UpdateTimes;
+    private final int numUpdates;
+
+    private Snapshot(Params owner) {
+      this(owner, new double[0][], owner.l1Reg == L1Reg.LAZY ? new double[0][] : null,
+          owner.l1Reg == L1Reg.LAZY ? new int[0][] : null, 0);
+    }
+
+    private Snapshot(Params owner, double[][] weights, double[][] sumSquaredGradients,
+        int[][] l1UpdateTimes, int numUpdates) {
+      this.owner = owner;
+      this.weights = weights;
+      this.sumSquaredGradients = sumSquaredGradients;
+      this.l1UpdateTimes = l1UpdateTimes;
+      this.numUpdates = numUpdates;
+    }
+
+    public double getWeight(int f) {
+      int c = f >>> CHUNK_BITS;
+      double w = opts.defaultWeight;
+      if (c < weights.length && weights[c] != null) {
+        w = weights[c][f & CHUNK_MASK];
+        if (l1UpdateTimes != null)
+          w = lazyL1Weight(c, f & CHUNK_MASK, w);
+      }
+      if (opts.initWeightsRandomly && w == opts.defaultWeight)
+        return owner.initWeightRandomly(f);
+      return w;
+    }
+
+    public double getWeight(String f) {
+      int index = opts.initWeightsRandomly ? FeatureIndex.getIndex(f) : FeatureIndex.lookup(f);
+      return index == -1 ? opts.defaultWeight : getWeight(index);
+    }
+
+    // Mirrors Params.lazyL1Update, but only computes the resulting weight.
+    private double lazyL1Weight(int c, int i, double w) {
+      if (w == 0) return w;
+      int time = l1UpdateTimes[c][i];
+      if (time < 0 || numUpdates <= time) return w;
+      double stepSize = owner.stepSize(sumSquaredGradients[c][i], numUpdates) * (numUpdates - time);
+      double update = -opts.l1RegCoeff * Math.signum(w) * stepSize;
+      return w * (w + update) < 0.0 ? opts.defaultWeight : w + update;
+    }
+  }
+
+  public Snapshot getSnapshot() { return snapshot.get(); }
+
+  // Publish a new snapshot in which |features| are refreshed from the live
+  // maps.  Must not be called with a shard lock held.
+  //
+  // Concurrent publishes are combined: whoever gets |publishLock| publishes
+  // the features of every waiting call, so each chunk is copied once per
+  // batch, and the others find their features already published.
+  private void publish(int[] features) {
+    long request;
+    synchronized (pendingFeatures) {
+      pendingFeatures.add(features);
+      request = ++numPublishRequests;
+    }
+    publishLock.lock();
+    try {
+      if (numPublished >= request)
+        return;
+      int[] batch;
+      long numRequests;
+      synchronized (pendingFeatures) {
+        batch = pendingFeatures.toArray();
+        pendingFeatures.resetQuick();
+        numRequests = numPublishRequests;
+      }
+      snapshot.set(buildSnapshot(snapshot.get(), batch));
+      numPublished = numRequests;
+    } finally {
+      publishLock.unlock();
+    }
+  }
+
+  // Publish a snapshot rebuilt from scratch.  Must be called with the write
+  // lock held (or before the Params is shared).
+  private void publishAll() {
+    publishLock.lock();
+    try {
+      Snapshot result = new Snapshot(this);
+      for (Shard shard : shards) {
+        shard.lock.lock();
+        try {
+          result = buildSnapshot(result, shard.weights.keys());
+        } finally {
+          shard.lock.unlock();
+        }
+      }
+      snapshot.set(result);
+    } finally {
+      publishLock.unlock();
+    }
+  }
+
+  private Snapshot buildSnapshot(Snapshot prev, int[] features) {
+    int numChunks = prev.weights.length;
+    for (int f : features)
+      numChunks = Math.max(numChunks, (f >>> Snapshot.CHUNK_BITS) + 1);
+    boolean lazy = prev.l1UpdateTimes != null;
+    double[][] newWeights = Arrays.copyOf(prev.weights, numChunks);
+    double[][] newSums = lazy ? Arrays.copyOf(prev.sumSquaredGradients, numChunks) : null;
+    int[][] newTimes = lazy ? Arrays.copyOf(prev.l1UpdateTimes, numChunks) : null;
+    boolean[] copied = new boolean[numChunks];
+    for (int f : features) {
+      int c = f >>> Snapshot.CHUNK_BITS, i = f & Snapshot.CHUNK_MASK;
+      if (!copied[c]) {
+        copied[c] = true;
+        newWeights[c] = copyChunk(newWeights[c], opts.defaultWeight);
+        if (lazy) {
+          newSums[c] = copyChunk(newSums[c], 0);
+          if (newTimes[c] == null) {
+            newTimes[c] = new int[Snapshot.CHUNK_SIZE];
+            Arrays.fill(newTimes[c], -1);
+          } else {
+            newTimes[c] = newTimes[c].clone();
+          }
+        }
+      }
+      Shard shard = shardOf(f);
+      shard.lock.lock();
+      try {
+        newWeights[c][i] = shard.weights.get(f);
+        if (lazy) {
+          newSums[c][i] = shard.sumSquaredGradients.get(f);
+          newTimes[c][i] = shard.sumSquaredGradients.containsKey(f) && shard.l1UpdateTimeMap.containsKey(f) ?
+              shard.l1UpdateTimeMap.get(f) : -1;
+        }
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return new Snapshot(this, newWeights, newSums, newTimes,
+        Math.max(prev.numUpdates, numUpdates.get()));
+  }
+
+  private static double[] copyChunk(double[] chunk, double defaultValue) {
+    if (chunk != null) return chunk.clone();
+    double[] result = new double[Snapshot.CHUNK_SIZE];
+    Arrays.fill(result, defaultValue);
+    return result;
+  }
+
+  // Only used with initWeightsRandomly: give an unseen feature a random weight.
+  private double initWeightRandomly(int f) {
+    Shard shard = shardOf(f);
+    double weight;
+    shard.lock.lock();
+    try {
+      if (!shard.weights.containsKey(f))
+        shard.weights.put(f, 2 * opts.initRandom.nextDouble() - 1);
+      weight = shard.weights.get(f);
+    } finally {
+      shard.lock.unlock();
+    }
+    publish(new int[] {f});
+    return weight;
+  }
+
+  private void putWeight(int f, double value) {
+    Shard shard = shardOf(f);
+    shard.lock.lock();
+    try {
+      shard.weights.put(f, value);
+    } finally {
+      shard.lock.unlock();
+    }
+  }
+
+  // Call |procedure| on each (feature, weight), holding one shard lock at a time.
+  private void forEachWeight(TIntDoubleProcedure procedure) {
+    for (Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        if (!shard.weights.forEachEntry(procedure))
+          return;
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+  }
+
+  private int numWeights() {
+    int n = 0;
+    for (Shard shard : shards) {
+      shard.lock.lock();
+      try {
+        n += shard.weights.size();
+      } finally {
+        shard.lock.unlock();
+      }
+    }
+    return n;
+  }
+
   public void readLock() {
     lock.readLock().lock();
   }
@@ -96,17 +388,22 @@ public class Params {
   public void init(List<Pair<String, Double>> initialization) {
     writeLock();
     try {
-      if (!weights.isEmpty())
+      if (numWeights() != 0)
         throw new RuntimeException("Initialization is not legal when there are non-zero weights");
       for (Pair<String, Double> pair : initialization)
-        weights.put(pair.getFirst(), pair.getSecond());
+        putWeight(FeatureIndex.getIndex(pair.getFirst()), pair.getSecond());
+      publishAll();
     } finally {
       writeUnlock();
     }
   }
 
-  // Read parameters from |path|.
+  // Read parameters from |path|, in either the text or the binary format.
   public void read(String path) {
+    if (isBinary(path)) {
+      readBinary(path);
+      return;
+    }
     LogInfo.begin_track("Reading parameters from %s", path);
     try (BufferedReader in = IOUtils.openIn(path)) {
       String line;
@@ -114,20 +411,26 @@ public class Params {
       try {
         while ((line = in.readLine()) != null) {
           String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-          weights.put(pair[0], Double.parseDouble(pair[1]));
+          putWeight(FeatureIndex.getIndex(pair[0]), Double.parseDouble(pair[1]));
         }
+        publishAll();
       } finally {
         writeUnlock();
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", numWeights());
     LogInfo.end_track();
   }
 
-  // Read parameters from |path|.
+  // Read parameters from |path|, storing each weight under both its feature
+  // and |prefix| + its feature.
   public void read(String path, String prefix) {
+    if (isBinary(path)) {
+      readBinary(path, prefix);
+      return;
+    }
     LogInfo.begin_track("Reading parameters from %s", path);
     try (BufferedReader in = IOUtils.openIn(path)) {
       String line;
@@ -135,89 +438,170 @@ public class Params {
       try {
         while ((line = in.readLine()) != null) {
           String[] pair = Lists.newArrayList(Splitter.on('\t').split(line)).toArray(new String[2]);
-          weights.put(pair[0], Double.parseDouble(pair[1]));
-          weights.put(prefix + pair[0], Double.parseDouble(pair[1]));
+          putWeight(FeatureIndex.getIndex(pair[0]), Double.parseDouble(pair[1]));
+          putWeight(FeatureIndex.getIndex(prefix + pair[0]), Double.parseDouble(pair[1]));
         }
+        publishAll();
       } finally {
         writeUnlock();
       }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", numWeights());
     LogInfo.end_track();
   }
 
   // Update weights by adding |gradient| (modified appropriately with step size).
   public void update(TObjectDoubleMap<String> gradient) {
-    writeLock();
-    try {
-      gradient.forEachEntry((f, g) -> {
-        if (g * g == 0)
-          return true;  // In order to not divide by zero
-
-        double stepSize = computeStepSize(f, g);
-        if (l1Reg == L1Reg.LAZY)
-          lazyL1Update(f, stepSize);
-
-        if (opts.dualAveraging) {
-          if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
-            throw new RuntimeException("Dual averaging not supported when " +
-                "step-size changes across iterations for " +
-                "features for which the gradient is zero");
-          sumGradients.adjustOrPutValue(f, g, g);
-          weights.put(f, stepSize * sumGradients.get(f));
-        } else {
-          if (stepSize * g == Double.POSITIVE_INFINITY || stepSize * g == Double.NEGATIVE_INFINITY) {
-            LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s", f,
-                getWeight(f), stepSize, g);
-            throw new RuntimeException("Gradient absolute value is too large or too small");
+    TIntDoubleMap indexedGradient = new TIntDoubleHashMap();
+    SempreUtils.addToDoubleMap(indexedGradient, gradient);
+    update(indexedGradient);
+  }
+
+  // Same as above, but |gradient| is keyed by FeatureIndex index.
+  //
+  // With several shards (and no non-lazy L1, which touches every weight), only
+  // the read lock is taken and each shard is updated under its own lock, so
+  // updates from different threads interleave Hogwild-style: each one sees
+  // the others' changes to the shards it has not reached yet.
+  public void update(TIntDoubleMap gradient) {
+    boolean sharded = shards.length > 1 && l1Reg != L1Reg.NONLAZY;
+    int time;
+    if (sharded) {
+      readLock();
+      try {
+        time = numUpdates.getAndIncrement();
+        updateSharded(gradient, time);
+      } finally {
+        readUnlock();
+      }
+    } else {
+      writeLock();
+      try {
+        time = numUpdates.getAndIncrement();
+        updateSerialized(gradient, time);
+      } finally {
+        writeUnlock();
+      }
+    }
+    if (l1Reg == L1Reg.LAZY && opts.lazyL1FullUpdateFreq > 0 && (time + 1) % opts.lazyL1FullUpdateFreq == 0) {
+      LogInfo.begin_track("Fully apply L1 regularization.");
+      finalizeWeights();
+      System.gc();
+      LogInfo.end_track();
+    }
+  }
+
+  // Must be called with the write lock held.
+  private void updateSerialized(TIntDoubleMap gradient, int time) {
+    gradient.forEachEntry((f, g) -> {
+      Shard shard = shardOf(f);
+      shard.lock.lock();
+      try {
+        applyGradient(shard, f, g, time);
+      } finally {
+        shard.lock.unlock();
+      }
+      return true;
+    });
+    // non lazy implementation goes over all weights
+    if (l1Reg == L1Reg.NONLAZY) {
+      for (Shard shard : shards) {
+        shard.lock.lock();
+        try {
+          for (int f : shard.weights.keys()) {
+            double stepSize = computeStepSize(shard, f, 0d, time); // no update for gradient here
+            double currWeight = getWeight(shard, f, 0.0);
+            double update = opts.l1RegCoeff * -Math.signum(currWeight);
+            clipUpdate(shard, f, currWeight, stepSize * update);
           }
-          weights.adjustOrPutValue(f, stepSize * g, stepSize * g);
-          if (l1Reg == L1Reg.LAZY)
-            l1UpdateTimeMap.put(f, numUpdates);
+        } finally {
+          shard.lock.unlock();
         }
-        return true;
-      });
-      // non lazy implementation goes over all weights
-      if (l1Reg == L1Reg.NONLAZY) {
-        Set<String> features = new HashSet<>(weights.keySet());
-        for (String f : features) {
-          double stepSize = computeStepSize(f, 0d); // no update for gradient here
-          double currWeight = getWeight(f, 0.0);
-          double update = opts.l1RegCoeff * -Math.signum(currWeight);
-          clipUpdate(f, currWeight, stepSize * update);
+      }
+      publishAll();
+    } else {
+      publish(gradient.keys());
+    }
+  }
+
+  // Must be called with the read lock held.
+  private void updateSharded(TIntDoubleMap gradient, int time) {
+    TIntArrayList[] features = new TIntArrayList[shards.length];
+    for (int f : gradient.keys()) {
+      int s = shardIndex(f);
+      if (features[s] == null) features[s] = new TIntArrayList();
+      features[s].add(f);
+    }
+    for (int s = 0; s < shards.length; s++) {
+      if (features[s] == null) continue;
+      Shard shard = shards[s];
+      shard.lock.lock();
+      try {
+        for (int i = 0; i < features[s].size(); i++) {
+          int f = features[s].getQuick(i);
+          applyGradient(shard, f, gradient.get(f), time);
         }
+      } finally {
+        shard.lock.unlock();
       }
-      numUpdates++;
-      if (l1Reg == L1Reg.LAZY && opts.lazyL1FullUpdateFreq > 0 && numUpdates % opts.lazyL1FullUpdateFreq == 0) {
-        LogInfo.begin_track("Fully apply L1 regularization.");
-        finalizeWeights();
-        System.gc();
-        LogInfo.end_track();
+    }
+    publish(gradient.keys());  // Even if empty, to advance the snapshot's L1 clock
+  }
+
+  // Must be called with the lock of |shard| held.
+  private void applyGradient(Shard shard, int f, double g, int time) {
+    if (g * g == 0)
+      return;  // In order to not divide by zero
+
+    // Catch up on pending L1 with the step size those iterations used,
+    // so that the result does not depend on when the weight was read.
+    if (l1Reg == L1Reg.LAZY)
+      lazyL1Update(shard, f, computeStepSize(shard, f, 0d, time), time);
+    double stepSize = computeStepSize(shard, f, g, time);
+
+    if (opts.dualAveraging) {
+      if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
+        throw new RuntimeException("Dual averaging not supported when " +
+            "step-size changes across iterations for " +
+            "features for which the gradient is zero");
+      shard.sumGradients.adjustOrPutValue(f, g, g);
+      shard.weights.put(f, stepSize * shard.sumGradients.get(f));
+    } else {
+      if (stepSize * g == Double.POSITIVE_INFINITY || stepSize * g == Double.NEGATIVE_INFINITY) {
+        LogInfo.logs("WEIRD FEATURE UPDATE: feature=%s, currentWeight=%s, stepSize=%s, gradient=%s",
+            FeatureIndex.getFeature(f), shard.weights.get(f), stepSize, g);
+        throw new RuntimeException("Gradient absolute value is too large or too small");
       }
-    } finally {
-      writeUnlock();
+      shard.weights.adjustOrPutValue(f, stepSize * g, stepSize * g);
+      // A concurrent update with a later time may have been here first.
+      if (l1Reg == L1Reg.LAZY)
+        shard.l1UpdateTimeMap.put(f, Math.max(time, shard.l1UpdateTimeMap.get(f)));
     }
   }
 
-  private double computeStepSize(String feature, double gradient) {
+  private double computeStepSize(Shard shard, int feature, double gradient, int time) {
+    if (opts.adaptiveStepSize && gradient * gradient != 0)
+      shard.sumSquaredGradients.adjustOrPutValue(feature, gradient * gradient, gradient * gradient);
+    return stepSize(shard.sumSquaredGradients.get(feature), time);
+  }
+
+  private double stepSize(double sumSquaredGradient, int numUpdates) {
     if (opts.adaptiveStepSize) {
-      if (gradient * gradient != 0)
-        sumSquaredGradients.adjustOrPutValue(feature, gradient * gradient, gradient * gradient);
       // ugly - adding one to the denominator when using l1 reg.
       if (l1Reg != L1Reg.NONE)
-        return opts.initStepSize / (Math.sqrt(sumSquaredGradients.get(feature) + 1));
+        return opts.initStepSize / (Math.sqrt(sumSquaredGradient + 1));
       else
-        return opts.initStepSize / Math.sqrt(sumSquaredGradients.get(feature));
+        return opts.initStepSize / Math.sqrt(sumSquaredGradient);
     } else {
       return opts.initStepSize / Math.pow(numUpdates, opts.stepSizeReduction);
     }
   }
 
-  private double getWeight(String key, double defaultValue) {
-    if (defaultValue == opts.defaultWeight || weights.containsKey(key))
-      return weights.get(key);
+  private double getWeight(Shard shard, int key, double defaultValue) {
+    if (defaultValue == opts.defaultWeight || shard.weights.containsKey(key))
+      return shard.weights.get(key);
     else
       return defaultValue;
   }
@@ -225,58 +609,53 @@ public class Params {
   /*
    * If the update changes the sign, remove the feature
    */
-  private void clipUpdate(String f, double currWeight, double update) {
+  private void clipUpdate(Shard shard, int f, double currWeight, double update) {
     if (currWeight == 0)
       return;
 
     if (currWeight * (currWeight + update) < 0.0)  {
-      weights.remove(f);
+      shard.weights.remove(f);
     } else {
-      weights.adjustOrPutValue(f, update, update);
+      shard.weights.adjustOrPutValue(f, update, update);
     }
   }
 
-  private void lazyL1Update(String f, double stepSize) {
-    if (weights.get(f) == 0)
+  private void lazyL1Update(Shard shard, int f, double stepSize, int time) {
+    if (shard.weights.get(f) == 0)
       return;
     // For pre-initialized weights, which have no updates yet
-    if (!sumSquaredGradients.containsKey(f) || !l1UpdateTimeMap.containsKey(f)) {
-      l1UpdateTimeMap.put(f, numUpdates);
-      sumSquaredGradients.put(f, 0.0);
+    if (!shard.sumSquaredGradients.containsKey(f) || !shard.l1UpdateTimeMap.containsKey(f)) {
+      shard.l1UpdateTimeMap.put(f, time);
+      shard.sumSquaredGradients.put(f, 0.0);
       return;
     }
-    int numOfIter = numUpdates - l1UpdateTimeMap.get(f);
-    if (numOfIter == 0) return;
-    if (numOfIter < 0) throw new RuntimeException("l1UpdateTimeMap is out of sync.");
+    // Negative when a concurrent update with a later time got here first.
+    int numOfIter = time - shard.l1UpdateTimeMap.get(f);
+    if (numOfIter <= 0) return;
 
     stepSize *= numOfIter;
-    double currWeight = getWeight(f, 0.0);
+    double currWeight = getWeight(shard, f, 0.0);
     double update = -opts.l1RegCoeff * Math.signum(currWeight);
-    clipUpdate(f, currWeight, stepSize * update);
-    if (weights.containsKey(f))
-      l1UpdateTimeMap.put(f, numUpdates);
+    clipUpdate(shard, f, currWeight, stepSize * update);
+    if (shard.weights.containsKey(f))
+      shard.l1UpdateTimeMap.put(f, time);
     else
-      l1UpdateTimeMap.remove(f);
+      shard.l1UpdateTimeMap.remove(f);
   }
 
-  // must be called with read lock held
+  // Read from the latest snapshot; does not need the lock.
   public double getWeight(String f) {
-    if (l1Reg == L1Reg.LAZY)
-      lazyL1Update(f, computeStepSize(f, 0d));
-    if (opts.initWeightsRandomly) {
-      if (!weights.containsKey(f))
-        weights.put(f, 2 * opts.initRandom.nextDouble() - 1);
-      return weights.get(f);
-    } else {
-      return weights.get(f);
-    }
+    return snapshot.get().getWeight(f);
+  }
+
+  public double getWeight(int f) {
+    return snapshot.get().getWeight(f);
   }
 
-  // must be called with read lock held
   public Map<String, Double> getWeights() {
     final Map<String, Double> hashMap = new HashMap<>();
-    weights.forEachEntry((feature, value) -> {
-      hashMap.put(feature, value);
+    forEachWeight((feature, value) -> {
+      hashMap.put(FeatureIndex.getFeature(feature), value);
       return true;
     });
     return hashMap;
@@ -299,6 +678,10 @@ public class Params {
   }
 
   public void write(String path) {
+    if (opts.writeBinary) {
+      writeBinary(path);
+      return;
+    }
     LogInfo.begin_track("Params.write(%s)", path);
     try (PrintWriter out = IOUtils.openOutHard(path)) {
       write(out);
@@ -306,6 +689,176 @@ public class Params {
     LogInfo.end_track();
   }
 
+  // Binary format (big-endian):
+  //   int MAGIC, int BINARY_VERSION, int numFeatures, int numUpdates,
+  //   double[numFeatures] weights (NaN if none), double[numFeatures] AdaGrad sums (NaN if none),
+  //   double[numFeatures] dual averaging sums of gradients (NaN if none),
+  //   int[numFeatures] times of the last lazy L1 update (-1 if none),
+  //   numFeatures times (int numBytes, byte[numBytes] UTF-8 feature name).
+  // The arrays come first so that they are aligned in a mapped file.  Unlike
+  // the text format, this also keeps the learning state needed to resume.
+  // Version 1 files have no sums of gradients.
+  private static final int MAGIC = 0x53505250;  // "SPRP"
+  private static final int BINARY_VERSION = 2;
+  private static final int HEADER_BYTES = 16;
+
+  // Whether |path| is a parameters file in the binary format.
+  public static boolean isBinary(String path) {
+    File file = new File(path);
+    if (!file.isFile() || file.length() < HEADER_BYTES) return false;
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public void writeBinary(String path) {
+    LogInfo.begin_track("Params.writeBinary(%s)", path);
+    TIntArrayList features = new TIntArrayList();
+    TDoubleArrayList weights = new TDoubleArrayList();
+    TDoubleArrayList sums = new TDoubleArrayList();
+    TDoubleArrayList gradientSums = new TDoubleArrayList();
+    TIntArrayList times = new TIntArrayList();
+    int time;
+    readLock();
+    try {
+      time = numUpdates.get();
+      for (Shard shard : shards) {
+        shard.lock.lock();
+        try {
+          // Features can have learning state without a weight (e.g., after L1 clipping)
+          TIntHashSet keys = new TIntHashSet(shard.weights.keySet());
+          keys.addAll(shard.sumSquaredGradients.keySet());
+          keys.addAll(shard.sumGradients.keySet());
+          keys.addAll(shard.l1UpdateTimeMap.keySet());
+          for (int f : keys.toArray()) {
+            features.add(f);
+            weights.add(shard.weights.containsKey(f) ? shard.weights.get(f) : Double.NaN);
+            sums.add(shard.sumSquaredGradients.containsKey(f) ? shard.sumSquaredGradients.get(f) : Double.NaN);
+            gradientSums.add(shard.sumGradients.containsKey(f) ? shard.sumGradients.get(f) : Double.NaN);
+            times.add(shard.l1UpdateTimeMap.containsKey(f) ? shard.l1UpdateTimeMap.get(f) : -1);
+          }
+        } finally {
+          shard.lock.unlock();
+        }
+      }
+    } finally {
+      readUnlock();
+    }
+
+    int n = features.size();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(BINARY_VERSION);
+      out.writeInt(n);
+      out.writeInt(time);
+      for (int i = 0; i < n; i++)
+        out.writeDouble(weights.get(i));
+      for (int i = 0; i < n; i++)
+        out.writeDouble(sums.get(i));
+      for (int i = 0; i < n; i++)
+        out.writeDouble(gradientSums.get(i));
+      for (int i = 0; i < n; i++)
+        out.writeInt(times.get(i));
+      for (int i = 0; i < n; i++) {
+        byte[] bytes = FeatureIndex.getFeature(features.get(i)).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    LogInfo.logs("Wrote %d weights", n);
+    LogInfo.end_track();
+  }
+
+  // Read a file written by writeBinary() by mapping it into memory.  An
+  // invalid file causes a RuntimeException wrapping an IOException that
+  // names the file.
+  public void readBinary(String path) {
+    readBinary(path, null);
+  }
+
+  // As read(path, prefix): each weight is also stored under |prefix| + its
+  // feature (without the learning state).
+  private void readBinary(String path, String prefix) {
+    LogInfo.begin_track("Reading binary parameters from %s", path);
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Binary parameters file too large to map: " + path);
+      if (channel.size() < HEADER_BYTES)
+        throw new IOException("Truncated binary parameters file: " + path);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != MAGIC)
+        throw new IOException("Not a binary parameters file: " + path);
+      int version = buffer.getInt();
+      if (version != 1 && version != BINARY_VERSION)
+        throw new IOException("Unsupported binary parameters version " + version + ": " + path);
+      int numDoubleArrays = version == 1 ? 2 : 3;
+      int n = buffer.getInt();
+      int fileNumUpdates = buffer.getInt();
+      // Each feature takes at least its array entries and the length of its name
+      long arraysEnd = HEADER_BYTES + (8L * numDoubleArrays + 4) * n;
+      if (n < 0 || arraysEnd + 4L * n > channel.size())
+        throw new IOException("Corrupt or truncated binary parameters file (" + n + " features in "
+            + channel.size() + " bytes): " + path);
+      DoubleBuffer weights = sliceAt(buffer, HEADER_BYTES).asDoubleBuffer();
+      DoubleBuffer sums = sliceAt(buffer, HEADER_BYTES + 8L * n).asDoubleBuffer();
+      DoubleBuffer gradientSums = version == 1 ? null : sliceAt(buffer, HEADER_BYTES + 16L * n).asDoubleBuffer();
+      IntBuffer times = sliceAt(buffer, HEADER_BYTES + 8L * numDoubleArrays * n).asIntBuffer();
+      buffer.position((int) arraysEnd);
+
+      writeLock();
+      try {
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < n; i++) {
+          if (buffer.remaining() < 4)
+            throw new IOException("Truncated binary parameters file at feature " + i + ": " + path);
+          int length = buffer.getInt();
+          if (length < 0 || length > buffer.remaining())
+            throw new IOException("Corrupt binary parameters file at feature " + i + ": " + path);
+          if (length > bytes.length)
+            bytes = new byte[Math.max(length, 2 * bytes.length)];
+          buffer.get(bytes, 0, length);
+          String feature = new String(bytes, 0, length, StandardCharsets.UTF_8);
+          int f = FeatureIndex.getIndex(feature);
+          Shard shard = shardOf(f);
+          shard.lock.lock();
+          try {
+            double weight = weights.get(i);
+            if (!Double.isNaN(weight)) shard.weights.put(f, weight);
+            double sum = sums.get(i);
+            if (!Double.isNaN(sum)) shard.sumSquaredGradients.put(f, sum);
+            double gradientSum = gradientSums == null ? Double.NaN : gradientSums.get(i);
+            if (!Double.isNaN(gradientSum)) shard.sumGradients.put(f, gradientSum);
+            int time = times.get(i);
+            if (time >= 0) shard.l1UpdateTimeMap.put(f, time);
+          } finally {
+            shard.lock.unlock();
+          }
+          if (prefix != null && !Double.isNaN(weights.get(i)))
+            putWeight(FeatureIndex.getIndex(prefix + feature), weights.get(i));
+        }
+        if (fileNumUpdates > numUpdates.get())
+          numUpdates.set(fileNumUpdates);
+        publishAll();
+      } finally {
+        writeUnlock();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    LogInfo.logs("Read %s weights", numWeights());
+    LogInfo.end_track();
+  }
+
+  private static ByteBuffer sliceAt(ByteBuffer buffer, long position) {
+    ByteBuffer result = buffer.duplicate();
+    result.position((int) position);
+    return result.slice();
+  }
+
   public void log() {
     LogInfo.begin_track("Params");
     List<Map.Entry<String, Double>> entries = new ArrayList<>(getWeights().entrySet());
@@ -321,9 +874,17 @@ public class Params {
     writeLock();
     try {
       if (l1Reg == L1Reg.LAZY) {
-        Set<String> features = new HashSet<>(weights.keySet());
-        for (String f : features)
-          lazyL1Update(f, computeStepSize(f, 0d));
+        int time = numUpdates.get();
+        for (Shard shard : shards) {
+          shard.lock.lock();
+          try {
+            for (int f : shard.weights.keys())
+              lazyL1Update(shard, f, computeStepSize(shard, f, 0d, time), time);
+          } finally {
+            shard.lock.unlock();
+          }
+        }
+        publishAll();
       }
     } finally {
       writeUnlock();
@@ -334,15 +895,46 @@ public class Params {
     readLock();
     try {
       Params result = new Params();
-      for (String feature : this.weights.keySet()) {
-        result.weights.put(feature, this.getWeight(feature));
-      }
+      forEachWeight((feature, value) -> {
+        result.putWeight(feature, this.getWeight(feature));
+        return true;
+      });
+      result.publishAll();
       return result;
     } finally {
       readUnlock();
     }
   }
 
+  // Copy the weights together with the learning state, as of one point in
+  // time; e.g., to write a checkpoint while training goes on.
+  public Params copyParamsAndState() {
+    writeLock();
+    try {
+      Params result = new Params();
+      for (Shard shard : shards) {
+        shard.lock.lock();
+        try {
+          for (int f : shard.weights.keys())
+            result.shardOf(f).weights.put(f, shard.weights.get(f));
+          for (int f : shard.sumSquaredGradients.keys())
+            result.shardOf(f).sumSquaredGradients.put(f, shard.sumSquaredGradients.get(f));
+          for (int f : shard.sumGradients.keys())
+            result.shardOf(f).sumGradients.put(f, shard.sumGradients.get(f));
+          for (int f : shard.l1UpdateTimeMap.keys())
+            result.shardOf(f).l1UpdateTimeMap.put(f, shard.l1UpdateTimeMap.get(f));
+        } finally {
+          shard.lock.unlock();
+        }
+      }
+      result.numUpdates.set(numUpdates.get());
+      result.publishAll();
+      return result;
+    } finally {
+      writeUnlock();
+    }
+  }
+
   // copy params starting with prefix and drop the prefix
   public Params copyParamsByPrefix(String prefix)  {
     Params result = new Params();
@@ -351,9 +943,10 @@ public class Params {
       for (String feature : this.getWeights().keySet()) {
         if (feature.startsWith(prefix)) {
           String newFeature = feature.substring(prefix.length());
-          result.weights.put(newFeature, this.getWeight(feature));
+          result.putWeight(FeatureIndex.getIndex(newFeature), this.getWeight(feature));
         }
       }
+      result.publishAll();
       return result;
     } finally {
       readUnlock();
@@ -361,20 +954,16 @@ public class Params {
   }
 
   public boolean isEmpty() {
-    readLock();
-    try {
-      return weights.size() == 0;
-    } finally {
-      readUnlock();
-    }
+    return numWeights() == 0;
   }
 
   public Params getRandomWeightParams()  {
     Random rand = new Random();
     Params result = new Params();
     for (String feature : this.getWeights().keySet()) {
-      result.weights.put(feature, 2 * rand.nextDouble() - 1); // between -1 and 1
+      result.putWeight(FeatureIndex.getIndex(feature), 2 * rand.nextDouble() - 1); // between -1 and 1
     }
+    result.publishAll();
     return result;
   }
 }
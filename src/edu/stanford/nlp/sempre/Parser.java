@@ -2,6 +2,8 @@ package edu.stanford.nlp.sempre;
 
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fig.basic.*;
 import gnu.trove.map.TObjectDoubleMap;
@@ -89,6 +91,18 @@ public abstract class Parser {
   protected List<Rule> catUnaryRules;  // Unary rules with category on RHS ($A => $B)
   public List<Rule> getCatUnaryRules() { return catUnaryRules; }
 
+  // Categories are numbered so that parser states can key their charts by
+  // integers instead of strings.
+  private final ConcurrentHashMap<String, Integer> categoryIds = new ConcurrentHashMap<>();
+  private final AtomicInteger numCategories = new AtomicInteger();
+
+  // Return the number of |cat|, numbering it if it has not been seen before.
+  public int getCategoryId(String cat) {
+    Integer id = categoryIds.get(cat);
+    if (id != null) return id;
+    return categoryIds.computeIfAbsent(cat, c -> numCategories.getAndIncrement());
+  }
+
   // TODO(joberant): move this to a separate class in charge of visualizing charts
   PrintWriter chartFillOut = null;  // For printing a machine-readable json file
 
@@ -153,20 +167,15 @@ public abstract class Parser {
     if (ex.targetFormula != null && ex.targetValue == null)
       ex.targetValue = executor.execute(ex.targetFormula, ex.context).value;
 
-    // Parse
+    // Parse (the state scores against a snapshot of |params|, so no lock is needed)
     ParserState state;
     StopWatch watch = new StopWatch();
-    params.readLock();
-    try {
-      watch.start();
-      LogInfo.begin_track("Parser.parse: parse");
-      state = newParserState(params, ex, computeExpectedCounts);
-      state.infer();
-      LogInfo.end_track();
-      watch.stop();
-    } finally {
-      params.readUnlock();
-    }
+    watch.start();
+    LogInfo.begin_track("Parser.parse: parse");
+    state = newParserState(params, ex, computeExpectedCounts);
+    state.infer();
+    LogInfo.end_track();
+    watch.stop();
     state.parseTime = watch.getCurrTimeLong();
     state.setEvaluation();
 
@@ -3,6 +3,7 @@ package edu.stanford.nlp.sempre;
 import java.util.*;
 
 import fig.basic.*;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TObjectDoubleMap;
 
 /**
@@ -31,6 +32,9 @@ public abstract class ParserState {
 
   public final Parser parser;
   public final Params params;
+  // Weights used for scoring; fixed for the whole parse so that concurrent
+  // updates to |params| neither block nor affect it.
+  public final Params.Snapshot weights;
   public final Example ex;
   public final boolean computeExpectedCounts;  // Whether we're learning
 
@@ -40,7 +44,8 @@ public abstract class ParserState {
   public final Evaluation evaluation = new Evaluation();
 
   // If computeExpectedCounts is true (for learning), then fill this out.
-  public TObjectDoubleMap<String> expectedCounts;
+  // Keyed by FeatureIndex index.
+  public TIntDoubleMap expectedCounts;
   public double objectiveValue;
 
   // Statistics generated while parsing
@@ -55,6 +60,7 @@ public abstract class ParserState {
   public ParserState(Parser parser, Params params, Example ex, boolean computeExpectedCounts) {
     this.parser = parser;
     this.params = params;
+    this.weights = params.getSnapshot();
     this.ex = ex;
     this.computeExpectedCounts = computeExpectedCounts;
     this.numTokens = ex.numTokens();
@@ -75,13 +81,16 @@ public abstract class ParserState {
     parser.extractor.extractLocal(ex, deriv);
 
     // Compute score
-    deriv.computeScore(params);
+    deriv.computeScore(weights);
 
     if (parser.verbose(5)) {
       LogInfo.logs("featurizeAndScoreDerivation(score=%s) %s %s: %s [rule: %s]",
               Fmt.D(deriv.score), deriv.cat, ex.spanString(deriv.start, deriv.end), deriv, deriv.rule);
     }
-    numOfFeaturizedDerivs++;
+    // Expansions of FloatingParser may featurize derivations concurrently
+    synchronized (this) {
+      numOfFeaturizedDerivs++;
+    }
   }
 
   private boolean indistinguishable(Derivation d1, Derivation d2) {
@@ -94,14 +103,15 @@ public abstract class ParserState {
    * Prune down the number of derivations in |derivations| to the beam size.
    * Sort the beam by score.
    * Update beam statistics.
+   * |cell| describes the cell; it is only converted to a string when needed.
    */
-  protected void pruneCell(String cellDescription, List<Derivation> derivations) {
+  protected void pruneCell(Object cell, List<Derivation> derivations) {
     if (derivations == null) return;
 
     // Update stats about cell size.
     if (derivations.size() > maxCellSize) {
       maxCellSize = derivations.size();
-      maxCellDescription = cellDescription;
+      maxCellDescription = cell.toString();
       if (maxCellSize > 5000)
         LogInfo.logs("ParserState.pruneCell %s: %s entries", maxCellDescription, maxCellSize);
     }
@@ -138,7 +148,7 @@ public abstract class ParserState {
 
     // Print out information
     if (Parser.opts.verbose >= 3) {
-      LogInfo.begin_track("ParserState.pruneCell(%s): %d derivations", cellDescription, derivations.size());
+      LogInfo.begin_track("ParserState.pruneCell(%s): %d derivations", cell, derivations.size());
       for (Derivation deriv : derivations) {
         LogInfo.logs("%s(%s,%s): %s, [score=%s]", deriv.cat, deriv.start, deriv.end,
                 deriv.canonicalUtterance, deriv.score);
@@ -282,11 +292,32 @@ public abstract class ParserState {
    * Assume that everything has been executed, and compatibility has been computed.
    */
   public static void computeExpectedCounts(List<Derivation> derivations, TObjectDoubleMap<String> counts) {
+    double[] incrs = computeExpectedCountFactors(derivations);
+    if (incrs == null) return;
+    for (int i = 0; i < incrs.length; i++) {
+      if (incrs[i] == 0) continue;
+      derivations.get(i).incrementAllFeatureVector(incrs[i], counts);
+    }
+  }
+
+  // Same as above, but |counts| is keyed by FeatureIndex index.
+  public static void computeExpectedCounts(List<Derivation> derivations, TIntDoubleMap counts) {
+    double[] incrs = computeExpectedCountFactors(derivations);
+    if (incrs == null) return;
+    for (int i = 0; i < incrs.length; i++) {
+      if (incrs[i] == 0) continue;
+      derivations.get(i).incrementAllFeatureVector(incrs[i], counts);
+    }
+  }
+
+  // Return the factor by which to increment the features of each derivation,
+  // or null if there is nothing to update.
+  private static double[] computeExpectedCountFactors(List<Derivation> derivations) {
     double[] trueScores;
     double[] predScores;
 
     int n = derivations.size();
-    if (n == 0) return;
+    if (n == 0) return null;
 
     trueScores = new double[n];
     predScores = new double[n];
@@ -294,10 +325,10 @@ public abstract class ParserState {
     int[] goodAndBad = null;
     if (opts.customExpectedCounts == CustomExpectedCount.TOP) {
       goodAndBad = getTopDerivations(derivations);
-      if (goodAndBad == null) return;
+      if (goodAndBad == null) return null;
     } else if (opts.customExpectedCounts == CustomExpectedCount.RANDOM) {
       goodAndBad = getRandomDerivations(derivations);
-      if (goodAndBad == null) return;
+      if (goodAndBad == null) return null;
     }
 
     for (int i = 0; i < n; i++) {
@@ -323,16 +354,13 @@ public abstract class ParserState {
     }
 
     // Usually this happens when there are no derivations.
-    if (!NumUtils.expNormalize(trueScores)) return;
-    if (!NumUtils.expNormalize(predScores)) return;
+    if (!NumUtils.expNormalize(trueScores)) return null;
+    if (!NumUtils.expNormalize(predScores)) return null;
 
-    // Update parameters
-    for (int i = 0; i < n; i++) {
-      Derivation deriv = derivations.get(i);
-      double incr = trueScores[i] - predScores[i];
-      if (incr == 0) continue;
-      deriv.incrementAllFeatureVector(incr, counts);
-    }
+    double[] incrs = new double[n];
+    for (int i = 0; i < n; i++)
+      incrs[i] = trueScores[i] - predScores[i];
+    return incrs;
   }
 
   private static int[] getTopDerivations(List<Derivation> derivations) {
@@ -8,6 +8,7 @@ import fig.basic.*;
 import fig.exec.Execution;
 import fig.prob.SampleUtils;
 import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
 /**
@@ -225,7 +226,7 @@ final class ReinforcementParserState extends AbstractReinforcementParserState {
 
     // Compute score by adding |SEARCH_PREFIX| prefix and adding children scores
     FeatureVector searchFV = deriv.addPrefixLocalFeatureVector(parser.searchPrefix);
-    deriv.score = searchFV.dotProduct(params);
+    deriv.score = searchFV.dotProduct(weights);
     if (deriv.children != null)
       for (Derivation child : deriv.children)
         deriv.score += child.score;
@@ -266,7 +267,7 @@ final class ReinforcementParserState extends AbstractReinforcementParserState {
       return;
 
     ReinforcementParserState oracleState = null;
-    expectedCounts = new TObjectDoubleHashMap<>();
+    expectedCounts = new TIntDoubleHashMap();
     if (computeExpectedCounts && !ReinforcementParser.opts.simulateNonRlObjective) { // when updating params we first find a correct derivation to set the oracle sampler
       // TODO(jonathan): move to ReinforcementParser, not ParserState
       LogInfo.begin_track("Finding oracle derivation");
@@ -464,7 +465,7 @@ final class ReinforcementParserState extends AbstractReinforcementParserState {
     setPredDerivations();
     for (Derivation rootDeriv : predDerivations) {
       double oldScore = rootDeriv.score;
-      rootDeriv.computeScore(params);
+      rootDeriv.computeScore(weights);
       if (parser.verbose(3))
         LogInfo.logs("ReinforcementParser.rerankRootDerivations: deriv=%s, old=%s, new=%s", rootDeriv, oldScore, rootDeriv.score);
     }
@@ -3,6 +3,7 @@ package edu.stanford.nlp.sempre;
 import java.util.Map;
 
 import fig.basic.LogInfo;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TObjectDoubleMap;
 
 /**
@@ -34,10 +35,34 @@ public final class SempreUtils {
     LogInfo.end_track();
   }
 
+  // Feature maps keyed by FeatureIndex index are logged with their feature names.
+  public static void logMap(TIntDoubleMap map, String desc) {
+    LogInfo.begin_track("Logging %s map", desc);
+    for (int key : map.keys())
+      LogInfo.log(FeatureIndex.getFeature(key) + "\t" + map.get(key));
+    LogInfo.end_track();
+  }
+
   public static <K> void addToDoubleMap(TObjectDoubleMap<K> mutatedMap, TObjectDoubleMap<K> addedMap) {
     addedMap.forEachEntry((key, value) -> {
       mutatedMap.adjustOrPutValue(key, value, value);
       return true;
     });
   }
+
+  public static void addToDoubleMap(TIntDoubleMap mutatedMap, TIntDoubleMap addedMap) {
+    addedMap.forEachEntry((key, value) -> {
+      mutatedMap.adjustOrPutValue(key, value, value);
+      return true;
+    });
+  }
+
+  // Features in |addedMap| are converted to their FeatureIndex index.
+  public static void addToDoubleMap(TIntDoubleMap mutatedMap, TObjectDoubleMap<String> addedMap) {
+    addedMap.forEachEntry((key, value) -> {
+      int index = FeatureIndex.getIndex(key);
+      mutatedMap.adjustOrPutValue(index, value, value);
+      return true;
+    });
+  }
 }
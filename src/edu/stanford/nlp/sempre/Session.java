@@ -13,7 +13,7 @@ import java.util.List;
  */
 public class Session {
   public final String id;  // Session id
-  private long lastAccessTime;
+  private volatile long lastAccessTime;
   public String lang; // the language we're parsing against (eg en_US or zh_TW)
   public String remoteHost;  // Where we connected from
   String format;  // html or json
@@ -33,6 +33,10 @@ public class Session {
 		return lastAccessTime;
 	}
 
+  public void touch() {
+    lastAccessTime = System.currentTimeMillis();
+  }
+
   public void updateContext() {
 	lastAccessTime = System.currentTimeMillis();
     context = context.withDate(DateValue.now());
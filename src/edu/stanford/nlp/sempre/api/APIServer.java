@@ -66,8 +66,12 @@ public class APIServer implements Runnable {
     public int port = 8400;
     @Option
     public int ssl_port = -1;
-    @Option
+    @Option(gloss = "Number of threads accepting requests (parsing happens on separate threads)")
     public int numThreads = 4;
+    @Option(gloss = "Number of threads parsing requests, per language")
+    public int numParseThreads = 2;
+    @Option(gloss = "Maximum number of requests waiting to be parsed, per language; more are rejected with 503")
+    public int maxQueuedRequests = 32;
     @Option
     public int verbose = 1;
     @Option
@@ -78,6 +82,14 @@ public class APIServer implements Runnable {
     public String accessToken = "admin";
     @Option
     public String utteranceLogFile = null;
+    @Option(gloss = "Sessions idle for longer than this many seconds are forgotten")
+    public int sessionIdleTimeout = 600;
+    @Option(gloss = "Maximum number of sessions; the least recently used ones are forgotten first")
+    public int maxSessions = 100000;
+    @Option(gloss = "Number of previous exchanges kept as context in each session")
+    public int maxSessionExchanges = 1;
+    @Option(gloss = "Maximum number of parsed utterances to cache per language")
+    public int queryCacheSize = 10000;
   }
 
   public static Options opts = new Options();
@@ -99,21 +111,28 @@ public class APIServer implements Runnable {
 
   private final BlockingQueue<LogEntry> logQueue;
 
-  private final Map<String, Session> sessionMap = new HashMap<>();
+  // Created in run(), once the options have been parsed
+  private SessionStore sessions;
   final Map<String, LanguageContext> langs = new ConcurrentHashMap<>();
+  private final Map<String, RequestExecutor> executors = new ConcurrentHashMap<>();
 
   public APIServer() {
     logQueue = new LinkedBlockingQueue<>();
   }
 
-  synchronized Session getSession(String sessionId) {
-    if (sessionMap.containsKey(sessionId)) {
-      return sessionMap.get(sessionId);
-    } else {
-      Session newSession = new Session(sessionId);
-      sessionMap.put(sessionId, newSession);
-      return newSession;
-    }
+  Session getSession(String sessionId) {
+    return sessions.get(sessionId);
+  }
+
+  // Handle |state| on the threads of |language|, so that each language has
+  // its own concurrency limit; the request is rejected with 503 if too many
+  // requests are already waiting.
+  private void execute(LanguageContext language, AbstractHttpExchangeState state) {
+    RequestExecutor executor = language != null ? executors.get(language.tag) : null;
+    if (executor != null)
+      executor.execute(state);
+    else
+      state.run();
   }
 
   void logUtterance(String languageTag, String utterance) {
@@ -123,30 +142,42 @@ public class APIServer implements Runnable {
     logQueue.offer(new LogEntry(languageTag, utterance));
   }
 
+  // A session store configured by sessionIdleTimeout and maxSessions
+  public static SessionStore newSessionStore() {
+    return new SessionStore(opts.sessionIdleTimeout * 1000L, opts.maxSessions);
+  }
+
   private class SessionGCTask extends TimerTask {
     @Override
     public void run() {
       gcSessions();
+      logRequestStats();
     }
   }
 
-  private synchronized void gcSessions() {
-    Iterator<Session> iter = sessionMap.values().iterator();
-    long now = System.currentTimeMillis();
+  private void gcSessions() {
+    int expired = sessions.expire();
+    if (opts.verbose >= 2 || (opts.verbose >= 1 && expired > 0))
+      LogInfo.logs("Sessions: %s", sessions.statsSummary());
+  }
 
-    while (iter.hasNext()) {
-      Session session = iter.next();
-      synchronized (session) {
-        long lastTime = session.getLastAccessTime();
-        if (lastTime - now > 300 * 1000) // 5 min
-          iter.remove();
-      }
+  // Number of rejected requests of each language when last logged; only
+  // accessed from the timer thread.
+  private final Map<String, Integer> numRejectedLogged = new HashMap<>();
+
+  private void logRequestStats() {
+    for (Map.Entry<String, RequestExecutor> entry : executors.entrySet()) {
+      int rejected = entry.getValue().getNumRejected();
+      Integer logged = numRejectedLogged.put(entry.getKey(), rejected);
+      if (opts.verbose >= 2 || (opts.verbose >= 1 && rejected != (logged == null ? 0 : logged)))
+        LogInfo.logs("Requests for %s: %s", entry.getKey(), entry.getValue().statsSummary());
     }
   }
 
   private void addLanguage(String tag) {
     LanguageContext language = new LanguageContext(tag);
     langs.put(tag, language);
+    executors.put(tag, new RequestExecutor(tag, opts.numParseThreads, opts.maxQueuedRequests));
   }
 
   @Override
@@ -177,6 +208,8 @@ public class APIServer implements Runnable {
       if (opts.chuid != null)
         PosixHelper.setuid(opts.chuid);
 
+      sessions = newSessionStore();
+
       // Add supported languages
       for (String tag : opts.languages)
         addLanguage(tag);
@@ -194,13 +227,15 @@ public class APIServer implements Runnable {
       HttpHandler query = new HttpHandler() {
         @Override
         public void handle(HttpExchange exchange) {
-          new QueryExchangeState(APIServer.this, exchange).run();
+          QueryExchangeState state = new QueryExchangeState(APIServer.this, exchange);
+          execute(state.language, state);
         }
       };
       HttpHandler learn = new HttpHandler() {
         @Override
         public void handle(HttpExchange exchange) {
-          new OnlineLearnExchangeState(APIServer.this, exchange).run();
+          OnlineLearnExchangeState state = new OnlineLearnExchangeState(APIServer.this, exchange);
+          execute(state.language, state);
         }
       };
       HttpHandler clearCache = new HttpHandler() {
@@ -245,7 +280,7 @@ public class APIServer implements Runnable {
       }
 
       Timer gcTimer = new Timer(true);
-      gcTimer.schedule(new SessionGCTask(), 600000, 600000);
+      gcTimer.schedule(new SessionGCTask(), 60000, 60000);
 
       try {
         while (!Thread.currentThread().isInterrupted())
@@ -255,6 +290,8 @@ public class APIServer implements Runnable {
 
       server.stop(0);
       pool.shutdown();
+      for (RequestExecutor executor : executors.values())
+        executor.shutdown();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
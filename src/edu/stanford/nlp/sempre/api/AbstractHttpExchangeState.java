@@ -9,6 +9,7 @@ import java.nio.charset.Charset;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
@@ -118,6 +119,18 @@ abstract class AbstractHttpExchangeState {
 
   protected abstract void doHandle() throws IOException;
 
+  // Refuse the request without handling it, because the server is overloaded.
+  public void reject() {
+    try {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      returnError(503, new RejectedExecutionException("Too many requests, try again later"));
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      exchange.close();
+    }
+  }
+
   public void run() {
     try {
       doHandle();
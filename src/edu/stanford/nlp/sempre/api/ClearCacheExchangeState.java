@@ -35,7 +35,7 @@ class ClearCacheExchangeState extends AdminHttpExchangeState {
       if (utterance != null) {
         if (APIServer.opts.verbose >= 3)
           LogInfo.logs("Removing %s (locale = %s) from query cache", utterance, ctx.tag);
-        ctx.cache.clear(utterance);
+        ctx.cache.clear(utterance, ctx.analyzer);
       } else {
         if (APIServer.opts.verbose >= 3)
           LogInfo.logs("Clearing query cache for locale = %s", ctx.tag);
@@ -37,7 +37,7 @@ public class IncrementalUpdateLexiconExchangeState extends AdminHttpExchangeStat
       LexiconBuilder builder = new LexiconBuilder(ctx.analyzer, ctx.tag, kind);
       builder.build();
 
-      ThingpediaLexicon.getForLanguage(ctx.tag).clear();
+      ThingpediaLexicon.getForLanguage(ctx.tag).refresh(kind);
 
       returnOk("Lexicon updated");
     } catch (Exception e) {
@@ -1,5 +1,11 @@
 package edu.stanford.nlp.sempre.api;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+
 import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.corenlp.CoreNLPAnalyzer;
 
@@ -21,12 +27,18 @@ class OnlineLearnEntry {
 class LanguageContext {
   public final String tag;
   public final Parser parser;
-  public final Params params;
   public final LanguageAnalyzer analyzer;
-  public final QueryCache cache = new QueryCache(256);
-  public final Learner learner;
+  public final QueryCache cache = new QueryCache(APIServer.opts.queryCacheSize);
   public final ExactMatcherLayer exactMatch;
 
+  // Replaced as a whole by reloadParams(); a request reads them once and
+  // keeps using them even if a reload happens in the meantime.
+  private volatile Params params;
+  private volatile Learner learner;
+
+  // Modification time of each grammar file when we read it
+  private final Map<String, Long> grammarTimestamps = new HashMap<>();
+
   public LanguageContext(String tag) {
     this(tag, new CoreNLPAnalyzer(tag), null);
   }
@@ -44,5 +56,34 @@ class LanguageContext {
     parser = builder.parser;
     params = builder.params;
     learner = new Learner(builder.parser, builder.params, null);
+    for (String path : builder.grammar.getSourcePaths())
+      grammarTimestamps.put(path, new File(path).lastModified());
   }
-}
\ No newline at end of file
+
+  public Params getParams() { return params; }
+  public Learner getLearner() { return learner; }
+
+  // Whether any grammar file was modified since we read it.
+  public boolean isGrammarChanged() {
+    for (Map.Entry<String, Long> entry : grammarTimestamps.entrySet()) {
+      if (new File(entry.getKey()).lastModified() != entry.getValue())
+        return true;
+    }
+    return false;
+  }
+
+  // Read the parameters of this language again and swap them in, keeping the
+  // grammar, the parser and the analyzer.
+  public synchronized void reloadParams() {
+    Params newParams = new Params();
+    String path = Builder.getLanguageInParamsPath(tag);
+    if (!Strings.isNullOrEmpty(path) && new File(path).exists())
+      newParams.read(path);
+    Learner newLearner = new Learner(parser, newParams, null);
+
+    params = newParams;
+    learner = newLearner;
+    // Cached derivations were scored with the old parameters
+    cache.clear();
+  }
+}
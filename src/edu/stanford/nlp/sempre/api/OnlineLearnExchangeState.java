@@ -25,10 +25,12 @@ public class OnlineLearnExchangeState extends AbstractHttpExchangeState {
 
   private final APIServer server;
   private final String sessionId;
+  final LanguageContext language;
 
   public OnlineLearnExchangeState(APIServer server, HttpExchange exchange) {
     super(exchange);
     this.server = server;
+    this.language = localeToLanguage(server.langs, reqParams.get("locale"));
 
     if (reqParams.containsKey("sessionId"))
       sessionId = reqParams.get("sessionId");
@@ -63,9 +65,6 @@ public class OnlineLearnExchangeState extends AbstractHttpExchangeState {
       if (sessionId == null)
         throw new IllegalStateException("Missing session ID");
 
-      String localeTag = reqParams.get("locale");
-      LanguageContext language = localeToLanguage(server.langs, localeTag);
-
       String query = reqParams.get("q");
       if (query == null)
         throw new IllegalArgumentException("Missing query");
@@ -122,7 +121,7 @@ public class OnlineLearnExchangeState extends AbstractHttpExchangeState {
           ex = session.lastEx;
 
           ex.targetValue = new StringValue(targetJson);
-          //language.learner.onlineLearnExample(ex);
+          //language.getLearner().onlineLearnExample(ex);
         }
       }
 
@@ -149,7 +148,7 @@ public class OnlineLearnExchangeState extends AbstractHttpExchangeState {
       // that would mean too many evictions
       // instead, we let the normal cache aging pick it up, and only remove the current utterance,
       // which we know for sure has changed
-      language.cache.clear(query);
+      language.cache.clear(query, language.analyzer);
     } catch(IllegalStateException|IllegalArgumentException e) {
       returnError(400, e, sessionId);
       return;
@@ -5,16 +5,65 @@ import java.util.List;
 import edu.stanford.nlp.sempre.Derivation;
 import edu.stanford.nlp.sempre.Derivation.Cacheability;
 import edu.stanford.nlp.sempre.GenericObjectCache;
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.LanguageInfo;
 
-class QueryCache extends GenericObjectCache<String, List<Derivation>> {
+/**
+ * Two-level cache for parsing utterances:
+ * - the analysis of an utterance, keyed by the trimmed utterance, so that
+ *   repeated utterances skip the analyzer entirely;
+ * - the parses, keyed by the analysis (tokens, lemmas, POS and NER), so that
+ *   utterances that only differ in ways the analyzer ignores share a parse.
+ */
+public class QueryCache extends GenericObjectCache<String, List<Derivation>> {
   public static final long CACHE_AGE = 1000 * 3600 * 3; // cache cacheable utterances for 3 hours
   public static final long LEXICON_CACHE_AGE = 1000 * 3600 * 1; // cache lexicon lookups for 1 hour
 
-  public QueryCache(int nBuckets) {
-    super(nBuckets);
+  private final GenericObjectCache<String, LanguageInfo> analyses;
+
+  public QueryCache(int maxSize) {
+    super(maxSize);
+    analyses = new GenericObjectCache<>(maxSize);
+  }
+
+  // Only the surrounding whitespace can be dropped: the analyzer keeps the
+  // whitespace inside quoted strings, and Unicode normalization would change
+  // tokens such as full-width digits.
+  static String normalize(String utterance) {
+    return utterance.trim();
+  }
+
+  // Everything the parser looks at in an analyzed utterance.
+  static String analysisKey(LanguageInfo info) {
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < info.tokens.size(); i++) {
+      key.append(info.tokens.get(i)).append('\u0001')
+          .append(info.lemmaTokens.get(i)).append('\u0001')
+          .append(info.posTags.get(i)).append('\u0001')
+          .append(info.nerTags.get(i)).append('\u0001')
+          .append(info.nerValues.get(i)).append('\u0002');
+    }
+    return key.toString();
+  }
+
+  // Return the analysis of |query|, running |analyzer| only on a cache miss.
+  // The analyzer sees exactly the cache key, so a hit returns what it would
+  // have returned.  The result is shared and must not be modified.
+  public LanguageInfo analyze(String query, LanguageAnalyzer analyzer) {
+    String key = normalize(query);
+    LanguageInfo info = analyses.hit(key);
+    if (info == null) {
+      info = analyzer.analyze(key);
+      analyses.store(key, info, System.currentTimeMillis() + CACHE_AGE);
+    }
+    return info;
   }
 
-  public void store(String query, List<Derivation> derivations) {
+  public List<Derivation> hit(LanguageInfo info) {
+    return hit(analysisKey(info));
+  }
+
+  public void store(LanguageInfo info, List<Derivation> derivations) {
     // be conservative in cacheability
     Cacheability cache = Cacheability.CACHEABLE;
     for (Derivation d : derivations)
@@ -30,6 +79,22 @@ class QueryCache extends GenericObjectCache<String, List<Derivation>> {
     default:
       expires = 0;
     }
-    super.store(query, derivations, expires);
+    super.store(analysisKey(info), derivations, expires);
+  }
+
+  // Forget the parses of |query| (and of every utterance analyzed the same way).
+  public void clear(String query, LanguageAnalyzer analyzer) {
+    clear(analysisKey(analyze(query, analyzer)));
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    analyses.clear();
+  }
+
+  @Override
+  public String statsSummary() {
+    return "analyses: " + analyses.statsSummary() + "; parses: " + super.statsSummary();
   }
 }
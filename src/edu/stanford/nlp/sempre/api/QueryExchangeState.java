@@ -19,10 +19,12 @@ public class QueryExchangeState extends AbstractHttpExchangeState {
   static private final int MAX_ITEMS = 5;
 
   private final String sessionId;
+  final LanguageContext language;
 
   public QueryExchangeState(APIServer server, HttpExchange exchange) {
     super(exchange);
     this.server = server;
+    this.language = localeToLanguage(server.langs, reqParams.get("locale"));
 
     if (reqParams.containsKey("sessionId"))
       sessionId = reqParams.get("sessionId");
@@ -88,13 +90,16 @@ public class QueryExchangeState extends AbstractHttpExchangeState {
   private List<Derivation> handleUtterance(Session session, LanguageContext language, String query, String expect) {
     session.updateContext();
 
-    // Create example
+    // Create example; the analysis comes from the cache when the same
+    // utterance was seen recently
     Example.Builder b = new Example.Builder();
     b.setId("session:" + session.id);
     b.setUtterance(query);
     b.setContext(session.context);
+    b.setLanguageInfo(language.cache.analyze(query, language.analyzer));
     Example ex = b.createExample();
-    ex.preprocess(language.analyzer);
+    // The rest of Example.preprocess()
+    ex.setTargetValue(TargetValuePreprocessor.getSingleton().preprocess(ex.targetValue));
 
     Value hackAnswer = null;
     if (expect != null) {
@@ -106,7 +111,7 @@ public class QueryExchangeState extends AbstractHttpExchangeState {
     }
 
     // try from cache
-    List<Derivation> derivations = language.cache.hit(query);
+    List<Derivation> derivations = language.cache.hit(ex.languageInfo);
     if (APIServer.opts.verbose >= 3) {
       if (derivations != null)
         logs("cache hit");
@@ -116,15 +121,15 @@ public class QueryExchangeState extends AbstractHttpExchangeState {
 
     // Parse!
     if (derivations == null) {
-      language.parser.parse(language.params, ex, false);
+      language.parser.parse(language.getParams(), ex, false);
       derivations = ex.getPredDerivations();
-      language.cache.store(query, derivations);
+      language.cache.store(ex.languageInfo, derivations);
     } else {
       ex.predDerivations = derivations;
     }
 
     session.lastEx = ex;
-    session.updateContext(ex, 1);
+    session.updateContext(ex, APIServer.opts.maxSessionExchanges);
 
     // now put the hack answer if we have
     if (hackAnswer != null) {
@@ -154,9 +159,6 @@ public class QueryExchangeState extends AbstractHttpExchangeState {
 
   @Override
   protected void doHandle() throws IOException {
-    String localeTag = reqParams.get("locale");
-    LanguageContext language = localeToLanguage(server.langs, localeTag);
-
     String query = reqParams.get("q");
 
     int exitStatus;
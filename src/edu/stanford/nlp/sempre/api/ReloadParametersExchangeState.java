@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import com.sun.net.httpserver.HttpExchange;
 
+import fig.basic.LogInfo;
+
 class ReloadParametersExchangeState extends AdminHttpExchangeState {
   private final APIServer server;
 
@@ -28,11 +30,23 @@ class ReloadParametersExchangeState extends AdminHttpExchangeState {
         returnError(400, new IllegalArgumentException("invalid language tag"));
         return;
       }
+      long startTime = System.nanoTime();
       LanguageContext previous = this.server.langs.get(lang);
-      this.server.langs.put(lang,
-          new LanguageContext(lang, previous.analyzer, previous.exactMatch));
+      String what;
+      if (previous.isGrammarChanged()) {
+        // Rebuild everything that depends on the grammar, but keep the
+        // analyzer and the exact matches, which do not
+        this.server.langs.put(lang,
+            new LanguageContext(lang, previous.analyzer, previous.exactMatch));
+        what = "grammar and parameters";
+      } else {
+        previous.reloadParams();
+        what = "parameters";
+      }
+      long elapsed = (System.nanoTime() - startTime) / 1000000;
+      LogInfo.logs("Reloaded %s for %s in %d ms", what, lang, elapsed);
 
-      returnOk("Reloaded");
+      returnOk("Reloaded " + what + " in " + elapsed + " ms");
     } catch (Exception e) {
       returnError(400, e);
     }
@@ -0,0 +1,73 @@
+package edu.stanford.nlp.sempre.api;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fig.basic.LogInfo;
+
+/**
+ * Runs the requests of one language on threads of its own, separate from the
+ * threads that accept HTTP connections.
+ *
+ * At most |numThreads| requests are processed at a time and at most
+ * |maxQueued| wait for a thread; anything beyond that is rejected right away
+ * with 503.  This way a burst of slow parses in one language neither starves
+ * the other languages nor piles up without bound.
+ */
+class RequestExecutor {
+  private final String name;
+  private final ThreadPoolExecutor pool;
+  private final AtomicInteger numRejected = new AtomicInteger();
+
+  public RequestExecutor(String name, int numThreads, int maxQueued) {
+    this.name = name;
+    BlockingQueue<Runnable> queue;
+    if (maxQueued > 0)
+      queue = new ArrayBlockingQueue<>(maxQueued);
+    else
+      queue = new SynchronousQueue<>();
+    pool = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, queue,
+        new ThreadFactory() {
+          private final AtomicInteger numThreads = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "request executor " + RequestExecutor.this.name + " #"
+                + numThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  // Process |state| on one of our threads, or reject it if we are full.
+  public void execute(final AbstractHttpExchangeState state) {
+    try {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          state.run();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      int n = numRejected.incrementAndGet();
+      if (APIServer.opts.verbose >= 2)
+        LogInfo.logs("Rejecting request for %s: %d running, %d queued (%d rejected so far)", name,
+            pool.getActiveCount(), pool.getQueue().size(), n);
+      state.reject();
+    }
+  }
+
+  public int getNumRejected() {
+    return numRejected.get();
+  }
+
+  public String statsSummary() {
+    return String.format("running=%d queued=%d completed=%d rejected=%d",
+        pool.getActiveCount(), pool.getQueue().size(), pool.getCompletedTaskCount(), getNumRejected());
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+}
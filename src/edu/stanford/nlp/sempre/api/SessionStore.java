@@ -0,0 +1,115 @@
+package edu.stanford.nlp.sempre.api;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.sempre.Session;
+
+/**
+ * Holds the sessions of APIServer clients.
+ *
+ * A session expires once it has not been accessed for |idleTimeout| ms, and
+ * at most |maxSessions| sessions are kept: when there are more, the least
+ * recently accessed ones are evicted.  Lookups do not block each other.
+ */
+public class SessionStore {
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+  private final long idleTimeout;
+  private final int maxSessions;
+
+  private final AtomicLong numCreated = new AtomicLong();
+  private final AtomicLong numExpired = new AtomicLong();
+  private final AtomicLong numEvicted = new AtomicLong();
+
+  public SessionStore(long idleTimeout, int maxSessions) {
+    if (maxSessions <= 0)
+      throw new IllegalArgumentException("Maximum number of sessions must be positive: " + maxSessions);
+    this.idleTimeout = idleTimeout;
+    this.maxSessions = maxSessions;
+  }
+
+  // Return the session |id|, creating it if it does not exist or has expired.
+  public Session get(String id) {
+    long now = System.currentTimeMillis();
+    Session session = sessions.get(id);
+    if (session != null && isExpired(session, now)) {
+      if (sessions.remove(id, session))
+        numExpired.incrementAndGet();
+      session = null;
+    }
+    if (session == null) {
+      session = sessions.computeIfAbsent(id, k -> {
+        numCreated.incrementAndGet();
+        return new Session(k);
+      });
+      if (sessions.size() > maxSessions)
+        evictOldest(session);
+    }
+    session.touch();
+    return session;
+  }
+
+  private boolean isExpired(Session session, long now) {
+    return now - session.getLastAccessTime() > idleTimeout;
+  }
+
+  // Remove the sessions that have been idle for too long at time |now|.
+  // Return the number of sessions removed.
+  public int expire(long now) {
+    int n = 0;
+    for (Map.Entry<String, Session> entry : sessions.entrySet()) {
+      if (isExpired(entry.getValue(), now) && sessions.remove(entry.getKey(), entry.getValue()))
+        n++;
+    }
+    numExpired.addAndGet(n);
+    return n;
+  }
+
+  public int expire() {
+    return expire(System.currentTimeMillis());
+  }
+
+  // Evict the least recently accessed sessions other than |keep|, down to 90%
+  // of the maximum so that we do not have to sort the sessions on every new one.
+  private synchronized void evictOldest(Session keep) {
+    int excess = sessions.size() - maxSessions;
+    if (excess <= 0) return;
+    int numToEvict = Math.max(excess, sessions.size() - (int) (0.9 * maxSessions));
+
+    List<Session> oldest = new ArrayList<>(sessions.values());
+    Collections.sort(oldest, new Comparator<Session>() {
+      @Override
+      public int compare(Session s1, Session s2) {
+        return Long.compare(s1.getLastAccessTime(), s2.getLastAccessTime());
+      }
+    });
+    for (int i = 0; i < numToEvict && i < oldest.size(); i++) {
+      Session session = oldest.get(i);
+      if (session == keep) {
+        numToEvict++;
+        continue;
+      }
+      if (sessions.remove(session.id, session))
+        numEvicted.incrementAndGet();
+    }
+  }
+
+  public int size() { return sessions.size(); }
+  public long getNumCreated() { return numCreated.get(); }
+  public long getNumExpired() { return numExpired.get(); }
+  public long getNumEvicted() { return numEvicted.get(); }
+
+  // Number of context exchanges held by all sessions (the bulk of their memory).
+  public long getNumExchanges() {
+    long n = 0;
+    for (Session session : sessions.values())
+      n += session.context.exchanges.size();
+    return n;
+  }
+
+  public String statsSummary() {
+    return String.format("live=%d/%d created=%d expired=%d evicted=%d exchanges=%d",
+        size(), maxSessions, getNumCreated(), getNumExpired(), getNumEvicted(), getNumExchanges());
+  }
+}
@@ -0,0 +1,73 @@
+package edu.stanford.nlp.sempre.api.test;
+
+import java.util.Arrays;
+
+import edu.stanford.nlp.sempre.LanguageAnalyzer;
+import edu.stanford.nlp.sempre.LanguageInfo;
+import edu.stanford.nlp.sempre.SimpleAnalyzer;
+import edu.stanford.nlp.sempre.api.QueryCache;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that a hit in the analysis cache gives what the analyzer would give.
+ */
+public class QueryCacheTest {
+  // Like the CoreNLP quote annotators: a quoted string is one QUOTED_STRING
+  // token whose value keeps the whitespace inside the quotes.
+  private static class QuoteAnalyzer extends LanguageAnalyzer {
+    int numCalls = 0;
+
+    @Override
+    public LanguageInfo analyze(String utterance) {
+      numCalls++;
+      LanguageInfo info = new LanguageInfo();
+      int start = utterance.indexOf('"'), end = utterance.lastIndexOf('"');
+      for (String token : utterance.substring(0, start).trim().split("\\s+"))
+        add(info, token, "O", null);
+      add(info, "QUOTED_STRING", "QUOTED_STRING", utterance.substring(start + 1, end));
+      info.computeNerTokens();
+      return info;
+    }
+
+    private static void add(LanguageInfo info, String token, String nerTag, String nerValue) {
+      info.tokens.add(token);
+      info.lemmaTokens.add(token);
+      info.posTags.add("NN");
+      info.nerTags.add(nerTag);
+      info.nerValues.add(nerValue);
+    }
+  }
+
+  @Test
+  public void testQuotedWhitespace() {
+    QueryCache cache = new QueryCache(100);
+    QuoteAnalyzer analyzer = new QuoteAnalyzer();
+    LanguageInfo first = cache.analyze("send \"a  b\"", analyzer);
+    LanguageInfo second = cache.analyze("send \"a b\"", analyzer);
+    assertEquals(2, analyzer.numCalls);
+    assertEquals("a  b", first.nerValues.get(1));
+    assertEquals("a b", second.nerValues.get(1));
+  }
+
+  @Test
+  public void testUnicodeVariants() {
+    QueryCache cache = new QueryCache(100);
+    LanguageAnalyzer analyzer = new SimpleAnalyzer();
+    LanguageInfo first = cache.analyze("open the ﬁle ２", analyzer);
+    LanguageInfo second = cache.analyze("open the file 2", analyzer);
+    assertEquals(Arrays.asList("open", "the", "ﬁle", "２"), first.tokens);
+    assertEquals(Arrays.asList("open", "the", "file", "2"), second.tokens);
+  }
+
+  @Test
+  public void testSurroundingWhitespace() {
+    QueryCache cache = new QueryCache(100);
+    QuoteAnalyzer analyzer = new QuoteAnalyzer();
+    LanguageInfo first = cache.analyze("send \"a  b\"", analyzer);
+    assertSame(first, cache.analyze("  send \"a  b\"\n", analyzer));
+    assertEquals(1, analyzer.numCalls);
+  }
+}
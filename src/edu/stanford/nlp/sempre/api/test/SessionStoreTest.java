@@ -0,0 +1,72 @@
+package edu.stanford.nlp.sempre.api.test;
+
+import edu.stanford.nlp.sempre.Session;
+import edu.stanford.nlp.sempre.api.APIServer;
+import edu.stanford.nlp.sempre.api.SessionStore;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test that the APIServer session store stays bounded.
+ */
+public class SessionStoreTest {
+  @Test
+  public void testSameSession() {
+    SessionStore store = new SessionStore(60000, 10);
+    Session session = store.get("a");
+    assertSame(session, store.get("a"));
+    assertNotSame(session, store.get("b"));
+    assertEquals(2, store.size());
+    assertEquals(2, store.getNumCreated());
+  }
+
+  @Test
+  public void testManySessions() {
+    int maxSessions = 1000;
+    SessionStore store = new SessionStore(60000, maxSessions);
+    for (int i = 0; i < 50000; i++) {
+      Session session = store.get("session" + i);
+      assertSame(session, store.get("session" + i));
+      assertTrue(store.size() <= maxSessions);
+    }
+    assertEquals(50000, store.getNumCreated());
+    assertEquals(store.getNumCreated() - store.size(), store.getNumEvicted());
+    assertEquals(0, store.getNumExpired());
+  }
+
+  @Test
+  public void testExpire() {
+    SessionStore store = new SessionStore(1000, 100000);
+    for (int i = 0; i < 5000; i++)
+      store.get("session" + i);
+    long now = System.currentTimeMillis();
+    assertEquals(0, store.expire(now));
+    assertEquals(5000, store.expire(now + 2000));
+    assertEquals(0, store.size());
+    assertEquals(5000, store.getNumExpired());
+    assertEquals(0, store.getNumExchanges());
+  }
+
+  @Test
+  public void testServerOptions() {
+    int originalTimeout = APIServer.opts.sessionIdleTimeout, originalMax = APIServer.opts.maxSessions;
+    try {
+      APIServer.opts.sessionIdleTimeout = 5;
+      APIServer.opts.maxSessions = 20;
+      SessionStore store = APIServer.newSessionStore();
+      for (int i = 0; i < 100; i++) {
+        store.get("session" + i);
+        assertTrue(store.size() <= 20);
+      }
+      long now = System.currentTimeMillis();
+      assertEquals(0, store.expire(now + 4000));
+      assertEquals(store.size(), store.expire(now + 6000));
+      assertEquals(0, store.size());
+    } finally {
+      APIServer.opts.sessionIdleTimeout = originalTimeout;
+      APIServer.opts.maxSessions = originalMax;
+    }
+  }
+}
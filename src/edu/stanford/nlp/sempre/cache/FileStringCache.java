@@ -12,9 +12,15 @@ import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 /**
- * Cache backed by a file.
+ * Cache backed by a file.  Safe to use from multiple threads.
+ *
+ * By default, the whole file is read into memory.  In indexed mode, the file
+ * is only appended to and values are read from disk as needed (see
+ * IndexedLogFile); the in-memory map then just holds recently used entries.
  *
  * @author Percy Liang
  */
@@ -29,12 +35,27 @@ public class FileStringCache implements StringCache, LruCallback<String, String>
     @Option(gloss = "Append mode instead of dump mode")
     public boolean appendMode = true;
 
+    @Option(gloss = "Keep the file on disk with an index and read values on demand (the in-memory cache only holds recently used entries)")
+    public boolean indexed = false;
+
+    @Option(gloss = "Indexed mode: append writes to disk once this many are pending")
+    public int groupCommitSize = 1000;
+
+    @Option(gloss = "Indexed mode: append pending writes to disk at least this often (milliseconds)")
+    public int groupCommitMs = 1000;
+
+    @Option(gloss = "Indexed mode: save the index every N writes")
+    public int indexSaveFrequency = 1000000;
+
     public int verbose = 0;
   }
   public static final Options opts = new Options();
 
   private String path;
   private PrintWriter out;
+  private IndexedLogFile store;  // Indexed mode
+  private TimerTask commitTask;
+  private static Timer commitTimer;
 
   private final LinkedHashMap<String, String> cache;
   private final StatFig keyStats = new StatFig();
@@ -61,6 +82,11 @@ public class FileStringCache implements StringCache, LruCallback<String, String>
     this.path = path;
     this.readOnly = readOnly;
 
+    if (opts.indexed) {
+      initIndexed();
+      return;
+    }
+
     // Read existing.
     if (new File(path).exists()) {
       try {
@@ -84,6 +110,25 @@ public class FileStringCache implements StringCache, LruCallback<String, String>
     flush();
   }
 
+  private void initIndexed() {
+    if (readOnly && !new File(path).exists())
+      throw new RuntimeException("Cache file doesn't exist: " + path);
+    store = new IndexedLogFile(path, readOnly);
+    LogInfo.logs("Using indexed cache %s (%d entries)", path, store.size());
+    if (readOnly) return;
+
+    commitTask = new TimerTask() {
+      @Override
+      public void run() { store.commit(); }
+    };
+    synchronized (FileStringCache.class) {
+      if (commitTimer == null)
+        commitTimer = new Timer("FileStringCache-commit", true);
+    }
+    commitTimer.schedule(commitTask, opts.groupCommitMs, opts.groupCommitMs);
+    Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+  }
+
   private void flush() {
     if (readOnly)
       return;
@@ -123,7 +168,20 @@ public class FileStringCache implements StringCache, LruCallback<String, String>
     }
   }
 
-  public String get(String key) { return cache.get(key); }
+  public String get(String key) {
+    synchronized (cache) {
+      if (store == null) return cache.get(key);
+      String value = cache.get(key);
+      if (value != null) return value;
+    }
+    String value = store.get(key);
+    if (value != null) {
+      synchronized (cache) {
+        cache.put(key, value);
+      }
+    }
+    return value;
+  }
 
   public void put(String key, String value) {
     assert key.indexOf('\t') == -1 : key;
@@ -132,16 +190,60 @@ public class FileStringCache implements StringCache, LruCallback<String, String>
     if (opts.verbose >= 5) {
       logTrack("FileStringCache PUT (before)", key, value);
     }
-    cache.put(key, value);
-    if (out != null) { // Append mode
-      out.println(key + "\t" + value);
-      out.flush();
+    if (store != null) {
+      putIndexed(key, value);
+      return;
+    }
+    synchronized (cache) {
+      cache.put(key, value);
+      if (out != null) { // Append mode
+        out.println(key + "\t" + value);
+        out.flush();
+      }
+      if (numTouches++ % opts.flushFrequency == 0)
+        flush();
+    }
+  }
+
+  private void putIndexed(String key, String value) {
+    synchronized (cache) {
+      cache.put(key, value);
+      numTouches++;
     }
-    if (numTouches++ % opts.flushFrequency == 0)
-      flush();
+    store.put(key, value);
+    // Group commit: one write to disk for many puts
+    if (store.numUncommitted() >= opts.groupCommitSize)
+      store.commit();
+    if (numTouches % opts.indexSaveFrequency == 0)
+      store.saveIndex();
   }
 
-  public int size() { return cache.size(); }
+  public int size() { return store != null ? store.size() : cache.size(); }
+
+  // Write out everything pending and stop using the file.
+  public void close() {
+    if (store != null) {
+      if (commitTask != null) commitTask.cancel();
+      store.close();
+    } else if (out != null) {
+      out.close();
+    }
+  }
+
+  // Rewrite an indexed cache file, dropping values that were overwritten.
+  // Nothing else may be using the file.
+  public static void compact(String path) {
+    IndexedLogFile.compact(path);
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("Usage: FileStringCache <path>...  (compacts each indexed cache file)");
+      System.exit(1);
+    }
+    for (String path : args)
+      compact(path);
+  }
 
   @Override
   public void onEvict(Map.Entry<String, String> entry) {
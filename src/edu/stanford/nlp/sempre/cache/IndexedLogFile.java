@@ -0,0 +1,344 @@
+package edu.stanford.nlp.sempre.cache;
+
+import fig.basic.LogInfo;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only file of key\tvalue lines (the same format as the text
+ * FileStringCache) together with an index from key hashes to line offsets, so
+ * that values can be read on demand instead of loading the whole file.
+ *
+ * The index lives in |path|.index: a header (magic, length of the data it
+ * covers, number of entries), followed by (hash, offset) pairs sorted by hash.
+ * It is memory mapped and binary searched; keys written since it was last
+ * saved are kept in a small in-memory map.  Lines appended after the index was
+ * saved (e.g., after a crash) are indexed again when the file is opened.
+ *
+ * Writes are buffered and appended to the data file in batches by commit().
+ * A later line for the same key overrides earlier ones; compact() removes
+ * the overridden lines.
+ *
+ * Two keys with the same 64-bit hash can't both be stored; since the key is
+ * checked on every read, this only causes a cache miss.
+ */
+class IndexedLogFile implements Closeable {
+  private static final long MAGIC = 0x53435349445831L;  // "SCSIDX1"
+  private static final int HEADER_BYTES = 24;
+
+  private final String path;
+  private final String indexPath;
+  private final boolean readOnly;
+  private final FileChannel data;
+  private long dataLength;  // Bytes committed to the data file
+
+  // Saved index
+  private LongBuffer baseIndex;
+  private int baseCount;
+  // Keys indexed since the index was saved
+  private final TLongLongHashMap delta = new TLongLongHashMap(16, 0.5f, 0, -1);
+  private int numKeys;
+
+  // Writes not yet committed
+  private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+  private final Map<String, String> batchValues = new HashMap<>();
+
+  public IndexedLogFile(String path, boolean readOnly) {
+    this.path = path;
+    this.indexPath = path + ".index";
+    this.readOnly = readOnly;
+    try {
+      if (readOnly)
+        data = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+      else
+        data = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      dataLength = data.size();
+
+      long indexedLength = loadIndex();
+      if (indexedLength < dataLength) {
+        LogInfo.logs("IndexedLogFile: indexing %s from byte %d", path, indexedLength);
+        scan(indexedLength);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public String getPath() { return path; }
+  public int size() { return numKeys; }
+
+  public String get(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    long offset;
+    synchronized (this) {
+      String value = batchValues.get(key);
+      if (value != null) return value;
+      offset = lookup(hash(keyBytes, keyBytes.length));
+      if (offset < 0 || offset >= dataLength) return null;
+    }
+    // Committed lines never change, so they can be read without the lock.
+    try {
+      return readValue(offset, keyBytes);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public synchronized void put(String key, String value) {
+    if (readOnly) throw new RuntimeException("Read only: " + path);
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    long h = hash(keyBytes, keyBytes.length);
+    if (lookup(h) < 0) numKeys++;
+    delta.put(h, dataLength + batch.size());
+    batch.write(keyBytes, 0, keyBytes.length);
+    batch.write('\t');
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    batch.write(valueBytes, 0, valueBytes.length);
+    batch.write('\n');
+    batchValues.put(key, value);
+  }
+
+  public synchronized int numUncommitted() { return batchValues.size(); }
+
+  // Append the pending writes to the data file.
+  public synchronized void commit() {
+    if (batch.size() == 0) return;
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(batch.toByteArray());
+      while (buf.hasRemaining())
+        dataLength += data.write(buf, dataLength);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    batch.reset();
+    batchValues.clear();
+  }
+
+  // Commit and merge the keys written since the last save into the index file.
+  public synchronized void saveIndex() {
+    commit();
+    if (delta.isEmpty()) return;
+    long[] hashes = delta.keys();
+    Arrays.sort(hashes);
+    String tmpPath = indexPath + ".tmp";
+    int count = 0;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPath), 1 << 16))) {
+      out.writeLong(MAGIC);
+      out.writeLong(dataLength);
+      out.writeLong(numKeys);
+      // Merge the two sorted lists; delta overrides the saved index
+      int i = 0, j = 0;
+      while (i < baseCount || j < hashes.length) {
+        long h;
+        long offset;
+        if (j == hashes.length || (i < baseCount && baseIndex.get(2 * i) < hashes[j])) {
+          h = baseIndex.get(2 * i);
+          offset = baseIndex.get(2 * i + 1);
+          i++;
+        } else {
+          h = hashes[j];
+          offset = delta.get(h);
+          if (i < baseCount && baseIndex.get(2 * i) == h) i++;
+          j++;
+        }
+        out.writeLong(h);
+        out.writeLong(offset);
+        count++;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (count != numKeys)
+      throw new RuntimeException("Index of " + path + " has " + count + " entries, expected " + numKeys);
+    try {
+      Files.move(Paths.get(tmpPath), Paths.get(indexPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      delta.clear();
+      loadIndex();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (data.isOpen()) {
+      if (!readOnly)
+        saveIndex();
+      try {
+        data.close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  // Rewrite |path| keeping only the latest value of each key.  Nothing else may
+  // have the file open.
+  public static void compact(String path) {
+    String tmpPath = path + ".compact";
+    IndexedLogFile file = new IndexedLogFile(path, true);
+    long before = file.dataLength;
+    int kept = 0;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 16);
+         OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpPath), 1 << 16)) {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      long offset = 0;
+      int b;
+      while ((b = in.read()) != -1) {
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        byte[] bytes = line.toByteArray();
+        int tab = indexOf(bytes, (byte) '\t');
+        if (file.lookup(hash(bytes, tab)) == offset) {
+          out.write(bytes);
+          out.write('\n');
+          kept++;
+        }
+        offset += bytes.length + 1;
+        line.reset();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    file.close();
+    try {
+      Files.move(Paths.get(tmpPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.deleteIfExists(Paths.get(path + ".index"));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    // Rebuild the index
+    file = new IndexedLogFile(path, false);
+    LogInfo.logs("IndexedLogFile: compacted %s from %d to %d bytes (%d keys)", path, before, file.dataLength, kept);
+    file.close();
+  }
+
+  ////////////////////////////////////////////////////////////
+
+  // 64-bit FNV-1a over the first |n| bytes.
+  private static long hash(byte[] bytes, int n) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < n; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  private static int indexOf(byte[] bytes, byte b) {
+    for (int i = 0; i < bytes.length; i++)
+      if (bytes[i] == b) return i;
+    return bytes.length;
+  }
+
+  // Return the offset of the latest line with hash |h|, or -1.
+  private long lookup(long h) {
+    long offset = delta.get(h);
+    if (offset >= 0) return offset;
+    int lo = 0, hi = baseCount - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long midHash = baseIndex.get(2 * mid);
+      if (midHash < h) lo = mid + 1;
+      else if (midHash > h) hi = mid - 1;
+      else return baseIndex.get(2 * mid + 1);
+    }
+    return -1;
+  }
+
+  // Map the saved index; return how much of the data file it covers.
+  private long loadIndex() throws IOException {
+    baseIndex = null;
+    baseCount = 0;
+    numKeys = 0;
+    Path p = Paths.get(indexPath);
+    if (!Files.exists(p)) return 0;
+    try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new RuntimeException("Index too large to map: " + indexPath);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      while (header.hasRemaining() && channel.read(header) >= 0) { }
+      header.flip();
+      if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC) {
+        LogInfo.warnings("IndexedLogFile: ignoring invalid index %s", indexPath);
+        return 0;
+      }
+      long indexedLength = header.getLong();
+      long count = header.getLong();
+      if (indexedLength > dataLength || HEADER_BYTES + 16 * count != size) {
+        LogInfo.warnings("IndexedLogFile: index %s doesn't match %s, rebuilding", indexPath, path);
+        return 0;
+      }
+      baseIndex = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, size - HEADER_BYTES).asLongBuffer();
+      baseCount = (int) count;
+      numKeys = baseCount;
+      return indexedLength;
+    }
+  }
+
+  // Index the lines starting at |start|.  A final line without a newline was
+  // only partially written, so it is dropped.
+  private void scan(long start) throws IOException {
+    data.position(start);
+    InputStream in = new BufferedInputStream(Channels.newInputStream(data), 1 << 16);
+    long offset = start, lineStart = start;
+    long h = 0xcbf29ce484222325L;
+    boolean inKey = true;
+    int b;
+    while ((b = in.read()) != -1) {
+      offset++;
+      if (b == '\n') {
+        if (lookup(h) < 0) numKeys++;
+        delta.put(h, lineStart);
+        lineStart = offset;
+        h = 0xcbf29ce484222325L;
+        inKey = true;
+      } else if (b == '\t') {
+        inKey = false;
+      } else if (inKey) {
+        h ^= b;
+        h *= 0x100000001b3L;
+      }
+    }
+    if (lineStart < dataLength) {
+      LogInfo.warnings("IndexedLogFile: dropping partial line at the end of %s", path);
+      if (!readOnly) data.truncate(lineStart);
+      dataLength = lineStart;
+    }
+  }
+
+  // Read the line at |offset|, returning its value if its key is |keyBytes|.
+  private String readValue(long offset, byte[] keyBytes) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    ByteBuffer buf = ByteBuffer.allocate(Math.max(4096, keyBytes.length + 256));
+    long pos = offset;
+    while (true) {
+      buf.clear();
+      int n = data.read(buf, pos);
+      if (n <= 0) break;
+      int end = 0;
+      while (end < n && buf.get(end) != '\n') end++;
+      line.write(buf.array(), 0, end);
+      if (end < n) break;
+      pos += n;
+    }
+    byte[] bytes = line.toByteArray();
+    if (bytes.length <= keyBytes.length || bytes[keyBytes.length] != '\t') return null;
+    for (int i = 0; i < keyBytes.length; i++)
+      if (bytes[i] != keyBytes[i]) return null;
+    return new String(bytes, keyBytes.length + 1, bytes.length - keyBytes.length - 1, StandardCharsets.UTF_8);
+  }
+}
@@ -2,6 +2,9 @@ package edu.stanford.nlp.sempre.cache;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import fig.basic.LogInfo;
 
@@ -12,10 +15,14 @@ import fig.basic.LogInfo;
  */
 public class RemoteStringCache implements StringCache {
   public static final int NUM_TRIES = 5;
+  // Puts are pipelined: up to this many are sent before waiting for the
+  // server to acknowledge them.
+  public static final int MAX_PENDING_ACKS = 1000;
 
   private Socket socket;
   private PrintWriter out;
   private BufferedReader in;
+  private int numPendingAcks = 0;
 
   // Cache things locally.
   private FileStringCache local = new FileStringCache();
@@ -24,8 +31,9 @@ public class RemoteStringCache implements StringCache {
     try {
       LogInfo.begin_track("RemoteStringCache: connecting to %s:%s to access %s", host, port, path);
       this.socket = new Socket(host, port);
-      this.out = new PrintWriter(socket.getOutputStream(), true);
-      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      this.socket.setTcpNoDelay(true);
+      this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8")));
+      this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
       String response = makeRequest("open", path, null);
       LogInfo.logs("Using cache path=%s, host=%s, port=%s", path, host, port);
       if (!response.equals("OK")) {
@@ -42,26 +50,61 @@ public class RemoteStringCache implements StringCache {
   }
 
   public String makeRequest(String method, String key, String value) {
+    if (value == null)
+      return makeRequest(method + "\t" + key);
+    else
+      return makeRequest(method + "\t" + key + "\t" + value);
+  }
+
+  private String makeRequest(String request) {
     try {
-      if (value == null)
-        out.println(method + "\t" + key);
-      else
-        out.println(method + "\t" + key + "\t" + value);
+      out.println(request);
       out.flush();
+      readPendingAcks();
+      return readResponse();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // Send a put without waiting for the server; the acknowledgement is read
+  // before the next response.
+  private void sendPut(String request) {
+    out.println(request);
+    out.flush();
+    numPendingAcks++;
+    if (numPendingAcks >= MAX_PENDING_ACKS) {
+      try {
+        readPendingAcks();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private void readPendingAcks() throws IOException {
+    while (numPendingAcks > 0) {
+      numPendingAcks--;
+      String response = readResponse();
+      if (!"OK".equals(response))
+        throw new RuntimeException("put failed: " + response);
+    }
+  }
+
+  private String readResponse() throws IOException {
+    try {
       for (int i = 0; i < NUM_TRIES; i++) {
         try {
           String result = in.readLine();
           if (result.equals(StringCacheServer.nullString)) result = null;
           return result;
         } catch (NullPointerException e) {
-          LogInfo.logs("RemoteStringCache.makeRequest(%s, %s, %s) failed", method, key, value);
+          LogInfo.logs("RemoteStringCache: reading response failed");
         }
       }
       throw new NullPointerException();
     } catch (SocketTimeoutException e) {
       throw new RuntimeException(e);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
   }
 
@@ -73,10 +116,67 @@ public class RemoteStringCache implements StringCache {
     return value;
   }
 
+  // Look up several keys with one request.
+  public List<String> get(List<String> keys) {
+    List<String> values = new ArrayList<>(keys.size());
+    StringBuilder request = new StringBuilder("mget");
+    int numMissing = 0;
+    for (String key : keys) {
+      String value = local.get(key);
+      values.add(value);
+      if (value == null) {
+        request.append('\t').append(key);
+        numMissing++;
+      }
+    }
+    if (numMissing == 0) return values;
+    String[] remote = makeRequest(request.toString()).split("\t", -1);
+    if (remote.length != numMissing)
+      throw new RuntimeException("mget returned " + remote.length + " values, expected " + numMissing);
+    for (int i = 0, j = 0; i < values.size(); i++) {
+      if (values.get(i) != null) continue;
+      String value = remote[j++];
+      if (!value.equals(StringCacheServer.nullString)) {
+        values.set(i, value);
+        local.put(keys.get(i), value);
+      }
+    }
+    return values;
+  }
+
   public void put(String key, String value) {
     local.put(key, value);
-    makeRequest("put", key, value);
+    sendPut("put\t" + key + "\t" + value);
+  }
+
+  // Store several entries with one request.
+  public void put(Map<String, String> entries) {
+    if (entries.isEmpty()) return;
+    StringBuilder request = new StringBuilder("mput");
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      local.put(entry.getKey(), entry.getValue());
+      request.append('\t').append(entry.getKey()).append('\t').append(entry.getValue());
+    }
+    sendPut(request.toString());
+  }
+
+  // Wait until the server has stored all puts.
+  public void flush() {
+    try {
+      readPendingAcks();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   public int size() { return local.size(); }
+
+  public void close() {
+    flush();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
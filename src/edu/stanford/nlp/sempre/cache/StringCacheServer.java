@@ -4,19 +4,31 @@ import fig.basic.LogInfo;
 import fig.basic.Option;
 import fig.exec.Execution;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Date;
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Runs a server backed by a file which accepts requests of the following form:
  * get\t|key| put\t|key|\t|value|
+ * mget\t|key1|\t|key2|... (returns the values separated by tabs)
+ * mput\t|key1|\t|value1|\t|key2|\t|value2|...
+ * <p/>
+ * Clients can pipeline requests: send many before reading the responses,
+ * which come back in order.  One selector thread does all the socket I/O and
+ * a fixed pool of workers handles the requests; requests from one connection
+ * are handled in order, requests from different connections in parallel.
  * <p/>
  * You can test it out by doing: telnet <path> <port>
  * <p/>
@@ -29,122 +41,326 @@ public class StringCacheServer implements Runnable {
   @Option(gloss = "How much output to print") public int verbose = 0;
   @Option(gloss = "Read only") public boolean readOnly = false;
   @Option(gloss = "Only allow files in this directory") public String basePath;
+  @Option(gloss = "Number of threads handling requests") public int numWorkers = 8;
+  @Option(gloss = "Stop reading from a client while this many response bytes are waiting to be sent to it")
+  public int maxPendingOutput = 16 * 1024 * 1024;
 
   // Shared state
   private HashMap<String, FileStringCache> caches = new HashMap<String, FileStringCache>();
-  private boolean terminated = false;
+  private volatile boolean terminated = false;
+
+  private ServerSocketChannel serverChannel;
+  private Selector selector;
+  private ExecutorService workers;
+  // Connections with responses for the selector thread to send
+  private final Queue<Connection> toWrite = new ConcurrentLinkedQueue<>();
 
   // Represents the null value to be returned back to the user.
   public static String nullString = "__NULL__";
 
-  class ClientHandler implements Runnable {
-    Socket client;
+  class Connection implements Runnable {
+    final SocketChannel client;
     FileStringCache cache;
+    int numGets = 0, numPuts = 0, numErrors = 0;
+
+    // Bytes of the line being read (selector thread only)
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+    // Requests waiting for a worker; guarded by this
+    private final Deque<String> requests = new ArrayDeque<>();
+    private boolean scheduled = false;
+    // Responses waiting to be sent; guarded by this
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private ByteBuffer writing;  // Selector thread only
 
-    public ClientHandler(Socket client) {
+    Connection(SocketChannel client) {
       this.client = client;
     }
 
+    // Called by the selector thread with newly read bytes.
+    void received(ByteBuffer buf) {
+      List<String> lines = new ArrayList<>();
+      while (buf.hasRemaining()) {
+        byte b = buf.get();
+        if (b == '\n') {
+          String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+          if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+          lines.add(line);
+          partialLine.reset();
+        } else {
+          partialLine.write(b);
+        }
+      }
+      if (lines.isEmpty()) return;
+      synchronized (this) {
+        requests.addAll(lines);
+        if (scheduled) return;
+        scheduled = true;
+      }
+      workers.execute(this);
+    }
+
+    // Handle all queued requests, then hand the responses to the selector.
+    @Override
     public void run() {
-      try {
-        PrintWriter out = new PrintWriter(client.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+      while (true) {
         String line;
-        int numGets = 0, numPuts = 0, numErrors = 0;
-        while (!terminated && (line = in.readLine()) != null) {
-          // LogInfo.logs("Input: %s", line);
-          String[] tokens = line.split("\t");
-          String response = null;
-          if (tokens[0].equals("open") && tokens.length == 2) {
-            if (basePath != null && tokens[1].contains("/")) {
-              response = "ERROR: only simple file names allowed";
-            } else {
-              String path = tokens[1];
-              if (basePath != null)
-                path = new File(basePath, path).toString();
-              // Create the cache if necessary
-              synchronized (caches) {
-                cache = caches.get(path);
-                if (cache == null) {
-                  cache = new FileStringCache();
-                  caches.put(path, cache);
-                }
-              }
-              response = "OK";
-              synchronized (cache) {
-                if (cache.getPath() == null) {
-                  LogInfo.begin_track("Loading %s", path);
-                  try {
-                    cache.init(path, readOnly);
-                  } catch (Throwable t) {
-                    response = "ERROR: " + t;
-                  }
-                  LogInfo.logs("Response: %s", response);
-                  LogInfo.end_track();
-                }
-              }
-            }
-          } else if (tokens[0].equals("get") && tokens.length == 2) {
-            if (cache == null) {
-              response = "ERROR: no file opened yet";
-            } else {
-              synchronized (cache) { response = cache.get(tokens[1]); }
-              if (response == null) response = nullString;
-              numGets++;
-            }
-          } else if (tokens[0].equals("put") && tokens.length == 3) {
-            if (readOnly) {
-              response = "ERROR: read-only";
-            } else if (cache == null) {
-              response = "ERROR: no file opened yet";
-            } else {
-              synchronized (cache) { cache.put(tokens[1], tokens[2]); }
-              response = "OK";
-              numPuts++;
-            }
-          } else if (tokens[0].equals("stats")) {
-            response = "Caches:";
-            synchronized (caches) {
-              for (String path : caches.keySet())
-                response += "\n  " + path + " (" + caches.get(path).size() + " entries)";
-            }
-          } else if (tokens[0].equals("terminate")) {
-            if (readOnly) {
-              response = "ERROR: read-only";
-            } else {
-              response = "OK; telnet to the port again to terminate";
-              terminated = true;
+        synchronized (this) {
+          line = requests.poll();
+          if (line == null) {
+            scheduled = false;
+            break;
+          }
+        }
+        String response;
+        try {
+          response = handle(this, line);
+        } catch (Throwable t) {
+          response = "ERROR: " + t;
+          numErrors++;
+        }
+        byte[] bytes = (response + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+          output.write(bytes, 0, bytes.length);
+        }
+        // Send responses in batches rather than one by one
+        if (pendingOutput() >= 1 << 16) wakeWriter();
+      }
+      wakeWriter();
+    }
+
+    synchronized int pendingOutput() {
+      return output.size() + (writing == null ? 0 : writing.remaining());
+    }
+
+    private void wakeWriter() {
+      toWrite.add(this);
+      selector.wakeup();
+    }
+
+    // Called by the selector thread; returns whether everything was sent.
+    boolean write() throws IOException {
+      while (true) {
+        if (writing == null || !writing.hasRemaining()) {
+          synchronized (this) {
+            if (output.size() == 0) {
+              writing = null;
+              return true;
             }
-          } else if (tokens[0].equals("help")) {
-            response = "Commands (tab-separated):\n  open |path|\n  get |key|\n  put |key| |value|\n  terminate\n  stats\n  help";
-          } else {
-            response = "ERROR: " + line;
-            numErrors++;
+            writing = ByteBuffer.wrap(output.toByteArray());
+            output.reset();
           }
-          // LogInfo.logs("Response: %s", response);
-          out.println(response);
-          out.flush();
         }
-        in.close();
-        LogInfo.logs("[%s] Closed connection %s: %d gets, %d puts, %d errors", new Date(), client, numGets, numPuts, numErrors);
+        client.write(writing);
+        if (writing.hasRemaining()) return false;
+      }
+    }
+
+    void close() {
+      LogInfo.logs("[%s] Closed connection %s: %d gets, %d puts, %d errors", new Date(), client, numGets, numPuts, numErrors);
+      try {
+        client.close();
       } catch (IOException e) {
-        throw new RuntimeException(e);
+        // Already closed
       }
     }
   }
 
+  private String handle(Connection conn, String line) {
+    if (verbose >= 3) LogInfo.logs("Input: %s", line);
+    String[] tokens = line.split("\t", -1);
+    String response;
+    if (tokens[0].equals("open") && tokens.length == 2) {
+      response = open(conn, tokens[1]);
+    } else if (tokens[0].equals("get") && tokens.length == 2) {
+      if (conn.cache == null) {
+        response = "ERROR: no file opened yet";
+      } else {
+        response = conn.cache.get(tokens[1]);
+        if (response == null) response = nullString;
+        conn.numGets++;
+      }
+    } else if (tokens[0].equals("mget") && tokens.length >= 2) {
+      if (conn.cache == null) {
+        response = "ERROR: no file opened yet";
+      } else {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 1; i < tokens.length; i++) {
+          String value = conn.cache.get(tokens[i]);
+          if (i > 1) buf.append('\t');
+          buf.append(value == null ? nullString : value);
+        }
+        response = buf.toString();
+        conn.numGets += tokens.length - 1;
+      }
+    } else if ((tokens[0].equals("put") && tokens.length == 3) ||
+               (tokens[0].equals("mput") && tokens.length >= 3 && tokens.length % 2 == 1)) {
+      if (readOnly) {
+        response = "ERROR: read-only";
+      } else if (conn.cache == null) {
+        response = "ERROR: no file opened yet";
+      } else {
+        for (int i = 1; i < tokens.length; i += 2)
+          conn.cache.put(tokens[i], tokens[i + 1]);
+        response = "OK";
+        conn.numPuts += tokens.length / 2;
+      }
+    } else if (tokens[0].equals("stats")) {
+      response = "Caches:";
+      synchronized (caches) {
+        for (String path : caches.keySet())
+          response += "\n  " + path + " (" + caches.get(path).size() + " entries)";
+      }
+    } else if (tokens[0].equals("terminate")) {
+      if (readOnly) {
+        response = "ERROR: read-only";
+      } else {
+        response = "OK";
+        terminated = true;
+        selector.wakeup();
+      }
+    } else if (tokens[0].equals("help")) {
+      response = "Commands (tab-separated):\n  open |path|\n  get |key|\n  mget |key| ...\n  put |key| |value|\n" +
+          "  mput |key| |value| ...\n  terminate\n  stats\n  help";
+    } else {
+      response = "ERROR: " + line;
+      conn.numErrors++;
+    }
+    if (verbose >= 3) LogInfo.logs("Response: %s", response);
+    return response;
+  }
+
+  private String open(Connection conn, String path) {
+    if (basePath != null && path.contains("/"))
+      return "ERROR: only simple file names allowed";
+    if (basePath != null)
+      path = new File(basePath, path).toString();
+    // Create the cache if necessary
+    FileStringCache cache;
+    synchronized (caches) {
+      cache = caches.get(path);
+      if (cache == null) {
+        cache = new FileStringCache();
+        caches.put(path, cache);
+      }
+    }
+    String response = "OK";
+    synchronized (cache) {
+      if (cache.getPath() == null) {
+        LogInfo.begin_track("Loading %s", path);
+        try {
+          cache.init(path, readOnly);
+        } catch (Throwable t) {
+          response = "ERROR: " + t;
+        }
+        LogInfo.logs("Response: %s", response);
+        LogInfo.end_track();
+      }
+    }
+    conn.cache = cache;
+    return response;
+  }
+
+  // Start listening; returns the port (useful when |port| is 0).
+  public int bind() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    workers = Executors.newFixedThreadPool(numWorkers, r -> {
+      Thread t = new Thread(r, "StringCacheServer-worker");
+      t.setDaemon(true);
+      return t;
+    });
+    return serverChannel.socket().getLocalPort();
+  }
+
+  // Handle connections until terminated.
+  public void serve() throws IOException {
+    ByteBuffer readBuf = ByteBuffer.allocateDirect(1 << 16);
+    while (!terminated) {
+      selector.select();
+
+      Connection conn;
+      while ((conn = toWrite.poll()) != null) {
+        SelectionKey key = conn.client.keyFor(selector);
+        if (key == null || !key.isValid()) continue;
+        if (conn.write())
+          key.interestOps(SelectionKey.OP_READ);
+        else
+          key.interestOps(SelectionKey.OP_WRITE);
+      }
+
+      Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        if (!key.isValid()) continue;
+        if (key.isAcceptable()) {
+          SocketChannel client = serverChannel.accept();
+          if (client == null) continue;
+          LogInfo.logs("[%s] Opened connection from %s", new Date(), client);
+          client.configureBlocking(false);
+          client.socket().setTcpNoDelay(true);
+          client.register(selector, SelectionKey.OP_READ, new Connection(client));
+          continue;
+        }
+        conn = (Connection) key.attachment();
+        try {
+          if (key.isReadable()) {
+            readBuf.clear();
+            int n = conn.client.read(readBuf);
+            if (n < 0) {
+              key.cancel();
+              conn.close();
+              continue;
+            }
+            readBuf.flip();
+            conn.received(readBuf);
+            // Don't let a client that doesn't read its responses fill up memory
+            if (conn.pendingOutput() > maxPendingOutput)
+              key.interestOps(SelectionKey.OP_WRITE);
+          } else if (key.isWritable()) {
+            if (conn.write())
+              key.interestOps(SelectionKey.OP_READ);
+          }
+        } catch (IOException e) {
+          key.cancel();
+          conn.close();
+        }
+      }
+    }
+    shutdown();
+  }
+
+  private void shutdown() throws IOException {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection) {
+        Connection conn = (Connection) key.attachment();
+        conn.write();
+        conn.close();
+      }
+    }
+    serverChannel.close();
+    selector.close();
+    workers.shutdown();
+    synchronized (caches) {
+      for (FileStringCache cache : caches.values())
+        cache.close();
+    }
+    LogInfo.log("Done");
+  }
+
+  public void terminate() {
+    terminated = true;
+    selector.wakeup();
+  }
+
   public void run() {
     LogInfo.logs("[%s] Starting server on port %d", new Date(), port);
-
     try {
-      ServerSocket server = new ServerSocket(port);
-      while (!terminated) {
-        Socket client = server.accept();
-        LogInfo.logs("[%s] Opened connection from %s", new Date(), client);
-        Thread t = new Thread(new ClientHandler(client));
-        t.start();
-      }
-      LogInfo.log("Done");
+      bind();
+      serve();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,123 @@
+package edu.stanford.nlp.sempre.cache.test;
+
+import edu.stanford.nlp.sempre.cache.FileStringCache;
+import edu.stanford.nlp.sempre.cache.RemoteStringCache;
+import edu.stanford.nlp.sempre.cache.StringCacheServer;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+import fig.exec.Execution;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measure StringCacheServer throughput over loopback with many clients, each
+ * on its own connection, using single and batched requests.
+ */
+public class StringCacheServerBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Number of concurrent clients")
+    public int benchClients = 32;
+    @Option(gloss = "Number of keys each client reads and writes")
+    public int benchKeysPerClient = 2000;
+    @Option(gloss = "Number of keys per mget/mput")
+    public int benchBatchSize = 50;
+    @Option(gloss = "Length of each value")
+    public int benchValueLength = 200;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "StringCacheServerBenchmarkMain", new StringCacheServerBenchmark(),
+        "FileStringCache", FileStringCache.opts);
+  }
+
+  private interface Client {
+    void run(RemoteStringCache cache, List<String> keys, String value);
+  }
+
+  @Override
+  public void run() {
+    try {
+      File dir = Files.createTempDirectory("StringCacheServerBenchmark").toFile();
+      StringCacheServer server = new StringCacheServer();
+      server.port = 0;
+      server.basePath = dir.getPath();
+      int port = server.bind();
+      Thread serverThread = new Thread(() -> {
+        try {
+          server.serve();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      serverThread.start();
+
+      char[] chars = new char[opts.benchValueLength];
+      Arrays.fill(chars, 'v');
+      String value = new String(chars);
+
+      // Each client keeps its own local cache, so every phase uses new keys.
+      measure("put", port, value, (cache, keys, v) -> {
+        for (String key : keys)
+          cache.put(key, v);
+        cache.flush();
+      });
+      measure("get", port, value, (cache, keys, v) -> {
+        for (String key : keys)
+          cache.makeRequest("get", key, null);
+      });
+      measure("mput", port, value, (cache, keys, v) -> {
+        for (int i = 0; i < keys.size(); i += opts.benchBatchSize) {
+          Map<String, String> batch = new HashMap<>();
+          for (String key : keys.subList(i, Math.min(keys.size(), i + opts.benchBatchSize)))
+            batch.put(key, v);
+          cache.put(batch);
+        }
+        cache.flush();
+      });
+      measure("mget", port, value, (cache, keys, v) -> {
+        for (int i = 0; i < keys.size(); i += opts.benchBatchSize)
+          cache.get(keys.subList(i, Math.min(keys.size(), i + opts.benchBatchSize)));
+      });
+
+      server.terminate();
+      serverThread.join();
+      for (File file : dir.listFiles())
+        file.delete();
+      dir.delete();
+    } catch (IOException | InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void measure(String name, int port, String value, Client client) {
+    ExecutorService threads = Executors.newFixedThreadPool(opts.benchClients);
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int c = 0; c < opts.benchClients; c++) {
+      List<String> keys = new ArrayList<>();
+      for (int i = 0; i < opts.benchKeysPerClient; i++)
+        keys.add("client" + c + ":key" + i);
+      futures.add(threads.submit(() -> {
+        RemoteStringCache cache = new RemoteStringCache("bench", "localhost", port);
+        client.run(cache, keys, value);
+        cache.close();
+      }));
+    }
+    try {
+      for (Future<?> future : futures)
+        future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    threads.shutdown();
+    double secs = (System.nanoTime() - start) / 1e9;
+    double rate = opts.benchClients * opts.benchKeysPerClient / secs;
+    LogInfo.logs("%s: %.0f keys/s (%d clients)", name, rate, opts.benchClients);
+    Execution.putOutput(name, rate);
+  }
+}
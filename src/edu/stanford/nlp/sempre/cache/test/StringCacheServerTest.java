@@ -0,0 +1,95 @@
+package edu.stanford.nlp.sempre.cache.test;
+
+import edu.stanford.nlp.sempre.cache.RemoteStringCache;
+import edu.stanford.nlp.sempre.cache.StringCacheServer;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+/**
+ * Talk to a StringCacheServer over loopback.
+ */
+public class StringCacheServerTest {
+  private StringCacheServer server;
+  private Thread serverThread;
+  private int port;
+  private File dir;
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    dir = Files.createTempDirectory("StringCacheServerTest").toFile();
+    server = new StringCacheServer();
+    server.port = 0;
+    server.basePath = dir.getPath();
+    server.numWorkers = 4;
+    port = server.bind();
+    serverThread = new Thread(() -> {
+      try {
+        server.serve();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    serverThread.start();
+  }
+
+  @AfterClass
+  public void stopServer() throws InterruptedException {
+    server.terminate();
+    serverThread.join();
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  @Test(groups = "fs")
+  public void getAndPut() {
+    RemoteStringCache writer = new RemoteStringCache("cache", "localhost", port);
+    RemoteStringCache reader = new RemoteStringCache("cache", "localhost", port);
+    writer.put("a", "1");
+    writer.put("b", "2");
+    writer.flush();
+    assertEquals("1", reader.get("a"));
+    assertEquals(null, reader.get("missing"));
+
+    Map<String, String> entries = new LinkedHashMap<>();
+    entries.put("c", "3");
+    entries.put("d", "");
+    writer.put(entries);
+    writer.flush();
+    assertEquals(Arrays.asList("1", null, "3", "", "2"),
+        reader.get(Arrays.asList("a", "missing", "c", "d", "b")));
+  }
+
+  @Test(groups = "fs")
+  public void pipelinedRequestsAnsweredInOrder() throws IOException {
+    try (Socket socket = new Socket("localhost", port)) {
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      out.println("open\tpipelined");
+      for (int i = 0; i < 1000; i++)
+        out.println("put\tkey" + i + "\tval" + i);
+      for (int i = 0; i < 1000; i++)
+        out.println("get\tkey" + i);
+      out.println("mget\tkey7\tnone\tkey8");
+      out.println("bogus");
+      out.flush();
+
+      assertEquals("OK", in.readLine());
+      for (int i = 0; i < 1000; i++)
+        assertEquals("OK", in.readLine());
+      for (int i = 0; i < 1000; i++)
+        assertEquals("val" + i, in.readLine());
+      assertEquals("val7\t" + StringCacheServer.nullString + "\tval8", in.readLine());
+      assertEquals("ERROR: bogus", in.readLine());
+    }
+  }
+}
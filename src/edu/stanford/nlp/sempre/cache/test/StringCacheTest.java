@@ -8,6 +8,7 @@ import org.testng.annotations.Test;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -109,4 +110,63 @@ public class StringCacheTest {
 
     Files.deleteIfExists(fsPath);
   }
+
+  /**
+   * Check that an indexed cache reads values back after reopening, including
+   * lines written after the index was saved.
+   * @throws IOException
+   */
+  @Test(groups = "fs")
+  public void testIndexed() throws IOException {
+    FileStringCache.opts.indexed = true;
+    FileStringCache.opts.capacity = 1;
+    FileStringCache.opts.groupCommitSize = 7;
+    FileStringCache.opts.verbose = 0;
+
+    final String fs = "StringCacheTest-indexed.tmp";
+    final Path fsPath = FileSystems.getDefault().getPath(fs);
+    final Path indexPath = FileSystems.getDefault().getPath(fs + ".index");
+    try {
+      Files.deleteIfExists(fsPath);
+      Files.deleteIfExists(indexPath);
+      FileStringCache cache = new FileStringCache();
+      cache.init(fs);
+      for (int i = 0; i < 100; i++)
+        cache.put("key:" + i, "val:" + i);
+      cache.put("key:5", "new:5");
+      assertEquals("new:5", cache.get("key:5"));
+      assertEquals(100, cache.size());
+      cache.close();
+
+      // Append lines behind the index's back, plus a partially written one
+      PrintWriter out = IOUtils.openOutAppendHard(fs);
+      out.println("key:100\tval:100");
+      out.print("key:101\tval:1");
+      out.close();
+
+      cache = new FileStringCache();
+      cache.init(fs);
+      assertEquals(101, cache.size());
+      assertEquals("val:0", cache.get("key:0"));
+      assertEquals("new:5", cache.get("key:5"));
+      assertEquals("val:99", cache.get("key:99"));
+      assertEquals("val:100", cache.get("key:100"));
+      assertEquals(null, cache.get("key:101"));
+      assertEquals(null, cache.get("missing"));
+      cache.close();
+
+      // Compaction drops the overwritten value
+      FileStringCache.compact(fs);
+      assertEquals(101, numLines(IOUtils.openInHard(fs)));
+      cache = new FileStringCache();
+      cache.init(fs, true);
+      assertEquals("new:5", cache.get("key:5"));
+      assertEquals("val:100", cache.get("key:100"));
+      cache.close();
+    } finally {
+      FileStringCache.opts.indexed = false;
+      Files.deleteIfExists(fsPath);
+      Files.deleteIfExists(indexPath);
+    }
+  }
 }
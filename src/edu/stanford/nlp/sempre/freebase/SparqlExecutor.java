@@ -4,17 +4,13 @@ import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.cache.StringCache;
 import edu.stanford.nlp.sempre.cache.StringCacheUtils;
 import fig.basic.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 import com.google.common.collect.Lists;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -26,6 +22,16 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Convert a Formula into a SPARQL query and execute it against some RDF endpoint.
@@ -45,6 +51,12 @@ public class SparqlExecutor extends Executor {
     @Option(gloss = "Milliseconds to wait until reading connection times out")
     public int readTimeoutMs = 1 * 60 * 1000;
 
+    @Option(gloss = "Maximum number of requests to the SPARQL endpoint at a time")
+    public int maxConcurrentRequests = 8;
+
+    @Option(gloss = "Milliseconds to wait for the answer to a query, including the wait for a free connection (0 = no limit)")
+    public int queryTimeoutMs = 0;
+
     @Option(gloss = "Save all SPARQL queries in a file so we don't have to hit the SPARQL endpoint too often")
     public String cachePath;
 
@@ -70,8 +82,16 @@ public class SparqlExecutor extends Executor {
   public static Options opts = new Options();
 
   private final FreebaseInfo fbInfo;
+  // Maps a query to the serialized Value it denotes (or the ErrorValue).
+  // Older caches hold the XML response instead, which we still accept.
   private final StringCache query2xmlCache;
 
+  private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+  static {
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+  }
+
   // Statistics on Sparql requests
   private static class SparqlStats {
     private StatFig timeFig = new StatFig();
@@ -81,49 +101,73 @@ public class SparqlExecutor extends Executor {
 
   private SparqlStats queryStats = new SparqlStats();
 
+  // Requests to the endpoint run on these threads, so at most
+  // maxConcurrentRequests of them are in flight.  Concurrent executions of
+  // the same SPARQL query share one request.
+  private final ExecutorService requestPool;
+  private final ConcurrentMap<String, RequestTask> inFlight = new ConcurrentHashMap<>();
+
+  private class RequestTask extends FutureTask<ServerResponse> {
+    private final String cacheKey;
+
+    public RequestTask(String queryStr, String cacheKey, ValuesExtractor extractor) {
+      super(() -> fetch(queryStr, cacheKey, extractor));
+      this.cacheKey = cacheKey;
+    }
+
+    @Override
+    protected void done() {
+      inFlight.remove(cacheKey, this);
+    }
+  }
+
   public SparqlExecutor() {
     this.fbInfo = FreebaseInfo.getSingleton();
     this.query2xmlCache = StringCacheUtils.create(opts.cachePath);
+    AtomicInteger numThreads = new AtomicInteger();
+    this.requestPool = Executors.newFixedThreadPool(opts.maxConcurrentRequests, r -> {
+      Thread thread = new Thread(r, "sparql request #" + numThreads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
   }
 
   public class ServerResponse {
-    public ServerResponse(String xml) { this.xml = xml; }
+    public ServerResponse(Value value) { this.value = value; }
     public ServerResponse(ErrorValue error) { this.error = error; }
-    String xml;
+    Value value;
     ErrorValue error;
     long timeMs;
     boolean cached;  // Whether things were cached
     boolean beginTrack;  // Whether we started printing things out
   }
 
-  // Make a request to the given SPARQL endpoint.
-  // Return the XML.
-  public ServerResponse makeRequest(String queryStr, String endpointUrl) {
+  private static InputStream openQuery(String queryStr, String endpointUrl) throws IOException {
     if (endpointUrl == null)
       throw new RuntimeException("No SPARQL endpoint url specified");
+    String url = String.format("%s?query=%s&format=xml", endpointUrl, URLEncoder.encode(queryStr, "UTF-8"));
+    URLConnection conn = new URL(url).openConnection();
+    conn.setConnectTimeout(opts.connectTimeoutMs);
+    conn.setReadTimeout(opts.readTimeoutMs);
+    return conn.getInputStream();
+  }
 
-    try {
-      String url = String.format("%s?query=%s&format=xml", endpointUrl, URLEncoder.encode(queryStr, "UTF-8"));
-      URLConnection conn = new URL(url).openConnection();
-      conn.setConnectTimeout(opts.connectTimeoutMs);
-      conn.setReadTimeout(opts.readTimeoutMs);
-      InputStream in = conn.getInputStream();
-
-      // Read the response
-      StringBuilder buf = new StringBuilder();
-      BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-      String line;
-      while ((line = reader.readLine()) != null)
-        buf.append(line);
-
+  // Make a request to the given SPARQL endpoint and extract the value from
+  // the XML as it streams in.
+  public ServerResponse makeRequest(String queryStr, String endpointUrl, ValuesExtractor extractor) {
+    // Closing the stream lets the connection be reused
+    try (InputStream in = new BufferedInputStream(openQuery(queryStr, endpointUrl))) {
       // Check for blatant errors.
-      String result = buf.toString();
-      if (result.length() == 0)
+      in.mark(16);
+      byte[] start = new byte[15];
+      int n = in.read(start);
+      if (n <= 0)
         return new ServerResponse(ErrorValue.empty);
-      if (result.startsWith("<!DOCTYPE html>"))
+      if (new String(start, 0, n, "UTF-8").equals("<!DOCTYPE html>"))
         return new ServerResponse(ErrorValue.badFormat);
+      in.reset();
 
-      return new ServerResponse(buf.toString());
+      return extractor.extract(in);
     } catch (SocketTimeoutException e) {
       return new ServerResponse(ErrorValue.timeout);
     } catch (IOException e) {
@@ -158,31 +202,38 @@ public class SparqlExecutor extends Executor {
   }
 
   // Return
-  //  - XML
+  //  - The value (or error)
   //  - Whether to print out details (coincides with whether this query was cached).
-  public ServerResponse runQueryToGetXml(String queryStr, Formula formula) {
+  public ServerResponse runQuery(String queryStr, Formula formula, ValuesExtractor extractor) {
     if (opts.verbose >= 3) LogInfo.logs("SparqlExecutor.execute: %s", queryStr);
     ServerResponse response = null;
 
+    // Tables and lists of the same query are different values.
+    String cacheKey = opts.returnTable ? queryStr + " #table" : queryStr;
+
     // Note: only cache for concrete queries.
     boolean useCache = query2xmlCache != null;
 
     // Try to look the query up in the cache.
     if (useCache) {
       // Contents either encodes an error or not.
-      String contents = query2xmlCache.get(queryStr);
+      String contents;
+      synchronized (query2xmlCache) {
+        contents = query2xmlCache.get(cacheKey);
+      }
       if (contents != null) {
         ErrorValue error = ErrorValue.fromString(contents);
         if (error != null)
           response = new ServerResponse(error);
+        else if (contents.startsWith("<"))
+          response = extractor.extract(new StringReader(contents));
         else
-          response = new ServerResponse(contents);
+          response = new ServerResponse(Value.fromString(contents));
         response.cached = true;
       }
     }
 
     // If not cached, then make the actual request.
-    // if (response == null || response.xml == null || response.xml.contains("TIMEOUT")) {
     if (response == null) {
       // Note: begin_track without end_track
       if (opts.verbose >= 1) {
@@ -190,40 +241,61 @@ public class SparqlExecutor extends Executor {
         if (opts.verbose >= 2) LogInfo.logs("%s", queryStr);
       }
 
-      // Make actual request
-      StopWatch watch = new StopWatch();
-      watch.start();
-      response = makeRequest(queryStr, opts.endpointUrl);
-      watch.stop();
-      response.timeMs = watch.getCurrTimeLong();
+      response = request(queryStr, cacheKey, extractor);
       response.beginTrack = true;
-
-      if (useCache)
-        query2xmlCache.put(queryStr, response.error != null ? response.error.toString() : response.xml);
     }
     return response;
   }
 
-  public static NodeList extractResultsFromXml(ServerResponse response) {
-    return extractResultsFromXml(response.xml);
-  }
-  private static NodeList extractResultsFromXml(String xml) {
-    DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-    NodeList results = null;
+  // Get the answer to |queryStr| from the endpoint, sharing the request with
+  // any other thread asking for the same query.
+  private ServerResponse request(String queryStr, String cacheKey, ValuesExtractor extractor) {
+    RequestTask task = inFlight.get(cacheKey);
+    if (task == null) {
+      RequestTask newTask = new RequestTask(queryStr, cacheKey, extractor);
+      task = inFlight.putIfAbsent(cacheKey, newTask);
+      if (task == null) {
+        task = newTask;
+        requestPool.execute(task);
+      }
+    }
+
+    ServerResponse shared;
     try {
-      DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-      Document doc = docBuilder.parse(new InputSource(new StringReader(xml)));
-      results = doc.getElementsByTagName("result");
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    } catch (SAXException e) {
-      LogInfo.errors("XML: %s", xml);
-      // throw new RuntimeException(e);
-      return null;
-    } catch (ParserConfigurationException e) {
+      if (opts.queryTimeoutMs > 0)
+        shared = task.get(opts.queryTimeoutMs, TimeUnit.MILLISECONDS);
+      else
+        shared = task.get();
+    } catch (TimeoutException | CancellationException e) {
+      // Only this caller gives up: the request keeps running for the other
+      // callers waiting on it, and its answer still goes into the cache.
+      return new ServerResponse(ErrorValue.timeout);
+    } catch (InterruptedException e) {
       throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
     }
-    return results;
+
+    // Each caller gets its own copy, which it annotates
+    ServerResponse response = shared.error != null ? new ServerResponse(shared.error) : new ServerResponse(shared.value);
+    response.timeMs = shared.timeMs;
+    return response;
+  }
+
+  // Make the actual request (on a thread of requestPool) and cache the answer.
+  private ServerResponse fetch(String queryStr, String cacheKey, ValuesExtractor extractor) {
+    StopWatch watch = new StopWatch();
+    watch.start();
+    ServerResponse response = makeRequest(queryStr, opts.endpointUrl, extractor);
+    watch.stop();
+    response.timeMs = watch.getCurrTimeLong();
+
+    if (query2xmlCache != null) {
+      synchronized (query2xmlCache) {
+        query2xmlCache.put(cacheKey, response.error != null ? response.error.toString() : response.value.toString());
+      }
+    }
+    return response;
   }
 
   // Main entry point.
@@ -232,7 +304,7 @@ public class SparqlExecutor extends Executor {
     // Beta reduction should be triggered deliberately in the SemanticFn.
     return execute(formula, 0, opts.maxResults);
   }
-  public synchronized Response execute(Formula formula, int offset, int maxResults) {
+  public Response execute(Formula formula, int offset, int maxResults) {
     if (opts.verbose >= 3)
       LogInfo.logs("SparqlExecutor.execute: %s", formula);
     String prefix = "exec-";
@@ -247,7 +319,7 @@ public class SparqlExecutor extends Executor {
       return new Response(ErrorValue.badFormula(e), stats);
     }
 
-    ServerResponse serverResponse = runQueryToGetXml(converter.queryStr, formula);
+    ServerResponse serverResponse = runQuery(converter.queryStr, formula, new ValuesExtractor(formula, converter));
     stats.add(prefix + "cached", serverResponse.cached);
     if (!serverResponse.cached)
       stats.add(prefix + "time", serverResponse.timeMs);
@@ -256,15 +328,17 @@ public class SparqlExecutor extends Executor {
 
     // Update/print sparql stats
     if (!serverResponse.cached) {
-      queryStats.timeFig.add(serverResponse.timeMs);
-      if (serverResponse.error != null) {
-        MapUtils.incr(queryStats.errors, serverResponse.error.type, 1);
-        if (serverResponse.beginTrack && opts.verbose >= 1)
-          LogInfo.logs("Error: %s", serverResponse.error);
-      }
-      if (serverResponse.beginTrack && opts.verbose >= 2) {
-        LogInfo.logs("time: %s", queryStats.timeFig);
-        LogInfo.logs("errors: %s", queryStats.errors);
+      synchronized (queryStats) {
+        queryStats.timeFig.add(serverResponse.timeMs);
+        if (serverResponse.error != null) {
+          MapUtils.incr(queryStats.errors, serverResponse.error.type, 1);
+          if (serverResponse.beginTrack && opts.verbose >= 1)
+            LogInfo.logs("Error: %s", serverResponse.error);
+        }
+        if (serverResponse.beginTrack && opts.verbose >= 2) {
+          LogInfo.logs("time: %s", queryStats.timeFig);
+          LogInfo.logs("errors: %s", queryStats.errors);
+        }
       }
     }
 
@@ -279,11 +353,8 @@ public class SparqlExecutor extends Executor {
     if (!serverResponse.cached)
       stats.add(prefix + "error", false);
 
-    // Extract the results from XML now.
-    NodeList results = extractResultsFromXml(serverResponse.xml);
-    if (results == null) return new Response(ErrorValue.badFormat, stats);
-    Value value = new ValuesExtractor(serverResponse.beginTrack, formula, converter).extract(results);
-
+    Value value = serverResponse.value;
+    if (serverResponse.beginTrack && opts.verbose >= 2) LogInfo.logs("Value: %s", value);
     if (serverResponse.beginTrack && opts.verbose >= 1) LogInfo.end_track();
 
     return new Response(value, stats);
@@ -797,14 +868,13 @@ public class SparqlExecutor extends Executor {
   ////////////////////////////////////////////////////////////
   // Take results of executing an SparqlExpr and produce a List of values.
   class ValuesExtractor {
-    final boolean beginTrack;
     final Formula formula;
     final List<String> selectVars;
     final List<String> units;
     final List<String> header;
+    final int maxRows;  // Stop reading after this many rows (-1 for no limit)
 
-    public ValuesExtractor(boolean beginTrack, Formula formula, Converter converter) {
-      this.beginTrack = beginTrack;
+    public ValuesExtractor(Formula formula, Converter converter) {
       this.formula = formula;
 
       this.selectVars = Lists.newArrayList();
@@ -816,71 +886,91 @@ public class SparqlExecutor extends Executor {
         this.units.add(var.unit);
         this.header.add(var.description);
       }
+      this.maxRows = converter.query.limit;
     }
 
-    // |results| is (result (binding (uri ...)) ...) or (result (binding (literal ...)) ...)
-    Value extract(NodeList results) {
-      // For each result (row in a table)...
-      if (beginTrack && opts.verbose >= 2) {
-        LogInfo.begin_track("%d results", results.getLength());
-        if (opts.returnTable) LogInfo.logs("Header: %s", header);
+    ServerResponse extract(InputStream in) {
+      try {
+        return extract(xmlInputFactory.createXMLStreamReader(in));
+      } catch (XMLStreamException e) {
+        LogInfo.errors("Bad XML: %s", e);
+        return new ServerResponse(ErrorValue.badFormat);
       }
+    }
 
-      List<Value> firstValues = new ArrayList<Value>();  // If not returning a table
-      List<List<Value>> rows = new ArrayList<List<Value>>();  // If returning table
-
-      for (int i = 0; i < results.getLength(); i++) {
-        List<Value> row = nodeToValue(results.item(i));
-        if (opts.returnTable)
-          rows.add(row);
-        else
-          firstValues.add(row.get(0));
-        if (beginTrack && opts.verbose >= 2) LogInfo.logs("Row %d: %s", i, row);
+    ServerResponse extract(Reader in) {
+      try {
+        return extract(xmlInputFactory.createXMLStreamReader(in));
+      } catch (XMLStreamException e) {
+        LogInfo.errors("Bad XML: %s", e);
+        return new ServerResponse(ErrorValue.badFormat);
       }
-      if (beginTrack && opts.verbose >= 2) LogInfo.end_track();
-
-      if (opts.returnTable)
-        return new TableValue(header, rows);
-      else
-        return new ListValue(firstValues);
     }
 
-    private List<Value> nodeToValue(Node result) {
-      NodeList bindings = ((Element) result).getElementsByTagName("binding");
-
-      // For each variable in selectVars, we're going to keep track of an |id|
-      // (only for entities) and |description| (name or the literal value).
-      List<String> ids = Lists.newArrayList();
-      List<String> descriptions = Lists.newArrayList();
-      for (int j = 0; j < selectVars.size(); j++) {
-        ids.add(null);
-        descriptions.add(null);
+    // The results look like
+    //   <result><binding name="x1"><uri>...</uri></binding>...</result>
+    // or with <literal>...</literal> instead of <uri>...</uri>.
+    private ServerResponse extract(XMLStreamReader reader) throws XMLStreamException {
+      List<List<Value>> rows = new ArrayList<List<Value>>();
+
+      try {
+        // For each variable in selectVars, we're going to keep track of an |id|
+        // (only for entities) and |description| (name or the literal value).
+        String[] ids = null;
+        String[] descriptions = null;
+        int col = -1;  // Column of the current binding
+        while (reader.hasNext() && (maxRows < 0 || rows.size() < maxRows)) {
+          int event = reader.next();
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            switch (reader.getLocalName()) {
+              case "result":
+                ids = new String[selectVars.size()];
+                descriptions = new String[selectVars.size()];
+                break;
+              case "binding":
+                // Each binding contributes some information to one column
+                String var = "?" + reader.getAttributeValue(null, "name");
+                if (var.endsWith("name"))
+                  col = selectVars.indexOf(var.substring(0, var.length() - 4));
+                else
+                  col = selectVars.indexOf(var);
+                break;
+              case "uri":
+                String uri = emptyToNull(reader.getElementText());
+                if (col >= 0 && uri != null) ids[col] = FreebaseInfo.uri2id(uri);
+                break;
+              case "literal":
+                String literal = emptyToNull(reader.getElementText());
+                if (col >= 0 && literal != null) descriptions[col] = literal;
+                break;
+            }
+          } else if (event == XMLStreamConstants.END_ELEMENT && "result".equals(reader.getLocalName())) {
+            rows.add(toRow(ids, descriptions));
+          }
+        }
+      } finally {
+        reader.close();
       }
 
-      // For each binding j (contributes some information to one column)...
-      for (int j = 0; j < bindings.getLength(); j++) {
-        Element binding = (Element) bindings.item(j);
-
-        String var = "?" + binding.getAttribute("name");
-        int col;
-        if (var.endsWith("name"))
-          col = selectVars.indexOf(var.substring(0, var.length() - 4));
-        else
-          col = selectVars.indexOf(var);
-
-        String uri = getTagValue("uri", binding);
-        if (uri != null) ids.set(col, FreebaseInfo.uri2id(uri));
+      if (opts.returnTable)
+        return new ServerResponse(new TableValue(header, rows));
+      List<Value> firstValues = new ArrayList<Value>();
+      for (List<Value> row : rows)
+        firstValues.add(row.get(0));
+      return new ServerResponse(new ListValue(firstValues));
+    }
 
-        String literal = getTagValue("literal", binding);
-        if (literal != null) descriptions.set(col, literal);
-      }
+    private String emptyToNull(String s) {
+      return s.isEmpty() ? null : s;
+    }
 
+    private List<Value> toRow(String[] ids, String[] descriptions) {
       // Go through the selected variables and build the actual value
       List<Value> row = Lists.newArrayList();
       for (int j = 0; j < selectVars.size(); j++) {
         String unit = units.get(j);
-        String id = ids.get(j);
-        String description = descriptions.get(j);
+        String id = ids[j];
+        String description = descriptions[j];
 
         // Convert the string representation back to a value based on the unit.
         Value value = null;
@@ -906,19 +996,6 @@ public class SparqlExecutor extends Executor {
     }
   }
 
-  // Helper for parsing DOM.
-  // Return the inner text of of a child element of |elem| with tag |tag|.
-  public static String getTagValue(String tag, Element elem) {
-    NodeList nodes = elem.getElementsByTagName(tag);
-    if (nodes.getLength() == 0) return null;
-    if (nodes.getLength() > 1)
-      throw new RuntimeException("Multiple instances of " + tag);
-    nodes = nodes.item(0).getChildNodes();
-    if (nodes.getLength() == 0) return null;
-    Node value = nodes.item(0);
-    return value.getNodeValue();
-  }
-
   ////////////////////////////////////////////////////////////
 
   public static class MainOptions {
@@ -948,8 +1025,13 @@ public class SparqlExecutor extends Executor {
       }
     }
 
-    if (mainOpts.sparql != null)
-      LogInfo.logs("%s", executor.makeRequest(mainOpts.sparql, opts.endpointUrl).xml);
+    if (mainOpts.sparql != null) {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(openQuery(mainOpts.sparql, opts.endpointUrl), "UTF-8"))) {
+        String line;
+        while ((line = in.readLine()) != null)
+          LogInfo.logs("%s", line);
+      }
+    }
 
     LogInfo.end_track();
   }
@@ -0,0 +1,205 @@
+package edu.stanford.nlp.sempre.freebase.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.freebase.FreebaseInfo;
+import edu.stanford.nlp.sempre.freebase.SparqlExecutor;
+import fig.basic.LispTree;
+
+/**
+ * Test concurrent execution in SparqlExecutor against a local endpoint that
+ * serves canned XML after a delay.
+ */
+public class SparqlExecutorConcurrencyTest {
+  // A response with |numResults| results
+  private static String xml(int numResults) {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">");
+    xml.append("<head><variable name=\"x1\"/></head><results>");
+    for (int i = 0; i < numResults; i++) {
+      xml.append("<result><binding name=\"x1\"><uri>http://rdf.freebase.com/ns/en.city" + i + "</uri></binding>");
+      xml.append("<binding name=\"x1name\"><literal xml:lang=\"en\">City " + i + "</literal></binding></result>");
+    }
+    xml.append("</results></sparql>");
+    return xml.toString();
+  }
+
+  private HttpServer server;
+  private final AtomicInteger numRequests = new AtomicInteger();
+  private final AtomicInteger numActive = new AtomicInteger();
+  private final AtomicInteger maxActive = new AtomicInteger();
+  private volatile String xml = xml(1);
+
+  private SparqlExecutor.Options originalOptions;
+  private String originalSchemaPath;
+
+  @BeforeClass
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/sparql", exchange -> {
+      numRequests.incrementAndGet();
+      int active = numActive.incrementAndGet();
+      maxActive.accumulateAndGet(active, Math::max);
+      try {
+        Thread.sleep(300);
+        byte[] body = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } finally {
+        numActive.decrementAndGet();
+        exchange.close();
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+
+    originalOptions = SparqlExecutor.opts;
+    SparqlExecutor.opts = new SparqlExecutor.Options();
+    SparqlExecutor.opts.endpointUrl = "http://localhost:" + server.getAddress().getPort() + "/sparql";
+    SparqlExecutor.opts.verbose = 0;
+
+    File schema = File.createTempFile("schema", ".ttl");
+    schema.deleteOnExit();
+    originalSchemaPath = FreebaseInfo.opts.schemaPath;
+    FreebaseInfo.opts.schemaPath = schema.getPath();
+  }
+
+  @AfterClass
+  public void stopServer() {
+    server.stop(0);
+    SparqlExecutor.opts = originalOptions;
+    FreebaseInfo.opts.schemaPath = originalSchemaPath;
+  }
+
+  private void reset() {
+    numRequests.set(0);
+    maxActive.set(0);
+    xml = xml(1);
+  }
+
+  private static Formula formula(String entity) {
+    return Formulas.fromLispTree(LispTree.proto.parseFromString("(!fb:people.person.place_of_birth " + entity + ")"));
+  }
+
+  // Execute |formulas| at the same time, one per thread.
+  private static List<Value> executeAll(SparqlExecutor executor, List<Formula> formulas) throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(formulas.size());
+    List<Future<Value>> futures = new ArrayList<>();
+    for (Formula formula : formulas)
+      futures.add(threads.submit(() -> executor.execute(formula, null).value));
+    List<Value> values = new ArrayList<>();
+    for (Future<Value> future : futures)
+      values.add(future.get());
+    threads.shutdown();
+    return values;
+  }
+
+  @Test
+  public void executeFormula() {
+    reset();
+    Value value = new SparqlExecutor().execute(formula("fb:en.barack_obama"), null).value;
+    assertTrue(value.toString(), value instanceof ListValue);
+    assertEquals(1, ((ListValue) value).values.size());
+    assertEquals(1, numRequests.get());
+  }
+
+  @Test
+  public void identicalQueriesShareOneRequest() throws Exception {
+    reset();
+    SparqlExecutor executor = new SparqlExecutor();
+    List<Formula> formulas = new ArrayList<>();
+    for (int i = 0; i < 10; i++)
+      formulas.add(formula("fb:en.same"));
+    for (Value value : executeAll(executor, formulas))
+      assertEquals(1, ((ListValue) value).values.size());
+    assertEquals(1, numRequests.get());
+  }
+
+  @Test
+  public void distinctQueriesRunConcurrently() throws Exception {
+    reset();
+    SparqlExecutor.opts.maxConcurrentRequests = 3;
+    SparqlExecutor executor = new SparqlExecutor();
+    List<Formula> formulas = new ArrayList<>();
+    for (int i = 0; i < 9; i++)
+      formulas.add(formula("fb:en.distinct" + i));
+    for (Value value : executeAll(executor, formulas))
+      assertEquals(1, ((ListValue) value).values.size());
+    assertEquals(9, numRequests.get());
+    assertTrue("max active: " + maxActive.get(), maxActive.get() > 1);
+    assertTrue("max active: " + maxActive.get(), maxActive.get() <= 3);
+  }
+
+  @Test
+  public void slowQueriesTimeOut() {
+    reset();
+    SparqlExecutor.opts.queryTimeoutMs = 100;
+    try {
+      Value value = new SparqlExecutor().execute(formula("fb:en.slow"), null).value;
+      assertEquals(ErrorValue.timeout, value);
+    } finally {
+      SparqlExecutor.opts.queryTimeoutMs = 0;
+    }
+  }
+
+  @Test
+  public void timeoutOnlyAffectsOneWaiter() throws Exception {
+    reset();
+    SparqlExecutor executor = new SparqlExecutor();
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      // The first waiter gives up after 100 ms, the second one waits for the answer
+      SparqlExecutor.opts.queryTimeoutMs = 100;
+      Future<Value> impatient = threads.submit(() -> executor.execute(formula("fb:en.shared"), null).value);
+      while (numRequests.get() == 0)
+        Thread.sleep(5);
+      Thread.sleep(20);
+      SparqlExecutor.opts.queryTimeoutMs = 2000;
+      Future<Value> patient = threads.submit(() -> executor.execute(formula("fb:en.shared"), null).value);
+
+      assertEquals(ErrorValue.timeout, impatient.get());
+      Value value = patient.get();
+      assertTrue(value.toString(), value instanceof ListValue);
+      assertEquals(1, ((ListValue) value).values.size());
+      assertEquals(1, numRequests.get());
+    } finally {
+      SparqlExecutor.opts.queryTimeoutMs = 0;
+      threads.shutdown();
+    }
+  }
+
+  @Test
+  public void stopReadingAtLimitAndCacheValue() {
+    reset();
+    xml = xml(50);
+    SparqlExecutor executor = new SparqlExecutor();
+    Value value = executor.execute(formula("fb:en.many"), 0, 10).value;
+    assertEquals(10, ((ListValue) value).values.size());
+    assertEquals(new NameValue("fb:en.city3", "City 3"), ((ListValue) value).values.get(3));
+
+    // The second time comes from the cache
+    assertEquals(value, executor.execute(formula("fb:en.many"), 0, 10).value);
+    assertEquals(1, numRequests.get());
+  }
+}
@@ -0,0 +1,98 @@
+package edu.stanford.nlp.sempre.freebase.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.freebase.FreebaseInfo;
+import edu.stanford.nlp.sempre.freebase.SparqlExecutor;
+import fig.basic.*;
+import fig.exec.Execution;
+
+/**
+ * Measure how long SparqlExecutor takes to turn large SPARQL responses into
+ * values.  A local endpoint serves a canned response with benchNumResults
+ * results to every query.
+ */
+public class SparqlParsingBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Number of results in the canned response")
+    public int benchNumResults = 100000;
+    @Option(gloss = "Values of maxResults to benchmark")
+    public List<Integer> benchMaxResults = Arrays.asList(10, 1000, 100000);
+    @Option(gloss = "Number of queries per run")
+    public int benchQueries = 20;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "SparqlParsingBenchmarkMain", new SparqlParsingBenchmark(),
+        "SparqlExecutor", SparqlExecutor.opts, "FreebaseInfo", FreebaseInfo.opts);
+  }
+
+  private static byte[] makeResponse(int numResults) {
+    StringBuilder xml = new StringBuilder();
+    xml.append("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">");
+    xml.append("<head><variable name=\"x1\"/><variable name=\"x1name\"/></head><results>");
+    for (int i = 0; i < numResults; i++) {
+      xml.append("<result><binding name=\"x1\"><uri>http://rdf.freebase.com/ns/m.0").append(i).append("</uri></binding>");
+      xml.append("<binding name=\"x1name\"><literal xml:lang=\"en\">Entity number ").append(i).append("</literal></binding></result>");
+    }
+    xml.append("</results></sparql>");
+    return xml.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void run() {
+    byte[] response = makeResponse(opts.benchNumResults);
+    HttpServer server;
+    try {
+      server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      if (FreebaseInfo.opts.schemaPath == null || !new File(FreebaseInfo.opts.schemaPath).exists()) {
+        File schema = File.createTempFile("schema", ".ttl");
+        schema.deleteOnExit();
+        FreebaseInfo.opts.schemaPath = schema.getPath();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    server.createContext("/sparql", exchange -> {
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+      exchange.close();
+    });
+    server.start();
+    SparqlExecutor.opts.endpointUrl = "http://localhost:" + server.getAddress().getPort() + "/sparql";
+    SparqlExecutor.opts.verbose = 0;
+
+    try {
+      SparqlExecutor executor = new SparqlExecutor();
+      int n = 0;
+      for (int maxResults : opts.benchMaxResults) {
+        long start = System.nanoTime();
+        int valueSize = 0;
+        for (int i = 0; i < opts.benchQueries; i++) {
+          // A different query each time, so that nothing is cached
+          Formula formula = Formulas.fromLispTree(LispTree.proto.parseFromString(
+              "(!fb:people.person.place_of_birth fb:en.bench" + (n++) + ")"));
+          valueSize = executor.execute(formula, 0, maxResults).value.toString().length();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / opts.benchQueries;
+        LogInfo.logs("maxResults=%d: %.1f ms/query (response %d bytes, value %d chars)",
+            maxResults, ms, response.length, valueSize);
+        Execution.putOutput("maxResults" + maxResults, ms);
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+}
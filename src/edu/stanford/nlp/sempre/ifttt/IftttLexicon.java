@@ -137,7 +137,7 @@ public class IftttLexicon {
   }
 
   private static final Map<String, IftttLexicon> instances = new HashMap<>();
-  private final GenericObjectCache<LexiconKey, List<Entry>> cache = new GenericObjectCache<>(1024);
+  private final GenericObjectCache<LexiconKey, List<Entry>> cache = new GenericObjectCache<>(4096);
   private final DataSource dataSource;
   private final String languageTag;
 
@@ -793,13 +793,17 @@ public final class OvernightFeatureComputer implements FeatureComputer {
   }
 
   // Compute the items for the input utterance.
+  // Derivations of one example can be featurized concurrently (see
+  // FloatingParser.Options.numExpansionThreads), so lock the example.
   private ItemList computeInputItems(Example ex) {
-    ItemList items = getItems(ex.getTempState());
-    if (items.valid)
+    synchronized (ex) {
+      ItemList items = getItems(ex.getTempState());
+      if (items.valid)
+        return items;
+      populateItems(ex.getTokens(), ex.languageInfo.nerTags, ex.languageInfo.nerValues, items);
+      LogInfo.logs("input %s, items %s", ex.utterance, items);
       return items;
-    populateItems(ex.getTokens(), ex.languageInfo.nerTags, ex.languageInfo.nerValues, items);
-    LogInfo.logs("input %s, items %s", ex.utterance, items);
-    return items;
+    }
   }
 
   // Compute the items for a partial canonical utterance.
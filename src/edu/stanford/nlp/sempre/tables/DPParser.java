@@ -1,10 +1,11 @@
 package edu.stanford.nlp.sempre.tables;
 
 import java.util.*;
+import java.util.function.Consumer;
 
 import edu.stanford.nlp.sempre.*;
 import fig.basic.*;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 
 /**
  * A DPParser parses utterances like a FloatingParser,
@@ -287,8 +288,23 @@ class DPParserState extends ParserState {
   // Apply Rule
   // ============================================================
 
+  // A new derivation with the data that addToChart records about it
+  class ChartEntry {
+    public final Derivation deriv;
+    public final DenotationIngredient ingredient;
+    public final BackPointer bp1, bp2;
+
+    public ChartEntry(Derivation deriv, DenotationIngredient ingredient, BackPointer bp1, BackPointer bp2) {
+      this.deriv = deriv;
+      this.ingredient = ingredient;
+      this.bp1 = bp1;
+      this.bp2 = bp2;
+    }
+  }
+
+  // Add the executed derivations that survive pruning to |entries|.
   private void applyRule(Rule rule, int start, int end, int depth,
-      String cell1, Derivation child1, String cell2, Derivation child2) {
+      String cell1, Derivation child1, String cell2, Derivation child2, List<ChartEntry> entries) {
     if (Parser.opts.verbose >= 5)
       LogInfo.logs("applyRule %s [%s:%s] depth=%s, %s %s", rule, start, end, depth, child1, child2);
 
@@ -319,49 +335,80 @@ class DPParserState extends ParserState {
     while (results.hasNext()) {
       Derivation newDeriv = results.next();
       if (pruner.isPruned(newDeriv)) continue;
-      if (depth == -1) {
-        // Anchored rule
-        addToChart(anchoredCell(rule.lhs, start, end), newDeriv, ingredient, bp1, bp2);
-        addToChart(floatingCell(rule.lhs, 0), newDeriv, ingredient, bp1, bp2);
-      } else {
-        // Floating rule
-        if (DPParser.opts.collapseFirstPass && currentPass == ParsingPass.FIRST) {
-          for (int lowerDepth = 0; lowerDepth <= depth; lowerDepth++) {
-            Map<Value, Metadata> denotationToData = getCellsForCurrentPass().get(floatingCell(rule.lhs, lowerDepth));
-            if (lowerDepth == depth || (denotationToData != null && denotationToData.containsKey(newDeriv.value))) {
-              addToChart(floatingCell(rule.lhs, lowerDepth), newDeriv, ingredient, bp1, bp2);
-              break;
-            }
+      ensureExecuted(newDeriv);
+      entries.add(new ChartEntry(newDeriv, ingredient, bp1, bp2));
+    }
+  }
+
+  private void addAnchoredToChart(Rule rule, int start, int end, List<ChartEntry> entries) {
+    for (ChartEntry entry : entries) {
+      addToChart(anchoredCell(rule.lhs, start, end), entry.deriv, entry.ingredient, entry.bp1, entry.bp2);
+      addToChart(floatingCell(rule.lhs, 0), entry.deriv, entry.ingredient, entry.bp1, entry.bp2);
+    }
+  }
+
+  private void addFloatingToChart(Rule rule, int depth, List<ChartEntry> entries) {
+    for (ChartEntry entry : entries) {
+      Derivation newDeriv = entry.deriv;
+      newDeriv.renewCreationIndex();
+      if (DPParser.opts.collapseFirstPass && currentPass == ParsingPass.FIRST) {
+        for (int lowerDepth = 0; lowerDepth <= depth; lowerDepth++) {
+          Map<Value, Metadata> denotationToData = getCellsForCurrentPass().get(floatingCell(rule.lhs, lowerDepth));
+          if (lowerDepth == depth || (denotationToData != null && denotationToData.containsKey(newDeriv.value))) {
+            addToChart(floatingCell(rule.lhs, lowerDepth), newDeriv, entry.ingredient, entry.bp1, entry.bp2);
+            break;
           }
-        } else {
-          addToChart(floatingCell(rule.lhs, depth), newDeriv, ingredient, bp1, bp2);
         }
+      } else {
+        addToChart(floatingCell(rule.lhs, depth), newDeriv, entry.ingredient, entry.bp1, entry.bp2);
       }
     }
   }
 
   private void applyAnchoredRule(Rule rule, int start, int end) {
-    applyRule(rule, start, end, -1, null, null, null, null);
+    applyAnchoredRule(rule, start, end, null, null, null, null);
   }
   private void applyAnchoredRule(Rule rule, int start, int end,
       String cell1, Derivation child1) {
-    applyRule(rule, start, end, -1, cell1, child1, null, null);
+    applyAnchoredRule(rule, start, end, cell1, child1, null, null);
   }
   private void applyAnchoredRule(Rule rule, int start, int end,
       String cell1, Derivation child1, String cell2, Derivation child2) {
-    applyRule(rule, start, end, -1, cell1, child1, cell2, child2);
+    List<ChartEntry> entries = new ArrayList<>();
+    applyRule(rule, start, end, -1, cell1, child1, cell2, child2, entries);
+    addAnchoredToChart(rule, start, end, entries);
   }
 
-  private void applyFloatingRule(Rule rule, int depth) {
-    applyRule(rule, -1, -1, depth, null, null, null, null);
+  private void applyFloatingRule(Rule rule, int depth, List<ChartEntry> results) {
+    applyRule(rule, -1, -1, depth, null, null, null, null, results);
   }
   private void applyFloatingRule(Rule rule, int depth,
-      String cell1, Derivation child1) {
-    applyRule(rule, -1, -1, depth, cell1, child1, null, null);
+      String cell1, Derivation child1, List<ChartEntry> results) {
+    applyRule(rule, -1, -1, depth, cell1, child1, null, null, results);
   }
   private void applyFloatingRule(Rule rule, int depth,
-      String cell1, Derivation child1, String cell2, Derivation child2) {
-    applyRule(rule, -1, -1, depth, cell1, child1, cell2, child2);
+      String cell1, Derivation child1, String cell2, Derivation child2, List<ChartEntry> results) {
+    applyRule(rule, -1, -1, depth, cell1, child1, cell2, child2, results);
+  }
+
+  // The chart entries that |rule| builds over some of its children.  The
+  // expansions of one depth only read cells of lower depths, so they can run
+  // concurrently (see FloatingParser.runExpansions); their entries are then
+  // added to the chart in the order in which the expansions were created.
+  class Expansion implements Runnable {
+    public final Rule rule;
+    public final Consumer<List<ChartEntry>> build;
+    public final List<ChartEntry> entries = new ArrayList<>();
+
+    public Expansion(Rule rule, Consumer<List<ChartEntry>> build) {
+      this.rule = rule;
+      this.build = build;
+    }
+
+    @Override
+    public void run() {
+      build.accept(entries);
+    }
   }
 
   // ============================================================
@@ -452,12 +499,14 @@ class DPParserState extends ParserState {
 
   // Build floating derivations of exactly depth |depth|.
   private void buildFloating(int depth) {
+    List<Expansion> expansions = new ArrayList<>();
+
     // Apply unary tokens on spans (rule $A (a))
     if (depth == 1) {
       for (Rule rule : parser.grammar.getRules()) {
         if (!rule.isFloating()) continue;
         if (rule.rhs.size() != 1 || rule.isCatUnary()) continue;
-        applyFloatingRule(rule, depth);
+        expansions.add(new Expansion(rule, results -> applyFloatingRule(rule, depth, results)));
       }
     }
 
@@ -471,48 +520,22 @@ class DPParserState extends ParserState {
 
       if (!Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // token token
         if (depth == 1)
-          applyFloatingRule(rule, depth);
+          expansions.add(new Expansion(rule, results -> applyFloatingRule(rule, depth, results)));
       } else if (!Rule.isCat(rhs1) && Rule.isCat(rhs2)) {  // token $Cat
-        String cell = floatingCell(rhs2, depth - 1);
-        List<Derivation> derivations = getDerivations(cell);
-        for (Derivation deriv : derivations)
-          applyFloatingRule(rule, depth, cell, deriv);
+        addUnaryExpansion(expansions, rule, depth, floatingCell(rhs2, depth - 1));
       } else if (Rule.isCat(rhs1) && !Rule.isCat(rhs2)) {  // $Cat token
-        String cell = floatingCell(rhs1, depth - 1);
-        List<Derivation> derivations = getDerivations(cell);
-        for (Derivation deriv : derivations)
-          applyFloatingRule(rule, depth, cell, deriv);
+        addUnaryExpansion(expansions, rule, depth, floatingCell(rhs1, depth - 1));
       } else {  // $Cat $Cat
         if (FloatingParser.opts.useSizeInsteadOfDepth) {
           for (int depth1 = 0; depth1 < depth; depth1++) {
             int depth2 = depth - 1 - depth1;
-            String cell1 = floatingCell(rhs1, depth1);
-            String cell2 = floatingCell(rhs2, depth2);
-            List<Derivation> derivations1 = getDerivations(cell1);
-            List<Derivation> derivations2 = getDerivations(cell2);
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, cell1, deriv1, cell2, deriv2);
+            addBinaryExpansions(expansions, rule, depth, floatingCell(rhs1, depth1), floatingCell(rhs2, depth2));
           }
         } else {
-          for (int subDepth = 0; subDepth < depth; subDepth++) {  // depth-1 <=depth-1
-            String cell1 = floatingCell(rhs1, depth - 1);
-            String cell2 = floatingCell(rhs2, subDepth);
-            List<Derivation> derivations1 = getDerivations(cell1);
-            List<Derivation> derivations2 = getDerivations(cell2);
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, cell1, deriv1, cell2, deriv2);
-          }
-          for (int subDepth = 0; subDepth < depth - 1; subDepth++) {  // <depth-1 depth-1
-            String cell1 = floatingCell(rhs1, subDepth);
-            String cell2 = floatingCell(rhs2, depth - 1);
-            List<Derivation> derivations1 = getDerivations(cell1);
-            List<Derivation> derivations2 = getDerivations(cell2);
-            for (Derivation deriv1 : derivations1)
-              for (Derivation deriv2 : derivations2)
-                applyFloatingRule(rule, depth, cell1, deriv1, cell2, deriv2);
-          }
+          for (int subDepth = 0; subDepth < depth; subDepth++)  // depth-1 <=depth-1
+            addBinaryExpansions(expansions, rule, depth, floatingCell(rhs1, depth - 1), floatingCell(rhs2, subDepth));
+          for (int subDepth = 0; subDepth < depth - 1; subDepth++)  // <depth-1 depth-1
+            addBinaryExpansions(expansions, rule, depth, floatingCell(rhs1, subDepth), floatingCell(rhs2, depth - 1));
         }
       }
     }
@@ -521,10 +544,31 @@ class DPParserState extends ParserState {
     // Important: do this in topologically sorted order and after all the binaries are done.
     for (Rule rule : parser.getCatUnaryRules()) {
       if (!rule.isFloating()) continue;
-      String cell = floatingCell(rule.rhs.get(0), depth - 1);
-      List<Derivation> derivations = getDerivations(cell);
+      addUnaryExpansion(expansions, rule, depth, floatingCell(rule.rhs.get(0), depth - 1));
+    }
+
+    ((FloatingParser) parser).runExpansions(expansions);
+    for (Expansion expansion : expansions)
+      addFloatingToChart(expansion.rule, depth, expansion.entries);
+  }
+
+  private void addUnaryExpansion(List<Expansion> expansions, Rule rule, int depth, String cell) {
+    List<Derivation> derivations = getDerivations(cell);
+    expansions.add(new Expansion(rule, results -> {
       for (Derivation deriv : derivations)
-        applyFloatingRule(rule, depth, cell, deriv);
+        applyFloatingRule(rule, depth, cell, deriv, results);
+    }));
+  }
+
+  // One expansion for each first child, since there can be many pairs
+  private void addBinaryExpansions(List<Expansion> expansions, Rule rule, int depth, String cell1, String cell2) {
+    List<Derivation> derivations2 = getDerivations(cell2);
+    if (derivations2.isEmpty()) return;
+    for (Derivation deriv1 : getDerivations(cell1)) {
+      expansions.add(new Expansion(rule, results -> {
+        for (Derivation deriv2 : derivations2)
+          applyFloatingRule(rule, depth, cell1, deriv1, cell2, deriv2, results);
+      }));
     }
   }
 
@@ -555,7 +599,7 @@ class DPParserState extends ParserState {
     collectFinalDerivations();
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new TObjectDoubleHashMap<>();
+      expectedCounts = new TIntDoubleHashMap();
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
     StopWatchSet.end();
@@ -83,8 +83,10 @@ public class FuzzyMatcher {
         MapUtils.addToSet(phraseToUnaryFormulas, s, unary);
         MapUtils.addToSet(phraseToBinaryFormulas, s, binary);
       }
-      // entity
+      // entity (cells with the same id have the same string, so only do each id once)
+      Set<String> seenIds = new HashSet<>();
       for (TableCell cell : column.children) {
+        if (!seenIds.add(cell.properties.id)) continue;
         Formula entity = new ValueFormula<>(cell.properties.entityNameValue);
         allEntityFormulas.add(entity);
         for (String s : getAllCollapsedForms(cell.properties.originalString))
@@ -93,7 +93,9 @@ public final class StringNormalizationUtils {
   // Type Conversion
   // ============================================================
 
-  public static final NumberFormat numberFormat = NumberFormat.getInstance(Locale.US);
+  // NumberFormat is not thread-safe, and tables can be loaded in parallel
+  private static final ThreadLocal<NumberFormat> numberFormat =
+      ThreadLocal.withInitial(() -> NumberFormat.getInstance(Locale.US));
 
   /**
    * Convert string to number.
@@ -101,7 +103,7 @@ public final class StringNormalizationUtils {
    */
   public static NumberValue parseNumberLenient(String s) {
     try {
-      Number parsed = numberFormat.parse(s.replace(" ", ""));
+      Number parsed = numberFormat.get().parse(s.replace(" ", ""));
       return new NumberValue(parsed.doubleValue());
     } catch (ParseException e) {
       return null;
@@ -114,7 +116,7 @@ public final class StringNormalizationUtils {
    */
   public static NumberValue parseNumberStrict(String s) {
     ParsePosition pos = new ParsePosition(0);
-    Number parsed = numberFormat.parse(s, pos);
+    Number parsed = numberFormat.get().parse(s, pos);
     if (parsed == null || s.length() != pos.getIndex()) return null;
     return new NumberValue(parsed.doubleValue());
   }
@@ -127,7 +129,7 @@ public final class StringNormalizationUtils {
     String[] tokens = s.split(" ");
     if (tokens.length != 2) return null;
     ParsePosition pos = new ParsePosition(0);
-    Number parsed = numberFormat.parse(tokens[0], pos);
+    Number parsed = numberFormat.get().parse(tokens[0], pos);
     if (parsed == null || tokens[0].length() != pos.getIndex()) return null;
     return new NumberValue(parsed.doubleValue(), tokens[1]);
   }
@@ -227,7 +229,7 @@ public final class StringNormalizationUtils {
   public static NumberValue nameValueToNumberValue(NameValue v) {
     if (v.description == null) return null;
     try {
-      Number result = numberFormat.parse(v.description);
+      Number result = numberFormat.get().parse(v.description);
       return new NumberValue(result.doubleValue());
     } catch (ParseException e) {
       return null;
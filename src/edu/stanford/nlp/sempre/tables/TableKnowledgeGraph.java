@@ -1,13 +1,19 @@
 package edu.stanford.nlp.sempre.tables;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import au.com.bytecode.opencsv.CSVReader;
 import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.lambdadcs.InfiniteUnaryDenotation.ComparisonUnaryDenotation;
 import edu.stanford.nlp.sempre.tables.lambdadcs.LambdaDCSException;
 import edu.stanford.nlp.sempre.tables.lambdadcs.LambdaDCSException.Type;
 import fig.basic.*;
+import gnu.trove.list.array.TIntArrayList;
 
 /**
  * A knowledge graph constructed from a table.
@@ -35,6 +41,8 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
     public boolean normalizeBeforeCreatingId = true;
     @Option(gloss = "Forbid row.row.next on multiple rows")
     public boolean forbidNextOnManyRows = true;
+    @Option(gloss = "Directory for caching preprocessed tables, shared across runs (null = no caching)")
+    public String tableCacheDir = null;
   }
   public static Options opts = new Options();
 
@@ -164,6 +172,11 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
   Map<String, TableCellProperties> cellIdToTableCellProperties;
   FuzzyMatcher fuzzyMatcher;
 
+  // Indexes for joins (see buildIndexes)
+  List<Map<String, TIntArrayList>> columnCellIdToRowIndices;
+  Map<Value, Map<Value, List<TableCell>>> cellPropertyToValueToCells;
+  Map<Value, NumberIndex> cellPropertyToNumberIndex;
+
   // ============================================================
   // Constructor
   // ============================================================
@@ -172,13 +185,29 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
    * Constructor (not visible to public)
    */
   TableKnowledgeGraph(String filename) {
+    this.filename = filename;
+    File file = new File(opts.baseCSVDir, filename);
+    try {
+      File cacheFile = (opts.tableCacheDir == null) ? null : new File(opts.tableCacheDir, getCacheKey(file) + ".bin");
+      if (cacheFile != null && cacheFile.exists()) {
+        readCache(cacheFile);
+      } else {
+        readCSV(file);
+        if (cacheFile != null) writeCache(cacheFile);
+      }
+      // Precompute normalized strings for fuzzy matching
+      fuzzyMatcher = new FuzzyMatcher(this);
+      buildIndexes();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void readCSV(File file) throws IOException {
     // Cells in the same column with the same string content gets the same id.
     Map<Pair<TableColumn, String>, String> columnAndOriginalStringToCellId = new HashMap<>();
 
-    // Read the CSV file
-    this.filename = filename;
-    filename = new File(opts.baseCSVDir, filename).getPath();
-    try (CSVReader csv = new CSVReader(new FileReader(filename))) {
+    try (CSVReader csv = new CSVReader(new FileReader(file))) {
       for (String[] record : csv) {
         if (columns == null) {
           // Initialize
@@ -233,26 +262,28 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
       // Generate cell properties by analyzing cell content in each column
       for (TableColumn column : columns)
         StringNormalizationUtils.analyzeColumn(column);
-      // Precompute normalized strings for fuzzy matching
-      fuzzyMatcher = new FuzzyMatcher(this);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
     }
   }
 
   // Cache (don't create multiple graphs for the same CSV file)
-  static final Map<String, TableKnowledgeGraph> filenameToGraph = new HashMap<>();
+  static final Map<String, TableKnowledgeGraph> filenameToGraph = new ConcurrentHashMap<>();
+  // Different files are loaded in parallel, but each file is only loaded once
+  private static final Map<String, Object> filenameToLock = new ConcurrentHashMap<>();
 
-  public static synchronized TableKnowledgeGraph fromFilename(String filename) {
+  public static TableKnowledgeGraph fromFilename(String filename) {
     // Get from cache if possible
     TableKnowledgeGraph graph = filenameToGraph.get(filename);
-    if (graph == null) {
-      if (opts.verbose >= 1)
-        LogInfo.logs("create new TableKnowledgeGraph from filename = %s", filename);
-      StopWatchSet.begin("TableKnowledgeGraph.new");
-      graph = new TableKnowledgeGraph(filename);
-      StopWatchSet.end();
-      filenameToGraph.put(filename, graph);
+    if (graph != null) return graph;
+    synchronized (filenameToLock.computeIfAbsent(filename, k -> new Object())) {
+      graph = filenameToGraph.get(filename);
+      if (graph == null) {
+        if (opts.verbose >= 1)
+          LogInfo.logs("create new TableKnowledgeGraph from filename = %s", filename);
+        StopWatchSet.begin("TableKnowledgeGraph.new");
+        graph = new TableKnowledgeGraph(filename);
+        StopWatchSet.end();
+        filenameToGraph.put(filename, graph);
+      }
     }
     return graph;
   }
@@ -261,6 +292,170 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
     return fromFilename(tree.child(2).value);
   }
 
+  // ============================================================
+  // Binary cache
+  // ============================================================
+
+  // Increment when the cache format or the table preprocessing changes
+  private static final int CACHE_MAGIC = 0x54424c43, CACHE_VERSION = 1;
+
+  /**
+   * Hash of everything that determines the preprocessed table:
+   * the CSV content, the options used during preprocessing, and the analyzer.
+   */
+  private static String getCacheKey(File file) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    String settings = CACHE_VERSION + "\t" + opts.normalizeBeforeCreatingId + "\t" +
+        StringNormalizationUtils.opts.useLanguageAnalyzer + "\t" + LanguageAnalyzer.getSingleton().getClass().getName();
+    digest.update(settings.getBytes(StandardCharsets.UTF_8));
+    digest.update(Files.readAllBytes(file.toPath()));
+    StringBuilder key = new StringBuilder();
+    for (byte b : digest.digest())
+      key.append(String.format("%02x", b));
+    return key.toString();
+  }
+
+  private void writeCache(File cacheFile) throws IOException {
+    if (columns == null) return;
+    // Cell properties in the order they were created
+    Map<TableCellProperties, Integer> propertiesToIndex = new LinkedHashMap<>();
+    for (TableRow row : rows)
+      for (TableCell cell : row.children)
+        if (!propertiesToIndex.containsKey(cell.properties))
+          propertiesToIndex.put(cell.properties, propertiesToIndex.size());
+    // Write to a temporary file, then move it, so that other processes never see a partial file
+    Files.createDirectories(cacheFile.getParentFile().toPath());
+    Path tmp = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+      out.writeInt(CACHE_MAGIC);
+      out.writeInt(CACHE_VERSION);
+      out.writeInt(columns.size());
+      for (TableColumn column : columns) {
+        writeString(out, column.originalString);
+        writeString(out, column.fieldName);
+      }
+      out.writeInt(propertiesToIndex.size());
+      for (TableCellProperties properties : propertiesToIndex.keySet()) {
+        writeString(out, properties.id);
+        writeString(out, properties.originalString);
+        out.writeInt(properties.metadata.size());
+        for (Map.Entry<Value, Value> entry : properties.metadata.entrySet()) {
+          writeValue(out, entry.getKey());
+          writeValue(out, entry.getValue());
+        }
+      }
+      out.writeInt(rows.size());
+      for (TableRow row : rows)
+        for (TableCell cell : row.children)
+          out.writeInt(propertiesToIndex.get(cell.properties));
+    }
+    Files.move(tmp, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void readCache(File cacheFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16))) {
+      if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION)
+        throw new RuntimeException("Not a table cache file: " + cacheFile);
+      rows = new ArrayList<>();
+      columns = new ArrayList<>();
+      rowNameToTableRow = new HashMap<>();
+      columnNameToTableColumn = new HashMap<>();
+      propertyIdToTableColumn = new HashMap<>();
+      cellIdToTableCellProperties = new HashMap<>();
+      int numColumns = in.readInt();
+      for (int i = 0; i < numColumns; i++) {
+        String originalString = readString(in), fieldName = readString(in);
+        TableColumn column = new TableColumn(originalString, fieldName, i);
+        columns.add(column);
+        columnNameToTableColumn.put(fieldName, column);
+        propertyIdToTableColumn.put(column.propertyNameValue.id, column);
+      }
+      TableCellProperties[] allProperties = new TableCellProperties[in.readInt()];
+      for (int i = 0; i < allProperties.length; i++) {
+        String id = readString(in), originalString = readString(in);
+        TableCellProperties properties = new TableCellProperties(id, originalString);
+        int numMetadata = in.readInt();
+        for (int j = 0; j < numMetadata; j++) {
+          Value key = readValue(in);
+          properties.metadata.put(key, readValue(in));
+        }
+        cellIdToTableCellProperties.put(id, properties);
+        allProperties[i] = properties;
+      }
+      int numRows = in.readInt();
+      for (int i = 0; i < numRows; i++) {
+        TableRow row = new TableRow(i);
+        rowNameToTableRow.put(row.entityNameValue.id, row);
+        rows.add(row);
+        for (TableColumn column : columns)
+          TableCell.createAndAddTo(allProperties[in.readInt()], column, row);
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) return null;
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Cell metadata values, written exactly (LispTree would round the numbers)
+  private static void writeValue(DataOutputStream out, Value value) throws IOException {
+    if (value instanceof NameValue) {
+      out.writeByte('I');
+      writeString(out, ((NameValue) value).id);
+      writeString(out, ((NameValue) value).description);
+    } else if (value instanceof NumberValue) {
+      out.writeByte('N');
+      out.writeDouble(((NumberValue) value).value);
+      writeString(out, ((NumberValue) value).unit);
+    } else if (value instanceof StringValue) {
+      out.writeByte('S');
+      writeString(out, ((StringValue) value).value);
+    } else if (value instanceof DateValue) {
+      DateValue date = (DateValue) value;
+      out.writeByte('D');
+      out.writeInt(date.year);
+      out.writeInt(date.month);
+      out.writeInt(date.day);
+      out.writeInt(date.hour);
+      out.writeInt(date.minute);
+      out.writeDouble(date.second);
+    } else {
+      out.writeByte('L');
+      writeString(out, value.toLispTree().toString());
+    }
+  }
+
+  private static Value readValue(DataInputStream in) throws IOException {
+    switch (in.readByte()) {
+      case 'I': {
+        String id = readString(in);
+        return new NameValue(id, readString(in));
+      }
+      case 'N': {
+        double value = in.readDouble();
+        return new NumberValue(value, readString(in));
+      }
+      case 'S': return new StringValue(readString(in));
+      case 'D': return new DateValue(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readDouble());
+      case 'L': return Value.fromString(readString(in));
+      default: throw new RuntimeException("Corrupted table cache");
+    }
+  }
+
   // ============================================================
   // Convert to other formats
   // ============================================================
@@ -308,6 +503,135 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
     return fuzzyMatcher.getAllFormulas(mode);
   }
 
+  // ============================================================
+  // Indexes
+  // ============================================================
+
+  /**
+   * Cells with a number property, sorted by the number.
+   * Only built when all values of the property are numbers.
+   */
+  static class NumberIndex {
+    final double[] values;
+    final TableCell[] cells;
+
+    NumberIndex(List<TableCell> cells, Value property) {
+      this.cells = cells.toArray(new TableCell[0]);
+      Arrays.sort(this.cells, (c1, c2) -> Double.compare(number(c1, property), number(c2, property)));
+      this.values = new double[this.cells.length];
+      for (int i = 0; i < this.cells.length; i++)
+        values[i] = number(this.cells[i], property);
+    }
+
+    private static double number(TableCell cell, Value property) {
+      return ((NumberValue) cell.properties.metadata.get(property)).value;
+    }
+
+    // Index of the first value >= x (or > x if |strict|)
+    private int search(double x, boolean strict) {
+      int lo = 0, hi = values.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (values[mid] < x || (strict && values[mid] == x)) lo = mid + 1;
+        else hi = mid;
+      }
+      return lo;
+    }
+
+    List<TableCell> range(String comparator, double x) {
+      int from, to;
+      switch (comparator) {
+        case "<":  from = 0; to = search(x, false); break;
+        case "<=": from = 0; to = search(x, true); break;
+        case ">":  from = search(x, true); to = values.length; break;
+        case ">=": from = search(x, false); to = values.length; break;
+        default: return null;
+      }
+      return Arrays.asList(cells).subList(from, to);
+    }
+  }
+
+  /**
+   * Build the indexes used to answer joins in time proportional to the
+   * number of matches instead of the size of the table:
+   * - for each column, cell id => indices of the rows containing that cell
+   * - for each cell property, property value => cells with that value
+   * - for each number-valued cell property, the cells sorted by value
+   */
+  private void buildIndexes() {
+    columnCellIdToRowIndices = new ArrayList<>();
+    cellPropertyToValueToCells = new HashMap<>();
+    for (TableColumn column : columns) {
+      Map<String, TIntArrayList> cellIdToRowIndices = new HashMap<>();
+      for (TableCell cell : column.children) {
+        TIntArrayList rowIndices = cellIdToRowIndices.get(cell.properties.id);
+        if (rowIndices == null)
+          cellIdToRowIndices.put(cell.properties.id, rowIndices = new TIntArrayList());
+        rowIndices.add(cell.parentRow.index);
+        for (Map.Entry<Value, Value> entry : cell.properties.metadata.entrySet()) {
+          MapUtils.addToList(cellPropertyToValueToCells.computeIfAbsent(entry.getKey(), k -> new HashMap<>()),
+              entry.getValue(), cell);
+        }
+      }
+      columnCellIdToRowIndices.add(cellIdToRowIndices);
+    }
+    cellPropertyToNumberIndex = new HashMap<>();
+    for (Map.Entry<Value, Map<Value, List<TableCell>>> entry : cellPropertyToValueToCells.entrySet()) {
+      List<TableCell> cells = new ArrayList<>();
+      boolean allNumbers = true;
+      for (Map.Entry<Value, List<TableCell>> valueAndCells : entry.getValue().entrySet()) {
+        if (!(valueAndCells.getKey() instanceof NumberValue)) {
+          allNumbers = false;
+          break;
+        }
+        cells.addAll(valueAndCells.getValue());
+      }
+      if (allNumbers)
+        cellPropertyToNumberIndex.put(entry.getKey(), new NumberIndex(cells, entry.getKey()));
+    }
+  }
+
+  // Sort cells in the order of a column-by-column scan.
+  private void sortCells(List<TableCell> cells) {
+    final int numRows = rows.size();
+    cells.sort((c1, c2) -> Integer.compare(
+        c1.parentColumn.index * numRows + c1.parentRow.index,
+        c2.parentColumn.index * numRows + c2.parentRow.index));
+  }
+
+  private TableColumn getColumn(Value r) {
+    return (r instanceof NameValue) ? propertyIdToTableColumn.get(((NameValue) r).id) : null;
+  }
+
+  /**
+   * Return the cells whose property |r| is in |seconds| using the indexes,
+   * or null if the indexes can't answer the query.
+   */
+  private List<TableCell> getCellsWithProperty(Value r, Collection<Value> seconds) {
+    if (seconds.size() != Integer.MAX_VALUE) {
+      List<TableCell> cells = new ArrayList<>();
+      Map<Value, List<TableCell>> valueToCells = cellPropertyToValueToCells.get(r);
+      if (valueToCells == null) return cells;
+      for (Value value : new HashSet<>(seconds)) {
+        List<TableCell> matches = valueToCells.get(value);
+        if (matches != null) cells.addAll(matches);
+      }
+      sortCells(cells);
+      return cells;
+    }
+    if (seconds instanceof ComparisonUnaryDenotation) {
+      ComparisonUnaryDenotation comparison = (ComparisonUnaryDenotation) seconds;
+      NumberIndex index = cellPropertyToNumberIndex.get(r);
+      if (index == null || !(comparison.value instanceof NumberValue)) return null;
+      List<TableCell> range = index.range(comparison.comparator, ((NumberValue) comparison.value).value);
+      if (range == null) return null;
+      List<TableCell> cells = new ArrayList<>(range);
+      sortCells(cells);
+      return cells;
+    }
+    return null;
+  }
+
   // ============================================================
   // Query
   // ============================================================
@@ -421,8 +745,9 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
             }
           }
         } else {
-          for (int i = 0; i < columns.size(); i++) {
-            if (!r.equals(columns.get(i).propertyNameValue)) continue;
+          TableColumn column = getColumn(r);
+          if (column != null) {
+            int i = column.index;
             for (Value value : seconds) {
               if (!(value instanceof NameValue)) continue;
               TableRow row = rowNameToTableRow.get(((NameValue) value).id);
@@ -491,17 +816,40 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
       } else if (TableTypeSystem.isCellProperty(r)) {
         // (fb:cell.cell.number (number 5)) --> {fb:cell_id.5 fb:cell_population.5, ...}
         // Possibly with repeated id (if there are multiple cells with that id)
-        for (TableColumn column : columns) {
-          for (TableCell cell : column.children) {
-            Value property = cell.properties.metadata.get(r);
-            if (property == null || !seconds.contains(property)) continue;
-            answer.add(new Pair<>(cell.properties.entityNameValue, property));
+        List<TableCell> cells = getCellsWithProperty(r, seconds);
+        if (cells != null) {
+          for (TableCell cell : cells)
+            answer.add(new Pair<>(cell.properties.entityNameValue, cell.properties.metadata.get(r)));
+        } else {
+          for (TableColumn column : columns) {
+            for (TableCell cell : column.children) {
+              Value property = cell.properties.metadata.get(r);
+              if (property == null || !seconds.contains(property)) continue;
+              answer.add(new Pair<>(cell.properties.entityNameValue, property));
+            }
           }
         }
       } else {
         // (fb:column.nationality fb:cell.canada) --> fb:row.r5
-        for (int i = 0; i < columns.size(); i++) {
-          if (!r.equals(columns.get(i).propertyNameValue)) continue;
+        TableColumn column = getColumn(r);
+        if (column == null) {
+          // No such column
+        } else if (seconds.size() != Integer.MAX_VALUE) {
+          int i = column.index;
+          TIntArrayList rowIndices = new TIntArrayList();
+          Set<String> seen = new HashSet<>();
+          for (Value value : seconds) {
+            if (!(value instanceof NameValue) || !seen.add(((NameValue) value).id)) continue;
+            TIntArrayList matches = columnCellIdToRowIndices.get(i).get(((NameValue) value).id);
+            if (matches != null) rowIndices.addAll(matches);
+          }
+          rowIndices.sort();
+          for (int j = 0; j < rowIndices.size(); j++) {
+            TableRow row = rows.get(rowIndices.get(j));
+            answer.add(new Pair<>(row.entityNameValue, row.children.get(i).properties.entityNameValue));
+          }
+        } else {
+          int i = column.index;
           for (TableRow row : rows) {
             if (!seconds.contains(row.children.get(i).properties.entityNameValue)) continue;
             answer.add(new Pair<>(row.entityNameValue, row.children.get(i).properties.entityNameValue));
@@ -567,9 +915,63 @@ public class TableKnowledgeGraph extends KnowledgeGraph {
     TableColumn column = propertyIdToTableColumn.get(property);
     if (column == null) return null;
     List<Integer> answer = new ArrayList<>();
-    for (int i = 0; i < column.children.size(); i++) {
-      if (column.children.get(i).properties.id.equals(nameValueId))
-        answer.add(i);
+    TIntArrayList rowIndices = columnCellIdToRowIndices.get(column.index).get(nameValueId);
+    if (rowIndices != null) {
+      for (int j = 0; j < rowIndices.size(); j++)
+        answer.add(rowIndices.get(j));
+    }
+    return answer;
+  }
+
+  /** Return the index of the row entity |value|, or -1 if |value| is not a row of this table */
+  public int getRowIndex(Value value) {
+    if (!(value instanceof NameValue)) return -1;
+    TableRow row = rowNameToTableRow.get(((NameValue) value).id);
+    return row == null ? -1 : row.index;
+  }
+
+  public NameValue getRowValue(int index) {
+    return rows.get(index).entityNameValue;
+  }
+
+  /**
+   * If joinSecond(r, seconds) is a list of distinct rows in increasing order,
+   * return the indices of those rows. Otherwise return null.
+   */
+  public BitSet joinSecondRows(Value r, Collection<Value> seconds) {
+    if (isReversedRelation(r) != null) return null;
+    BitSet answer = new BitSet(rows.size());
+    if (r.equals(TYPE)) {
+      // (fb:type.object.type fb:type.row)
+      if (seconds.size() != 1 || !ROW_TYPE.equals(seconds.iterator().next())) return null;
+      answer.set(0, rows.size());
+    } else if (r.equals(TableTypeSystem.ROW_INDEX_VALUE)) {
+      // (fb:row.row.index (> (number 5)))
+      if (seconds.size() != Integer.MAX_VALUE) return null;
+      for (TableRow row : rows) {
+        if (seconds.contains(row.indexValue)) answer.set(row.index);
+      }
+    } else if (r.equals(TableTypeSystem.ROW_NEXT_VALUE) || TableTypeSystem.isCellProperty(r)) {
+      return null;
+    } else {
+      // (fb:row.row.nationality fb:cell.canada)
+      TableColumn column = getColumn(r);
+      if (column == null) {
+        // No such column
+      } else if (seconds.size() != Integer.MAX_VALUE) {
+        Map<String, TIntArrayList> cellIdToRowIndices = columnCellIdToRowIndices.get(column.index);
+        for (Value value : seconds) {
+          if (!(value instanceof NameValue)) continue;
+          TIntArrayList matches = cellIdToRowIndices.get(((NameValue) value).id);
+          if (matches == null) continue;
+          for (int j = 0; j < matches.size(); j++)
+            answer.set(matches.get(j));
+        }
+      } else {
+        for (TableRow row : rows) {
+          if (seconds.contains(row.children.get(column.index).properties.entityNameValue)) answer.set(row.index);
+        }
+      }
     }
     return answer;
   }
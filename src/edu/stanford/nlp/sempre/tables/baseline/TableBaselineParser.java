@@ -6,7 +6,7 @@ import edu.stanford.nlp.sempre.*;
 import edu.stanford.nlp.sempre.tables.TableKnowledgeGraph;
 import edu.stanford.nlp.sempre.tables.TableTypeSystem;
 import fig.basic.LogInfo;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 
 /**
  * Baseline parser for table.
@@ -48,7 +48,7 @@ class TableBaselineParserState extends ParserState {
     // Execute + Compute expected counts
     ensureExecuted();
     if (computeExpectedCounts) {
-      expectedCounts = new TObjectDoubleHashMap<>();
+      expectedCounts = new TIntDoubleHashMap();
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
     LogInfo.end_track();
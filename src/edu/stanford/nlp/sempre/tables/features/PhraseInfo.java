@@ -79,22 +79,27 @@ public class PhraseInfo {
     return "\"" + text + "\"";
   }
 
-  // Caching
-  public static final Map<Example, List<PhraseInfo>> phraseInfosCache = new HashMap<>();
+  // Caching: the list is kept in the example's temporary state, which the
+  // Parser clears once the example has been parsed.
+  public static final String TEMP_STATE_KEY = "phraseInfos";
 
-  public static synchronized List<PhraseInfo> getPhraseInfos(Example ex) {
-    List<PhraseInfo> phraseInfos = phraseInfosCache.get(ex);
-    if (phraseInfos == null) {
-      phraseInfos = new ArrayList<>();
-      List<String> tokens = ex.languageInfo.tokens;
-      for (int s = 1; s <= opts.maxPhraseLength; s++) {
-        for (int i = 0; i <= tokens.size() - s; i++) {
-          phraseInfos.add(new PhraseInfo(ex, i, i + s));
+  @SuppressWarnings("unchecked")
+  public static List<PhraseInfo> getPhraseInfos(Example ex) {
+    synchronized (ex) {
+      Map<String, Object> tempState = ex.getTempState();
+      List<PhraseInfo> phraseInfos = (List<PhraseInfo>) tempState.get(TEMP_STATE_KEY);
+      if (phraseInfos == null) {
+        phraseInfos = new ArrayList<>();
+        List<String> tokens = ex.languageInfo.tokens;
+        for (int s = 1; s <= opts.maxPhraseLength; s++) {
+          for (int i = 0; i <= tokens.size() - s; i++) {
+            phraseInfos.add(new PhraseInfo(ex, i, i + s));
+          }
         }
+        tempState.put(TEMP_STATE_KEY, phraseInfos);
       }
-      phraseInfosCache.put(ex, phraseInfos);
+      return phraseInfos;
     }
-    return phraseInfos;
   }
 
 }
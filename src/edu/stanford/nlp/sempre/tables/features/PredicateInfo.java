@@ -27,6 +27,8 @@ public class PredicateInfo {
     public int maxPredicateLength = 40;
     @Option(gloss = "Perform beta reduction before finding predicates")
     public boolean betaReduce = false;
+    @Option(gloss = "Maximum number of strings in the lemma cache")
+    public int lemmaCacheSize = 100000;
   }
   public static Options opts = new Options();
 
@@ -81,17 +83,28 @@ public class PredicateInfo {
   // Get original strings and lemmas
   // ============================================================
 
-  // Lemma cache
-  private static final Map<String, String> lemmaCache = new HashMap<>();
+  // Lemma cache (least recently used strings are evicted)
+  private static final Map<String, String> lemmaCache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > opts.lemmaCacheSize;
+    }
+  };
 
   // Helper function: get lemma form
-  public static synchronized String getLemma(String s) {
+  public static String getLemma(String s) {
     if (s == null || s.trim().isEmpty()) return null;
-    String lemma = lemmaCache.get(s);
+    String lemma;
+    synchronized (lemmaCache) {
+      lemma = lemmaCache.get(s);
+    }
     if (lemma == null) {
+      // Analyze outside the lock so that other threads aren't blocked
       LanguageInfo langInfo = LanguageAnalyzer.getSingleton().analyze(s);
       lemma = (langInfo.numTokens() == 0) ? "" : langInfo.lemmaPhrase(0, langInfo.numTokens());
-      lemmaCache.put(s, lemma);
+      synchronized (lemmaCache) {
+        lemmaCache.put(s, lemma);
+      }
     }
     return lemma;
   }
@@ -1,60 +1,131 @@
 package edu.stanford.nlp.sempre.tables.lambdadcs;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 import fig.basic.*;
 
 /**
  * Cache the executed values of LambdaDCSExecutor.
  *
+ * Entries are keyed by (metakey, key), usually (graph, formula), and the least
+ * recently used entries are evicted once there are more than maxCacheSize.
+ * The cache is split into segments with separate locks so that threads
+ * executing formulas on different examples rarely wait for each other.
+ *
  * @author ppasupat
  */
 public final class ExecutorCache {
   public static class Options {
     @Option(gloss = "maximum number of entries to retain")
-    public int maxCacheSize = 1;
+    public int maxCacheSize = 100000;
   }
   public static Options opts = new Options();
 
   public static final ExecutorCache singleton = new ExecutorCache();
 
-  private final Map<Object, Map<Object, Object>> cache;
-  private final Map<Object, Long> lastUsed;
-  private long timestamp = 0;
+  private static final int NUM_SEGMENTS = 16;
+
+  private static final class Key {
+    final Object metakey, key;
+    final int hash;
+
+    Key(Object metakey, Object key) {
+      this.metakey = metakey;
+      this.key = key;
+      this.hash = 31 * metakey.hashCode() + key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return hash == that.hash && metakey.equals(that.metakey) && key.equals(that.key);
+    }
+
+    @Override
+    public int hashCode() { return hash; }
+  }
+
+  // An LRU map; access is synchronized on the segment.
+  private final class Segment extends LinkedHashMap<Key, Object> {
+    private static final long serialVersionUID = 3417702164498553862L;
+
+    Segment() { super(16, 0.75f, true); }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+      if (size() <= Math.max(1, opts.maxCacheSize / NUM_SEGMENTS)) return false;
+      evictions.increment();
+      return true;
+    }
+  }
+
+  private final Segment[] segments = new Segment[NUM_SEGMENTS];
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
 
   private ExecutorCache() {
-    cache = new HashMap<>();
-    lastUsed = new HashMap<>();
+    for (int i = 0; i < NUM_SEGMENTS; i++)
+      segments[i] = new Segment();
   }
 
-  public synchronized Object get(Object metakey, Object key) {
-    Map<Object, Object> cacheForMetakey = cache.get(metakey);
-    if (cacheForMetakey == null) return null;
-    lastUsed.put(metakey, timestamp++);
-    return cacheForMetakey.get(key);
+  private Segment segmentFor(Key key) {
+    int h = key.hash;
+    h ^= (h >>> 16);
+    return segments[(h & 0x7fffffff) % NUM_SEGMENTS];
   }
 
-  public synchronized void put(Object metakey, Object key, Object value) {
-    Map<Object, Object> cacheForMetakey = cache.get(metakey);
-    if (cacheForMetakey == null) {
-      while (cache.size() >= opts.maxCacheSize) evict();
-      cache.put(metakey, cacheForMetakey = new HashMap<>());
+  public Object get(Object metakey, Object key) {
+    Key k = new Key(metakey, key);
+    Segment segment = segmentFor(k);
+    Object value;
+    synchronized (segment) {
+      value = segment.get(k);
     }
-    cacheForMetakey.put(key, value);
-  }
-
-  private void evict() {
-    long minLastUsed = Long.MAX_VALUE;
-    Object minLastUsedMetakey = null;
-    for (Object existingMetakey : cache.keySet()) {
-      Long existingLastUsed = lastUsed.get(existingMetakey);
-      if (existingLastUsed == null) existingLastUsed = 0L;
-      if (existingLastUsed < minLastUsed) {
-        minLastUsed = existingLastUsed;
-        minLastUsedMetakey = existingMetakey;
+    if (value == null) misses.increment(); else hits.increment();
+    return value;
+  }
+
+  public void put(Object metakey, Object key, Object value) {
+    Key k = new Key(metakey, key);
+    Segment segment = segmentFor(k);
+    synchronized (segment) {
+      segment.put(k, value);
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
       }
     }
-    cache.remove(minLastUsedMetakey);
+    return size;
   }
 
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+    hits.reset();
+    misses.reset();
+    evictions.reset();
+  }
+
+  public long getNumHits() { return hits.sum(); }
+  public long getNumMisses() { return misses.sum(); }
+  public long getNumEvictions() { return evictions.sum(); }
+
+  public double getHitRate() {
+    long h = hits.sum(), total = h + misses.sum();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  public void logStats() {
+    LogInfo.logs("ExecutorCache: %d entries, %d hits, %d misses (hit rate %.3f), %d evictions",
+        size(), getNumHits(), getNumMisses(), getHitRate(), getNumEvictions());
+  }
 }
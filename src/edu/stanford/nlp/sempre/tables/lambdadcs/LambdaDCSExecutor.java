@@ -26,6 +26,8 @@ public class LambdaDCSExecutor extends Executor {
     public boolean arithmeticsFailOnMultipleElements = false;
     @Option(gloss = "Use caching")
     public boolean useCache = true;
+    @Option(gloss = "Represent sets of table rows as bitsets (see RowSetUnaryDenotation)")
+    public boolean useRowSets = true;
   }
   public static Options opts = new Options();
 
@@ -43,7 +45,9 @@ public class LambdaDCSExecutor extends Executor {
     stopWatch.start();
     Value answer = logic.execute(formula);
     stopWatch.stop();
-    stats.addCumulative("execTime", stopWatch.ms);
+    synchronized (stats) {
+      stats.addCumulative("execTime", stopWatch.ms);
+    }
     if (stopWatch.ms >= 10 && opts.verbose >= 1)
       LogInfo.logs("long time: %s %s", Formulas.betaReduction(formula), answer);
     /*///////// DEBUG! //////////
@@ -58,6 +62,8 @@ public class LambdaDCSExecutor extends Executor {
   public void summarize() {
     LogInfo.begin_track("LambdaDCSExecutor: summarize");
     stats.logStats("LambdaDCSExecutor");
+    if (opts.useCache)
+      ExecutorCache.singleton.logStats();
     LogInfo.end_track();
   }
 }
@@ -127,12 +133,11 @@ class LambdaDCSCoreLogic {
 
     if (LambdaDCSExecutor.opts.useCache) {
       Object object = ExecutorCache.singleton.get(graph, formula);
-      if (object != null && object instanceof UnaryDenotation) {
-        stats.addCumulative("cacheHit", true);
-        return (UnaryDenotation) object;
-      } else {
-        stats.addCumulative("cacheHit", false);
+      boolean hit = object != null && object instanceof UnaryDenotation;
+      synchronized (stats) {
+        stats.addCumulative("cacheHit", hit);
       }
+      if (hit) return (UnaryDenotation) object;
     }
 
     if (formula instanceof ValueFormula) {
@@ -3,6 +3,7 @@ package edu.stanford.nlp.sempre.tables.lambdadcs;
 import java.util.*;
 
 import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.TableKnowledgeGraph;
 import fig.basic.*;
 
 /**
@@ -47,6 +48,10 @@ public class PredicateBinaryDenotation extends BinaryDenotation {
 
   @Override
   public UnaryDenotation joinFirst(UnaryDenotation firsts, KnowledgeGraph graph) {
+    if (values.size() == 1) {
+      UnaryDenotation rows = joinSecondRows(KnowledgeGraph.getReversedPredicate(values.get(0)), firsts, graph);
+      if (rows != null) return rows;
+    }
     List<Value> seconds = new ArrayList<>();
     for (Value predicate : values) {
       seconds.addAll(graph.joinFirst(predicate, firsts));
@@ -56,6 +61,10 @@ public class PredicateBinaryDenotation extends BinaryDenotation {
 
   @Override
   public UnaryDenotation joinSecond(UnaryDenotation seconds, KnowledgeGraph graph) {
+    if (values.size() == 1) {
+      UnaryDenotation rows = joinSecondRows(values.get(0), seconds, graph);
+      if (rows != null) return rows;
+    }
     List<Value> firsts = new ArrayList<>();
     for (Value predicate : values) {
       firsts.addAll(graph.joinSecond(predicate, seconds));
@@ -63,6 +72,12 @@ public class PredicateBinaryDenotation extends BinaryDenotation {
     return new ExplicitUnaryDenotation(firsts);
   }
 
+  // If the join gives a set of table rows, compute it as a bitset.
+  private static UnaryDenotation joinSecondRows(Value predicate, UnaryDenotation seconds, KnowledgeGraph graph) {
+    if (!LambdaDCSExecutor.opts.useRowSets || !(graph instanceof TableKnowledgeGraph)) return null;
+    return RowSetUnaryDenotation.joinSecond((TableKnowledgeGraph) graph, predicate, seconds);
+  }
+
   @Override
   public BinaryDenotation reverse() {
     List<Value> reversedValues = new ArrayList<>();
@@ -0,0 +1,178 @@
+package edu.stanford.nlp.sempre.tables.lambdadcs;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.TableKnowledgeGraph;
+import fig.basic.*;
+
+/**
+ * A unary containing distinct rows of a TableKnowledgeGraph.
+ * Represented as a bitset of row indices.
+ *
+ * Intersection, union, count, and membership tests work on the bitset.
+ * The list of row values is only created when something iterates over it.
+ * It is computed exactly like ExplicitUnaryDenotation would have computed it,
+ * so the order of the values (and hence the final ListValue) does not change.
+ */
+public class RowSetUnaryDenotation extends ExplicitUnaryDenotation {
+
+  protected final TableKnowledgeGraph graph;
+  protected final BitSet rows;
+
+  // Computes the values in order; null once |values| is computed
+  private Supplier<Collection<Value>> source;
+  private boolean hasValuesSet = false;
+
+  /** Rows in increasing order of index */
+  public RowSetUnaryDenotation(TableKnowledgeGraph graph, BitSet rows) {
+    this.graph = graph;
+    this.rows = rows;
+    this.source = () -> {
+      List<Value> values = new ArrayList<>();
+      for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1))
+        values.add(graph.getRowValue(i));
+      return values;
+    };
+  }
+
+  /** Rows in the order given by |source|, which must produce exactly the rows in |rows| */
+  protected RowSetUnaryDenotation(TableKnowledgeGraph graph, BitSet rows, Supplier<Collection<Value>> source) {
+    this.graph = graph;
+    this.rows = rows;
+    this.source = source;
+  }
+
+  /**
+   * Return the rows x such that (x,r,y) in graph for some y in |seconds|,
+   * or null if the result is not a list of distinct rows in increasing order.
+   */
+  public static RowSetUnaryDenotation joinSecond(TableKnowledgeGraph graph, Value r, Collection<Value> seconds) {
+    BitSet rows = graph.joinSecondRows(r, seconds);
+    return rows == null ? null : new RowSetUnaryDenotation(graph, rows);
+  }
+
+  public BitSet getRows() {
+    return rows;
+  }
+
+  private synchronized List<Value> values() {
+    if (source != null) {
+      values = new ArrayList<>(source.get());
+      source = null;
+    }
+    return values;
+  }
+
+  private synchronized Set<Value> valuesSet() {
+    if (!hasValuesSet) {
+      valuesSet = new HashSet<>(values());
+      hasValuesSet = true;
+    }
+    return valuesSet;
+  }
+
+  private boolean isRowSetOfSameGraph(UnaryDenotation that) {
+    return that instanceof RowSetUnaryDenotation && ((RowSetUnaryDenotation) that).graph == graph;
+  }
+
+  @Override
+  public LispTree toLispTree() {
+    values();
+    return super.toLispTree();
+  }
+
+  @Override
+  public ListValue toListValue(KnowledgeGraph graph) {
+    return new ListValue(new ArrayList<>(valuesSet()));
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (!(o instanceof Value)) return false;
+    int index = graph.getRowIndex((Value) o);
+    return index >= 0 && rows.get(index);
+  }
+
+  @Override
+  public boolean containsAll(Collection<?> c) {
+    for (Object o : c) {
+      if (!contains(o)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public Iterator<Value> iterator() {
+    return values().iterator();
+  }
+
+  @Override
+  public int size() {
+    return rows.cardinality();
+  }
+
+  @Override
+  public UnaryDenotation uniqued() {
+    return new RowSetUnaryDenotation(graph, rows, this::valuesSet);
+  }
+
+  @Override
+  public UnaryDenotation merge(UnaryDenotation that, MergeFormula.Mode mode) {
+    if (!isRowSetOfSameGraph(that)) {
+      values();
+      valuesSet();
+      return super.merge(that, mode);
+    }
+    BitSet merged = (BitSet) rows.clone();
+    switch (mode) {
+      case and: merged.and(((RowSetUnaryDenotation) that).rows); break;
+      case or: merged.or(((RowSetUnaryDenotation) that).rows); break;
+      default: return super.merge(that, mode);
+    }
+    return new RowSetUnaryDenotation(graph, merged, () -> {
+      Set<Value> values = new HashSet<>(values());
+      switch (mode) {
+        case and: values.retainAll(that); break;
+        default: values.addAll(that);
+      }
+      return values;
+    });
+  }
+
+  @Override
+  public UnaryDenotation aggregate(AggregateFormula.Mode mode) {
+    if (mode == AggregateFormula.Mode.count)
+      return new ExplicitUnaryDenotation(new NumberValue(rows.cardinality()));
+    values();
+    valuesSet();
+    return super.aggregate(mode);
+  }
+
+  @Override
+  public UnaryDenotation filter(UnaryDenotation upperBound) {
+    if (upperBound == InfiniteUnaryDenotation.STAR_UNARY) return this;
+    BitSet filtered;
+    if (isRowSetOfSameGraph(upperBound)) {
+      filtered = (BitSet) rows.clone();
+      filtered.and(((RowSetUnaryDenotation) upperBound).rows);
+    } else {
+      filtered = new BitSet(rows.length());
+      for (int i = rows.nextSetBit(0); i >= 0; i = rows.nextSetBit(i + 1)) {
+        if (upperBound.contains(graph.getRowValue(i)))
+          filtered.set(i);
+      }
+    }
+    if (filtered.equals(rows)) return this;
+    return new RowSetUnaryDenotation(graph, filtered, () -> {
+      List<Value> values = new ArrayList<>();
+      for (Value value : values()) {
+        if (filtered.get(graph.getRowIndex(value)))
+          values.add(value);
+      }
+      return values;
+    });
+  }
+
+}
@@ -1,7 +1,7 @@
 package edu.stanford.nlp.sempre.tables.serialize;
 
 import edu.stanford.nlp.sempre.*;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 
 public class DummyParser extends Parser {
 
@@ -31,7 +31,7 @@ class DummyParserState extends ParserState {
       predDerivations.add(deriv);
     }
     if (computeExpectedCounts) {
-      expectedCounts = new TObjectDoubleHashMap<>();
+      expectedCounts = new TIntDoubleHashMap();
       ParserState.computeExpectedCounts(predDerivations, expectedCounts);
     }
   }
@@ -0,0 +1,123 @@
+package edu.stanford.nlp.sempre.tables.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.*;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.DPParser;
+import edu.stanford.nlp.sempre.test.TestUtils;
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test that DPParser gives the same derivations, scores, and amount of
+ * featurization whether or not the floating cells are built concurrently
+ * (FloatingParser.numExpansionThreads).
+ */
+public class DPParserTest {
+  private static final String[][] EXAMPLES = {
+    {"a b c", "(string a,b,c)"},
+    {"c a b a", "(string a,b)"},
+    {"a b c a b c", "(string c,a)"},
+    {"ignore", "(string b)"},
+  };
+
+  private boolean defaultIsFloating, useSizeInsteadOfDepth, collapseFirstPass, collapseIdentical;
+  private int maxDepth, numExpansionThreads, verbose;
+  private Set<String> featureDomains;
+
+  @BeforeMethod
+  public void setUp() {
+    defaultIsFloating = FloatingParser.opts.defaultIsFloating;
+    useSizeInsteadOfDepth = FloatingParser.opts.useSizeInsteadOfDepth;
+    maxDepth = FloatingParser.opts.maxDepth;
+    numExpansionThreads = FloatingParser.opts.numExpansionThreads;
+    collapseFirstPass = DPParser.opts.collapseFirstPass;
+    collapseIdentical = ParserState.opts.collapseIdentical;
+    verbose = Parser.opts.verbose;
+    featureDomains = new HashSet<>(FeatureExtractor.opts.featureDomains);
+    FloatingParser.opts.defaultIsFloating = true;
+    FloatingParser.opts.maxDepth = 4;
+    // The toy grammar has no canonical utterances
+    ParserState.opts.collapseIdentical = false;
+    Parser.opts.verbose = 0;
+    FeatureExtractor.opts.featureDomains.add("rule");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FloatingParser.opts.defaultIsFloating = defaultIsFloating;
+    FloatingParser.opts.useSizeInsteadOfDepth = useSizeInsteadOfDepth;
+    FloatingParser.opts.maxDepth = maxDepth;
+    FloatingParser.opts.numExpansionThreads = numExpansionThreads;
+    DPParser.opts.collapseFirstPass = collapseFirstPass;
+    ParserState.opts.collapseIdentical = collapseIdentical;
+    Parser.opts.verbose = verbose;
+    FeatureExtractor.opts.featureDomains = featureDomains;
+  }
+
+  // Random weights on the rules, so that the scores are not tied.
+  private static Params randomParams(Grammar grammar) {
+    boolean adaptiveStepSize = Params.opts.adaptiveStepSize;
+    Params.opts.adaptiveStepSize = false;
+    try {
+      Random random = new Random(3);
+      TObjectDoubleMap<String> weights = new TObjectDoubleHashMap<>();
+      for (Rule rule : grammar.getRules())
+        weights.put("rule :: " + rule, random.nextGaussian());
+      Params params = new Params();
+      params.update(weights);
+      return params;
+    } finally {
+      Params.opts.adaptiveStepSize = adaptiveStepSize;
+    }
+  }
+
+  // Parse as at training time, which is when DPParser runs its own passes.
+  private static List<String> parse(String utterance, String targetValue) {
+    Grammar grammar = TestUtils.makeAbcGrammar();
+    Executor executor = new JavaExecutor();
+    FeatureExtractor extractor = new FeatureExtractor(executor);
+    Parser parser = new DPParser(new Parser.Spec(grammar, extractor, executor, new ExactValueEvaluator()));
+    Example ex = TestUtils.makeSimpleExample(utterance, Value.fromString(targetValue));
+    ParserState state = parser.parse(randomParams(grammar), ex, true);
+    List<String> result = new ArrayList<>();
+    for (Derivation deriv : state.predDerivations)
+      result.add(deriv.formula + " " + deriv.value + " " + deriv.score);
+    result.add("featurized: " + state.numOfFeaturizedDerivs);
+    return result;
+  }
+
+  private static void checkParallelExpansion() {
+    for (String[] example : EXAMPLES) {
+      FloatingParser.opts.numExpansionThreads = 1;
+      List<String> sequential = parse(example[0], example[1]);
+      assertTrue(sequential.size() > 1);  // Some derivation besides the featurization count
+      FloatingParser.opts.numExpansionThreads = 4;
+      assertEquals(sequential, parse(example[0], example[1]));
+    }
+  }
+
+  @Test
+  public void parallelExpansion() {
+    checkParallelExpansion();
+  }
+
+  @Test
+  public void parallelExpansionCollapseFirstPass() {
+    DPParser.opts.collapseFirstPass = true;
+    checkParallelExpansion();
+  }
+
+  @Test
+  public void parallelExpansionBySize() {
+    FloatingParser.opts.useSizeInsteadOfDepth = true;
+    FloatingParser.opts.maxDepth = 8;
+    checkParallelExpansion();
+  }
+}
@@ -0,0 +1,76 @@
+package edu.stanford.nlp.sempre.tables.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.stanford.nlp.sempre.tables.lambdadcs.ExecutorCache;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the LRU behavior and statistics of ExecutorCache.
+ */
+public class ExecutorCacheTest {
+  private final ExecutorCache cache = ExecutorCache.singleton;
+  private int originalMaxCacheSize;
+
+  @BeforeMethod
+  public void setUp() {
+    originalMaxCacheSize = ExecutorCache.opts.maxCacheSize;
+    ExecutorCache.opts.maxCacheSize = 160;
+    cache.clear();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    ExecutorCache.opts.maxCacheSize = originalMaxCacheSize;
+    cache.clear();
+  }
+
+  @Test public void keyedByGraphAndFormula() {
+    cache.put("graph1", "formula", 1);
+    cache.put("graph2", "formula", 2);
+    assertEquals(1, cache.get("graph1", "formula"));
+    assertEquals(2, cache.get("graph2", "formula"));
+    assertNull(cache.get("graph3", "formula"));
+    assertEquals(2, cache.getNumHits());
+    assertEquals(1, cache.getNumMisses());
+    assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+  }
+
+  @Test public void evictsLeastRecentlyUsed() {
+    cache.put("graph", "hot", 0);
+    for (int i = 0; i < 10000; i++) {
+      cache.put("graph", "formula" + i, i);
+      assertEquals(0, cache.get("graph", "hot"));
+    }
+    assertTrue("size: " + cache.size(), cache.size() <= 160);
+    assertNull(cache.get("graph", "formula0"));
+    assertEquals(9999, cache.get("graph", "formula9999"));
+    assertTrue(cache.getNumEvictions() >= 10000 - 160);
+  }
+
+  @Test public void concurrentAccess() throws Exception {
+    ExecutorCache.opts.maxCacheSize = 16000;
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final String graph = "graph" + t;
+      futures.add(threads.submit(() -> {
+        for (int i = 0; i < 5000; i++) {
+          cache.put(graph, "formula" + (i % 10), i);
+          assertNotNull(cache.get(graph, "formula" + (i % 10)));
+        }
+      }));
+    }
+    for (Future<?> future : futures)
+      future.get();
+    threads.shutdown();
+    assertEquals(80, cache.size());
+    assertEquals(8 * 5000, cache.getNumHits());
+  }
+}
@@ -208,4 +208,39 @@ public class LambdaDCSExecutorTest {
     }
   }
 
+  @Test(groups = "lambdaCSV") public void lambdaOnGraphCSVRowSetTest() {
+    // Bitset row sets should give exactly the same lists (including the order)
+    KnowledgeGraph graph = getKnowledgeGraph("csv");
+    ContextValue context = new ContextValue(graph);
+    String[] formulas = {
+        "(fb:row.row.result fb:cell_result.win)",
+        "(count (fb:row.row.result fb:cell_result.win))",
+        "(and (fb:row.row.result fb:cell_result.win) (fb:row.row.competition fb:cell_competition.friendly))",
+        "(or (fb:row.row.result fb:cell_result.loss) (fb:row.row.index (< (number 5))))",
+        "(count (and (fb:type.object.type fb:type.row) (fb:row.row.index (>= (number 3)))))",
+        "(!fb:row.row.opponent (and (fb:row.row.result fb:cell_result.win) (fb:row.row.index (> (number 4)))))",
+        "(!fb:row.row.score (or (fb:row.row.opponent fb:cell_opponent.austria) (fb:row.row.result fb:cell_result.draw)))",
+        "(argmax 1 1 (fb:row.row.result fb:cell_result.win) fb:row.row.index)",
+        "(fb:row.row.next (fb:row.row.opponent fb:cell_opponent.austria))",
+        "(and * (fb:row.row.competition (!fb:row.row.competition (fb:row.row.result fb:cell_result.loss))))",
+    };
+    boolean useRowSets = LambdaDCSExecutor.opts.useRowSets, useCache = LambdaDCSExecutor.opts.useCache;
+    LambdaDCSExecutor.opts.useCache = false;
+    try {
+      for (String formula : formulas) {
+        Formula f = Formulas.fromLispTree(LispTree.proto.parseFromString(formula));
+        LambdaDCSExecutor.opts.useRowSets = false;
+        Value expected = executor.execute(f, context).value;
+        LambdaDCSExecutor.opts.useRowSets = true;
+        Value actual = executor.execute(f, context).value;
+        LogInfo.logs("%s => %s", formula, actual);
+        if (!expected.equals(actual))
+          throw new RuntimeException("Expected " + expected + ", but got " + actual + " for " + formula);
+      }
+    } finally {
+      LambdaDCSExecutor.opts.useRowSets = useRowSets;
+      LambdaDCSExecutor.opts.useCache = useCache;
+    }
+  }
+
 }
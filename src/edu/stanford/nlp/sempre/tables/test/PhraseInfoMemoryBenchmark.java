@@ -0,0 +1,63 @@
+package edu.stanford.nlp.sempre.tables.test;
+
+import java.util.*;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.features.PhraseInfo;
+import fig.basic.*;
+import fig.exec.*;
+
+/**
+ * Measure the heap used across iterations over a large synthetic dataset when
+ * every example asks for its phrases, as the table feature computers do.
+ * After each example, its temporary state is cleared like Parser.parse does.
+ */
+public class PhraseInfoMemoryBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Number of synthetic examples")
+    public int benchExamples = 20000;
+    @Option(gloss = "Number of tokens per utterance")
+    public int benchTokens = 20;
+    @Option(gloss = "Number of iterations over the dataset")
+    public int benchIters = 5;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "PhraseInfoMemoryBenchmarkMain", new PhraseInfoMemoryBenchmark(), Master.getOptionsParser());
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  @Override
+  public void run() {
+    LanguageAnalyzer.setSingleton(new SimpleAnalyzer());
+    Random random = new Random(1);
+    List<Example> examples = new ArrayList<>();
+    for (int i = 0; i < opts.benchExamples; i++) {
+      StringBuilder utterance = new StringBuilder();
+      for (int j = 0; j < opts.benchTokens; j++)
+        utterance.append(j == 0 ? "" : " ").append("word").append(random.nextInt(5000));
+      Example ex = new Example.Builder().setId("bench" + i).setUtterance(utterance.toString()).createExample();
+      ex.preprocess();
+      examples.add(ex);
+    }
+    LogInfo.logs("Dataset: %d MB", usedHeap() >> 20);
+
+    for (int iter = 0; iter < opts.benchIters; iter++) {
+      long numPhrases = 0;
+      for (Example ex : examples) {
+        numPhrases += PhraseInfo.getPhraseInfos(ex).size();
+        ex.clearTempState();
+      }
+      long used = usedHeap();
+      LogInfo.logs("Iteration %d: %d phrases, heap %d MB", iter, numPhrases, used >> 20);
+      Execution.putOutput("heapMB" + iter, used >> 20);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package edu.stanford.nlp.sempre.tables.test;
+
+import java.io.*;
+import java.util.*;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.TableKnowledgeGraph;
+import edu.stanford.nlp.sempre.tables.TableTypeSystem;
+import edu.stanford.nlp.sempre.tables.lambdadcs.InfiniteUnaryDenotation.ComparisonUnaryDenotation;
+import fig.basic.*;
+import fig.exec.*;
+
+/**
+ * Measure the joins that LambdaDCSExecutor issues on a wide, tall synthetic
+ * table.  Even columns hold one of benchDistinctValues strings; odd columns
+ * hold numbers.
+ */
+public class TableJoinBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Number of rows")
+    public int benchRows = 5000;
+    @Option(gloss = "Number of columns")
+    public int benchColumns = 40;
+    @Option(gloss = "Number of distinct strings in each text column")
+    public int benchDistinctValues = 100;
+    @Option(gloss = "Number of calls per measurement")
+    public int benchCalls = 2000;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "TableJoinBenchmarkMain", new TableJoinBenchmark(), Master.getOptionsParser());
+  }
+
+  private static File writeTable() throws IOException {
+    File dir = java.nio.file.Files.createTempDirectory("TableJoinBenchmark").toFile();
+    File file = new File(dir, "table.csv");
+    Random random = new Random(1);
+    try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+      List<String> header = new ArrayList<>();
+      for (int j = 0; j < opts.benchColumns; j++)
+        header.add("c" + j);
+      out.println(String.join(",", header));
+      for (int i = 0; i < opts.benchRows; i++) {
+        List<String> record = new ArrayList<>();
+        for (int j = 0; j < opts.benchColumns; j++)
+          record.add(j % 2 == 0 ? "value" + random.nextInt(opts.benchDistinctValues) : "" + random.nextInt(100000));
+        out.println(String.join(",", record));
+      }
+    }
+    file.deleteOnExit();
+    dir.deleteOnExit();
+    return file;
+  }
+
+  private interface Query {
+    int run(int i);
+  }
+
+  private static void measure(String name, Query query) {
+    // Warm up
+    for (int i = 0; i < opts.benchCalls / 10; i++)
+      query.run(i);
+    long numResults = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < opts.benchCalls; i++)
+      numResults += query.run(i);
+    double us = (System.nanoTime() - start) / 1e3 / opts.benchCalls;
+    LogInfo.logs("%s: %.1f us/call (%.1f results/call)", name, us, (double) numResults / opts.benchCalls);
+    Execution.putOutput(name, us);
+  }
+
+  @Override
+  public void run() {
+    File file;
+    try {
+      file = writeTable();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    TableKnowledgeGraph.opts.baseCSVDir = file.getParent();
+    long start = System.nanoTime();
+    TableKnowledgeGraph graph = TableKnowledgeGraph.fromFilename(file.getName());
+    LogInfo.logs("Loaded %d x %d table in %d ms", graph.numRows(), graph.numColumns(), (System.nanoTime() - start) / 1000000);
+
+    Random random = new Random(2);
+    NameValue textColumn = new NameValue(TableTypeSystem.getPropertyName("c" + (opts.benchColumns - 2)));
+    NameValue reversedTextColumn = new NameValue("!" + textColumn.id);
+    // Cells to look up, found through the rows that contain them
+    List<Value> cells = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      NameValue row = new NameValue(TableTypeSystem.getRowName(random.nextInt(graph.numRows())));
+      cells.addAll(graph.joinSecond(reversedTextColumn, Collections.singleton(row)));
+    }
+
+    // (fb:row.row.c38 fb:cell_c38.value7)
+    measure("columnJoin", i -> graph.joinSecond(textColumn,
+        Collections.singletonList(cells.get(i % cells.size()))).size());
+    // (fb:row.row.c38 (or ...)) with 3 cells
+    measure("columnJoin3", i -> graph.joinSecond(textColumn, Arrays.asList(
+        cells.get(i % cells.size()), cells.get((i + 1) % cells.size()), cells.get((i + 2) % cells.size()))).size());
+    // (fb:cell.cell.number (number 123))
+    measure("numberEquals", i -> graph.joinSecond(TableTypeSystem.CELL_NUMBER_VALUE,
+        Collections.singletonList(new NumberValue(i * 37 % 100000))).size());
+    // (fb:cell.cell.number (> (number 99900)))
+    measure("numberGreater", i -> graph.joinSecond(TableTypeSystem.CELL_NUMBER_VALUE,
+        new ComparisonUnaryDenotation(">", new NumberValue(99900 + i % 50))).size());
+    measure("rowIndices", i -> graph.getRowIndices(((NameValue) cells.get(i % cells.size())).id).size());
+  }
+}
@@ -0,0 +1,92 @@
+package edu.stanford.nlp.sempre.tables.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import edu.stanford.nlp.sempre.*;
+import edu.stanford.nlp.sempre.tables.TableKnowledgeGraph;
+import edu.stanford.nlp.sempre.tables.TableTypeSystem;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test that tables loaded from the binary cache are the same as tables loaded from CSV.
+ */
+public class TableKnowledgeGraphCacheTest {
+  private static final String CSV = "tables/toy-examples/random/nikos_machlas.csv";
+
+  private String originalBaseCSVDir, originalTableCacheDir;
+  private Path dir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    originalBaseCSVDir = TableKnowledgeGraph.opts.baseCSVDir;
+    originalTableCacheDir = TableKnowledgeGraph.opts.tableCacheDir;
+    dir = Files.createTempDirectory("TableKnowledgeGraphCacheTest");
+    TableKnowledgeGraph.opts.baseCSVDir = dir.toString();
+    TableKnowledgeGraph.opts.tableCacheDir = dir.resolve("cache").toString();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    TableKnowledgeGraph.opts.baseCSVDir = originalBaseCSVDir;
+    TableKnowledgeGraph.opts.tableCacheDir = originalTableCacheDir;
+    Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+  }
+
+  // Everything a formula can observe about a table
+  private static String describe(TableKnowledgeGraph graph) {
+    StringBuilder buf = new StringBuilder();
+    buf.append(graph.toTableValue().toLispTree()).append('\n');
+    List<Value> cells = graph.joinSecond(new NameValue(CanonicalNames.TYPE), Collections.singleton(
+        new NameValue(TableTypeSystem.CELL_GENERIC_TYPE)));
+    for (Value property : new Value[] {TableTypeSystem.CELL_NUMBER_VALUE, TableTypeSystem.CELL_DATE_VALUE,
+        TableTypeSystem.CELL_SECOND_VALUE, TableTypeSystem.CELL_UNIT_VALUE, TableTypeSystem.CELL_NORMALIZED_VALUE})
+      buf.append(graph.filterFirst(property, cells)).append('\n');
+    for (Value cell : cells)
+      buf.append(((NameValue) cell).description).append('\n');
+    buf.append(graph.getAllFormulas(FuzzyMatchFn.FuzzyMatchFnMode.ENTITY)).append('\n');
+    return buf.toString();
+  }
+
+  @Test public void cachedTableIsIdentical() throws IOException {
+    // Same content under two names: the second one is read from the cache
+    Files.copy(Paths.get(CSV), dir.resolve("a.csv"));
+    Files.copy(Paths.get(CSV), dir.resolve("b.csv"));
+    TableKnowledgeGraph fromCSV = TableKnowledgeGraph.fromFilename("a.csv");
+    assertEquals(1, new File(TableKnowledgeGraph.opts.tableCacheDir).list().length);
+    TableKnowledgeGraph fromCache = TableKnowledgeGraph.fromFilename("b.csv");
+    assertNotSame(fromCSV, fromCache);
+    assertEquals(describe(fromCSV), describe(fromCache));
+    assertEquals(1, new File(TableKnowledgeGraph.opts.tableCacheDir).list().length);
+    assertSame(fromCSV, TableKnowledgeGraph.fromFilename("a.csv"));
+  }
+
+  @Test public void concurrentLoading() throws Exception {
+    List<String> lines = Files.readAllLines(Paths.get(CSV));
+    for (int i = 0; i < 16; i++) {
+      List<String> table = new ArrayList<>(lines);
+      table.add("\"" + i + ".\",\"1 June 2000\",\"Athens, Greece\",\"Team " + i + "\",\"" + i + "–0\",\"Win\",\"Friendly\"");
+      Files.write(dir.resolve("t" + i + ".csv"), table);
+    }
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    List<Future<TableKnowledgeGraph>> futures = new ArrayList<>();
+    for (int i = 0; i < 64; i++) {
+      final String filename = "t" + (i % 16) + ".csv";
+      futures.add(threads.submit(() -> TableKnowledgeGraph.fromFilename(filename)));
+    }
+    for (int i = 0; i < 64; i++) {
+      TableKnowledgeGraph graph = futures.get(i).get();
+      assertSame(futures.get(i % 16).get(), graph);
+      assertEquals(lines.size(), graph.numRows());
+    }
+    threads.shutdown();
+    assertEquals(16, new File(TableKnowledgeGraph.opts.tableCacheDir).list().length);
+  }
+}
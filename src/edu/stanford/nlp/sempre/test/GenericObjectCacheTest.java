@@ -0,0 +1,75 @@
+package edu.stanford.nlp.sempre.test;
+
+import static org.testng.AssertJUnit.*;
+
+import org.testng.annotations.Test;
+
+import edu.stanford.nlp.sempre.GenericObjectCache;
+
+/**
+ * Test size bounds, expiration and frequency-aware admission of GenericObjectCache.
+ */
+public class GenericObjectCacheTest {
+  private static final long FOREVER = Long.MAX_VALUE;
+
+  @Test
+  public void storeAndHit() {
+    GenericObjectCache<String, String> cache = new GenericObjectCache<>(10);
+    assertNull(cache.hit("a"));
+    cache.store("a", "x", FOREVER);
+    assertEquals("x", cache.hit("a"));
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, cache.missCount());
+
+    // Not cacheable
+    cache.store("b", "y", 0);
+    assertNull(cache.hit("b"));
+
+    cache.clear("a");
+    assertNull(cache.hit("a"));
+  }
+
+  @Test
+  public void expiration() {
+    GenericObjectCache<String, String> cache = new GenericObjectCache<>(10);
+    cache.store("a", "x", System.currentTimeMillis() - 1);
+    assertNull(cache.hit("a"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.expirationCount());
+
+    // A later expiration freshens the entry.
+    cache.store("b", "y", System.currentTimeMillis() - 1);
+    cache.store("b", "z", FOREVER);
+    assertEquals("z", cache.hit("b"));
+  }
+
+  @Test
+  public void bounded() {
+    GenericObjectCache<Integer, Integer> cache = new GenericObjectCache<>(100);
+    for (int i = 0; i < 10000; i++)
+      cache.store(i, i, FOREVER);
+    assertTrue(cache.size() <= 100);
+    assertEquals(10000 - cache.size(), cache.evictionCount());
+  }
+
+  @Test
+  public void frequentEntriesSurviveScan() {
+    GenericObjectCache<Integer, Integer> cache = new GenericObjectCache<>(100);
+    // A small popular working set...
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 50; i++) {
+        if (cache.hit(i) == null)
+          cache.store(i, i, FOREVER);
+      }
+    }
+    // ...followed by a long scan of one-off keys.
+    for (int i = 1000; i < 5000; i++) {
+      if (cache.hit(i) == null)
+        cache.store(i, i, FOREVER);
+    }
+    int survivors = 0;
+    for (int i = 0; i < 50; i++)
+      if (cache.hit(i) != null) survivors++;
+    assertTrue("only " + survivors + " popular entries survived", survivors >= 45);
+  }
+}
@@ -0,0 +1,75 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.util.*;
+
+import com.google.common.collect.Maps;
+
+import edu.stanford.nlp.sempre.*;
+import fig.basic.*;
+import fig.exec.Execution;
+
+/**
+ * Measure the fixed cost of a Learner iteration: a tiny dataset split into
+ * many small groups, so that parsing takes little time compared to setting up
+ * each (iteration, group).
+ */
+public class LearnerOverheadBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Thread counts to benchmark")
+    public List<Integer> benchThreads = Arrays.asList(1, 4);
+    @Option(gloss = "Number of groups besides train")
+    public int benchGroups = 50;
+    @Option(gloss = "Number of examples per group")
+    public int benchExamplesPerGroup = 2;
+    @Option(gloss = "Number of training iterations per run")
+    public int benchIters = 20;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "LearnerOverheadBenchmarkMain", new LearnerOverheadBenchmark(), Master.getOptionsParser());
+  }
+
+  private static class SyntheticDataset extends AbstractDataset {
+    @Override
+    public void read() {
+      Random random = new Random(1);
+      for (int g = 0; g <= opts.benchGroups; g++) {
+        List<Example> examples = getOrCreateGroup(g == 0 ? "train" : "dev" + g);
+        for (int i = 0; i < opts.benchExamplesPerGroup; i++) {
+          int a = random.nextInt(10), b = random.nextInt(10);
+          Example ex = new Example.Builder()
+              .setId("bench" + g + ":" + i)
+              .setUtterance(a + " " + b)
+              .setTargetValue(new StringValue(a + "," + b))
+              .createExample();
+          ex.preprocess();
+          examples.add(ex);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    LanguageAnalyzer.setSingleton(new SimpleAnalyzer());
+    SyntheticDataset dataset = new SyntheticDataset();
+    dataset.read();
+
+    int originalThreads = Learner.opts.numThreads;
+    for (int numThreads : opts.benchThreads) {
+      Learner.opts.numThreads = numThreads;
+      Builder builder = TestUtils.makeSimpleBuilder();
+      Learner learner = new Learner(builder.parser, builder.params, dataset);
+      // Warm up
+      learner.learn(1, Maps.newHashMap());
+
+      long start = System.nanoTime();
+      learner.learn(opts.benchIters, Maps.newHashMap());
+      double msPerIter = (System.nanoTime() - start) / 1e6 / (opts.benchIters + 1);
+      LogInfo.logs("numThreads=%d: %.2f ms/iteration (%d groups)", numThreads, msPerIter, dataset.groups().size());
+      Execution.putOutput("threads" + numThreads, msPerIter);
+    }
+    Learner.opts.numThreads = originalThreads;
+  }
+}
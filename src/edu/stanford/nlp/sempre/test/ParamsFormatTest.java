@@ -0,0 +1,161 @@
+package edu.stanford.nlp.sempre.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.stanford.nlp.sempre.Params;
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+
+/**
+ * Test that parameters survive the text and binary formats.
+ */
+public class ParamsFormatTest {
+  private static final String[] FEATURES = {
+    "a", "rule :: $ROOT -> $Command", "denotation-size :: 0", "unicode :: caff\u00e8 \u4e2d\u6587", "",
+  };
+
+  private static Params randomParams(Random random) {
+    Params params = new Params();
+    for (int i = 0; i < 20; i++) {
+      TObjectDoubleMap<String> gradient = new TObjectDoubleHashMap<>();
+      for (String f : FEATURES)
+        gradient.put(f, random.nextGaussian());
+      gradient.put("f" + random.nextInt(1000), random.nextGaussian());
+      params.update(gradient);
+    }
+    return params;
+  }
+
+  private static File tempFile() throws IOException {
+    File file = File.createTempFile("params", ".tmp");
+    file.deleteOnExit();
+    return file;
+  }
+
+  @Test
+  public void binaryRoundTrip() throws IOException {
+    Params params = randomParams(new Random(1));
+    File file = tempFile();
+    params.writeBinary(file.getPath());
+    assertTrue(Params.isBinary(file.getPath()));
+
+    Params read = new Params();
+    read.read(file.getPath());
+    assertEquals(params.getWeights(), read.getWeights());
+  }
+
+  @Test
+  public void textToBinaryToText() throws IOException {
+    Params params = randomParams(new Random(2));
+    File text = tempFile(), binary = tempFile(), text2 = tempFile();
+    params.write(text.getPath());
+    assertFalse(Params.isBinary(text.getPath()));
+
+    Params fromText = new Params();
+    fromText.read(text.getPath());
+    fromText.writeBinary(binary.getPath());
+    Params fromBinary = new Params();
+    fromBinary.read(binary.getPath());
+    fromBinary.write(text2.getPath());
+    Params fromText2 = new Params();
+    fromText2.read(text2.getPath());
+
+    assertEquals(params.getWeights(), fromBinary.getWeights());
+    assertEquals(params.getWeights(), fromText2.getWeights());
+  }
+
+  @Test
+  public void lazyL1StateRoundTrip() throws IOException {
+    String l1Reg = Params.opts.l1Reg;
+    double l1RegCoeff = Params.opts.l1RegCoeff;
+    Params.opts.l1Reg = "lazy";
+    Params.opts.l1RegCoeff = 0.01;
+    try {
+      Params params = randomParams(new Random(3));
+      File file = tempFile();
+      params.writeBinary(file.getPath());
+      Params read = new Params();
+      read.read(file.getPath());
+      // The pending L1 penalty depends on the AdaGrad sums and update times
+      for (String f : FEATURES)
+        assertEquals(params.getWeight(f), read.getWeight(f));
+    } finally {
+      Params.opts.l1Reg = l1Reg;
+      Params.opts.l1RegCoeff = l1RegCoeff;
+    }
+  }
+
+  @Test
+  public void dualAveragingStateRoundTrip() throws IOException {
+    boolean dualAveraging = Params.opts.dualAveraging;
+    Params.opts.dualAveraging = true;
+    try {
+      Params params = randomParams(new Random(4));
+      File file = tempFile();
+      params.writeBinary(file.getPath());
+      Params read = new Params();
+      read.read(file.getPath());
+      // The weights after the next update depend on the sums of gradients
+      TObjectDoubleMap<String> gradient = new TObjectDoubleHashMap<>();
+      for (String f : FEATURES)
+        gradient.put(f, 1);
+      params.update(gradient);
+      read.update(gradient);
+      assertEquals(params.getWeights(), read.getWeights());
+    } finally {
+      Params.opts.dualAveraging = dualAveraging;
+    }
+  }
+
+  @Test
+  public void truncatedBinary() throws IOException {
+    Params params = randomParams(new Random(5));
+    File file = tempFile();
+    params.writeBinary(file.getPath());
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    try {
+      new Params().read(file.getPath());
+      fail("Read a truncated file");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void binaryWithPrefix() throws IOException {
+    Params params = randomParams(new Random(6));
+    File text = tempFile(), binary = tempFile();
+    params.write(text.getPath());
+    params.writeBinary(binary.getPath());
+    Params fromText = new Params(), fromBinary = new Params();
+    fromText.read(text.getPath(), "prefix:");
+    fromBinary.read(binary.getPath(), "prefix:");
+    assertEquals(fromText.getWeights(), fromBinary.getWeights());
+    assertEquals(params.getWeight("a"), fromBinary.getWeight("prefix:a"));
+  }
+
+  @Test
+  public void notBinary() throws IOException {
+    File file = tempFile();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.writeLong(0);
+      raf.writeLong(0);
+    }
+    try {
+      new Params().readBinary(file.getPath());
+      fail("Read a file that is not binary parameters");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IOException);
+      assertTrue(e.getCause().getMessage().contains(file.getPath()));
+    }
+  }
+}
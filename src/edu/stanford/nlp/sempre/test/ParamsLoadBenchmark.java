@@ -0,0 +1,69 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import edu.stanford.nlp.sempre.*;
+import fig.basic.*;
+import fig.exec.Execution;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+/**
+ * Measure how long it takes to write and read parameters in the text and the
+ * binary format.
+ */
+public class ParamsLoadBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Number of distinct features")
+    public int benchNumFeatures = 1000000;
+    @Option(gloss = "Number of times to repeat each measurement")
+    public int benchRepeats = 3;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "ParamsLoadBenchmarkMain", new ParamsLoadBenchmark(), Master.getOptionsParser());
+  }
+
+  @Override
+  public void run() {
+    Random random = new Random(1);
+    Params params = new Params();
+    TIntDoubleMap gradient = new TIntDoubleHashMap();
+    for (int i = 0; i < opts.benchNumFeatures; i++)
+      gradient.put(FeatureIndex.getIndex("bench :: feature " + i + " :: " + random.nextInt()), random.nextGaussian());
+    params.update(gradient);
+
+    try {
+      File text = File.createTempFile("params", ".txt");
+      File binary = File.createTempFile("params", ".bin");
+      text.deleteOnExit();
+      binary.deleteOnExit();
+      for (int r = 0; r < opts.benchRepeats; r++) {
+        long start = System.nanoTime();
+        params.write(text.getPath());
+        report("text.write", start, text);
+        start = System.nanoTime();
+        params.writeBinary(binary.getPath());
+        report("binary.write", start, binary);
+
+        start = System.nanoTime();
+        new Params().read(text.getPath());
+        report("text.read", start, text);
+        start = System.nanoTime();
+        new Params().read(binary.getPath());
+        report("binary.read", start, binary);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void report(String name, long start, File file) {
+    double ms = (System.nanoTime() - start) / 1e6;
+    LogInfo.logs("%s: %.0f ms (%d bytes)", name, ms, file.length());
+    Execution.putOutput(name, ms);
+  }
+}
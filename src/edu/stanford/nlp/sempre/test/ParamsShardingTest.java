@@ -0,0 +1,233 @@
+package edu.stanford.nlp.sempre.test;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import edu.stanford.nlp.sempre.Params;
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+
+/**
+ * Test that sharding the parameter updates (numUpdateShards) does not change
+ * the result of sequential updates: the weights and the learning state
+ * (AdaGrad sums, dual averaging sums, lazy L1 times) must be identical.
+ * Concurrent updates must leave the same state as sequential ones wherever
+ * the order of the updates does not matter.
+ */
+public class ParamsShardingTest {
+  // Enough features to span several FeatureIndex chunks, hence several shards
+  private static final int NUM_FEATURES = 5000;
+
+  private static List<TObjectDoubleMap<String>> randomGradients(Random random) {
+    List<TObjectDoubleMap<String>> gradients = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      TObjectDoubleMap<String> gradient = new TObjectDoubleHashMap<>();
+      for (int j = 0; j < 40; j++)
+        gradient.put("sharding-test-" + random.nextInt(NUM_FEATURES), random.nextGaussian());
+      gradients.add(gradient);
+    }
+    return gradients;
+  }
+
+  // Gradients whose sums (and sums of squares) are exact in any order; every
+  // one of them touches CLOCK.
+  private static final String CLOCK = "sharding-test-clock";
+
+  private static List<TObjectDoubleMap<String>> dyadicGradients(Random random) {
+    double[] values = {-1, -0.5, 0.5, 1};
+    List<TObjectDoubleMap<String>> gradients = new ArrayList<>();
+    for (int i = 0; i < 400; i++) {
+      TObjectDoubleMap<String> gradient = new TObjectDoubleHashMap<>();
+      for (int j = 0; j < 20; j++)
+        gradient.put("sharding-test-" + random.nextInt(NUM_FEATURES), values[random.nextInt(values.length)]);
+      gradient.put(CLOCK, 1);
+      gradients.add(gradient);
+    }
+    return gradients;
+  }
+
+  private static Params trainConcurrently(int numUpdateShards, int numThreads,
+      List<TObjectDoubleMap<String>> gradients) {
+    int oldNumUpdateShards = Params.opts.numUpdateShards;
+    Params.opts.numUpdateShards = numUpdateShards;
+    try {
+      Params params = new Params();
+      AtomicInteger next = new AtomicInteger();
+      ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+      for (int t = 0; t < numThreads; t++) {
+        exec.submit(() -> {
+          for (int i = next.getAndIncrement(); i < gradients.size(); i = next.getAndIncrement())
+            params.update(gradients.get(i));
+        });
+      }
+      exec.shutdown();
+      assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+      return params;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      Params.opts.numUpdateShards = oldNumUpdateShards;
+    }
+  }
+
+  // The snapshot read by the parsers must have every update.
+  private static void checkSnapshot(Params params) {
+    for (Map.Entry<String, Double> entry : params.getWeights().entrySet())
+      assertEquals(entry.getValue(), params.getWeight(entry.getKey()), 0);
+  }
+
+  private static Params train(int numUpdateShards, List<TObjectDoubleMap<String>> gradients) {
+    int oldNumUpdateShards = Params.opts.numUpdateShards;
+    Params.opts.numUpdateShards = numUpdateShards;
+    try {
+      Params params = new Params();
+      for (TObjectDoubleMap<String> gradient : gradients)
+        params.update(gradient);
+      return params;
+    } finally {
+      Params.opts.numUpdateShards = oldNumUpdateShards;
+    }
+  }
+
+  // Feature => {weight, AdaGrad sum, dual averaging sum, lazy L1 time},
+  // read back from the binary format, which keeps the learning state.
+  private static Map<String, List<Double>> getState(Params params) throws IOException {
+    File file = File.createTempFile("params", ".tmp");
+    file.deleteOnExit();
+    params.writeBinary(file.getPath());
+    Map<String, List<Double>> state = new HashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      in.readInt();  // magic
+      assertEquals(2, in.readInt());
+      int n = in.readInt();
+      in.readInt();  // numUpdates
+      double[][] values = new double[4][n];
+      for (int k = 0; k < 3; k++)
+        for (int i = 0; i < n; i++)
+          values[k][i] = in.readDouble();
+      for (int i = 0; i < n; i++)
+        values[3][i] = in.readInt();
+      for (int i = 0; i < n; i++) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        state.put(new String(bytes, StandardCharsets.UTF_8),
+            Arrays.asList(values[0][i], values[1][i], values[2][i], values[3][i]));
+      }
+    }
+    return state;
+  }
+
+  private static void checkSameState(long seed) throws IOException {
+    List<TObjectDoubleMap<String>> gradients = randomGradients(new Random(seed));
+    Params unsharded = train(1, gradients);
+    Params sharded = train(4, gradients);
+    assertEquals(unsharded.getWeights(), sharded.getWeights());
+    Map<String, List<Double>> state = getState(unsharded);
+    assertFalse(state.isEmpty());
+    assertEquals(state, getState(sharded));
+  }
+
+  @Test
+  public void adaGrad() throws IOException {
+    checkSameState(1);
+  }
+
+  @Test
+  public void lazyL1() throws IOException {
+    String l1Reg = Params.opts.l1Reg;
+    double l1RegCoeff = Params.opts.l1RegCoeff;
+    int lazyL1FullUpdateFreq = Params.opts.lazyL1FullUpdateFreq;
+    Params.opts.l1Reg = "lazy";
+    Params.opts.l1RegCoeff = 0.01;
+    Params.opts.lazyL1FullUpdateFreq = 20;  // Also finalize weights during the updates
+    try {
+      checkSameState(2);
+    } finally {
+      Params.opts.l1Reg = l1Reg;
+      Params.opts.l1RegCoeff = l1RegCoeff;
+      Params.opts.lazyL1FullUpdateFreq = lazyL1FullUpdateFreq;
+    }
+  }
+
+  @Test
+  public void dualAveraging() throws IOException {
+    boolean dualAveraging = Params.opts.dualAveraging;
+    Params.opts.dualAveraging = true;
+    try {
+      checkSameState(3);
+    } finally {
+      Params.opts.dualAveraging = dualAveraging;
+    }
+  }
+
+  @Test
+  public void concurrentAdaGradSums() throws IOException {
+    List<TObjectDoubleMap<String>> gradients = dyadicGradients(new Random(4));
+    Map<String, List<Double>> expected = getState(train(1, gradients));
+    for (int round = 0; round < 5; round++) {
+      Params params = trainConcurrently(4, 8, gradients);
+      checkSnapshot(params);
+      Map<String, List<Double>> state = getState(params);
+      assertEquals(expected.keySet(), state.keySet());
+      for (String f : expected.keySet())
+        assertEquals(f, expected.get(f).get(1), state.get(f).get(1));
+    }
+  }
+
+  @Test
+  public void concurrentFixedStepSize() throws IOException {
+    boolean adaptiveStepSize = Params.opts.adaptiveStepSize;
+    Params.opts.adaptiveStepSize = false;
+    try {
+      List<TObjectDoubleMap<String>> gradients = dyadicGradients(new Random(5));
+      Map<String, Double> expected = train(1, gradients).getWeights();
+      for (int round = 0; round < 5; round++) {
+        Params params = trainConcurrently(4, 8, gradients);
+        checkSnapshot(params);
+        assertEquals(expected, params.getWeights());
+      }
+    } finally {
+      Params.opts.adaptiveStepSize = adaptiveStepSize;
+    }
+  }
+
+  @Test
+  public void concurrentLazyL1() throws IOException {
+    String l1Reg = Params.opts.l1Reg;
+    double l1RegCoeff = Params.opts.l1RegCoeff;
+    Params.opts.l1Reg = "lazy";
+    Params.opts.l1RegCoeff = 0.01;
+    try {
+      List<TObjectDoubleMap<String>> gradients = dyadicGradients(new Random(6));
+      Map<String, List<Double>> expected = getState(train(1, gradients));
+      for (int round = 0; round < 5; round++) {
+        Map<String, List<Double>> state = getState(trainConcurrently(4, 8, gradients));
+        assertEquals(expected.keySet(), state.keySet());
+        for (String f : expected.keySet()) {
+          assertEquals(f, expected.get(f).get(1), state.get(f).get(1));
+          // An L1 clock never goes back, and never passes the last update
+          double time = state.get(f).get(3);
+          assertTrue(f, time >= -1 && time < gradients.size());
+        }
+        // The last update touched CLOCK, whichever thread made it
+        assertEquals(gradients.size() - 1.0, state.get(CLOCK).get(3), 0);
+      }
+    } finally {
+      Params.opts.l1Reg = l1Reg;
+      Params.opts.l1RegCoeff = l1RegCoeff;
+    }
+  }
+}
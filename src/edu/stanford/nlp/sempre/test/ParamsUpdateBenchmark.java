@@ -0,0 +1,126 @@
+package edu.stanford.nlp.sempre.test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.nlp.sempre.*;
+import fig.basic.*;
+import fig.exec.Execution;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+/**
+ * Measure training throughput (examples/sec) of concurrent Params updates
+ * as a function of the number of threads and Params.numUpdateShards.
+ *
+ * Each synthetic example scores a random sparse feature vector against the
+ * current weights (standing in for parsing) and then applies a gradient on
+ * those features, as Learner does for a minibatch of size 1.
+ *
+ * By default, feature popularity follows a Zipf distribution and features
+ * are interned in order of popularity, as when the frequent features are
+ * seen in the first examples; so most updates touch low FeatureIndex indices.
+ */
+public class ParamsUpdateBenchmark implements Runnable {
+  public static class Options {
+    @Option(gloss = "Thread counts to benchmark")
+    public List<Integer> benchThreads = Arrays.asList(1, 2, 4, 8, 16, 32);
+    @Option(gloss = "Values of Params.numUpdateShards to benchmark")
+    public List<Integer> benchShards = Arrays.asList(1, 64);
+    @Option(gloss = "Number of examples per run")
+    public int benchExamples = 200000;
+    @Option(gloss = "Number of distinct features")
+    public int benchNumFeatures = 100000;
+    @Option(gloss = "Number of features active in each example")
+    public int benchFeaturesPerExample = 100;
+    @Option(gloss = "Number of dot products per example (simulated parsing work)")
+    public int benchScoresPerExample = 20;
+    @Option(gloss = "Zipf exponent of feature popularity (0 = uniform)")
+    public double benchZipfExponent = 1;
+  }
+  public static Options opts = new Options();
+
+  public static void main(String[] args) {
+    Execution.run(args, "ParamsUpdateBenchmarkMain", new ParamsUpdateBenchmark(), Master.getOptionsParser());
+  }
+
+  @Override
+  public void run() {
+    int[] features = new int[opts.benchNumFeatures];
+    for (int i = 0; i < features.length; i++)
+      features[i] = FeatureIndex.getIndex("bench :: " + i);
+    double[] cdf = popularityCdf(features.length, opts.benchZipfExponent);
+
+    int originalShards = Params.opts.numUpdateShards;
+    for (int numShards : opts.benchShards) {
+      for (int numThreads : opts.benchThreads) {
+        Params.opts.numUpdateShards = numShards;
+        double rate = runOnce(new Params(), features, cdf, numThreads);
+        LogInfo.logs("numUpdateShards=%d numThreads=%d: %.0f examples/sec", numShards, numThreads, rate);
+        Execution.putOutput("shards" + numShards + ".threads" + numThreads, rate);
+      }
+    }
+    Params.opts.numUpdateShards = originalShards;
+  }
+
+  // Cumulative probability of drawing one of the first i + 1 features.
+  private static double[] popularityCdf(int n, double exponent) {
+    double[] cdf = new double[n];
+    double total = 0;
+    for (int i = 0; i < n; i++) {
+      total += Math.pow(i + 1, -exponent);
+      cdf[i] = total;
+    }
+    for (int i = 0; i < n; i++)
+      cdf[i] /= total;
+    return cdf;
+  }
+
+  private static int sample(int[] features, double[] cdf, Random random) {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+    return features[Math.min(i < 0 ? -i - 1 : i, features.length - 1)];
+  }
+
+  private static double runOnce(Params params, int[] features, double[] cdf, int numThreads) {
+    ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+    int perThread = (opts.benchExamples + numThreads - 1) / numThreads;
+    long start = System.nanoTime();
+    for (int t = 0; t < numThreads; t++) {
+      final Random random = new Random(t);
+      exec.submit(() -> {
+        for (int n = 0; n < perThread; n++)
+          processExample(params, features, cdf, random);
+      });
+    }
+    exec.shutdown();
+    try {
+      exec.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return perThread * numThreads / seconds;
+  }
+
+  private static double processExample(Params params, int[] features, double[] cdf, Random random) {
+    int[] active = new int[opts.benchFeaturesPerExample];
+    for (int i = 0; i < active.length; i++)
+      active[i] = sample(features, cdf, random);
+
+    Params.Snapshot weights = params.getSnapshot();
+    double score = 0;
+    for (int k = 0; k < opts.benchScoresPerExample; k++)
+      for (int f : active)
+        score += weights.getWeight(f);
+
+    TIntDoubleMap gradient = new TIntDoubleHashMap();
+    for (int f : active) {
+      double g = random.nextGaussian();
+      gradient.adjustOrPutValue(f, g, g);
+    }
+    params.update(gradient);
+    return score;
+  }
+}
@@ -2,6 +2,8 @@ package edu.stanford.nlp.sempre.test;
 
 import static org.testng.AssertJUnit.assertEquals;
 
+import java.util.*;
+
 import org.testng.annotations.Test;
 
 import edu.stanford.nlp.sempre.*;
@@ -125,6 +127,39 @@ public class ParserTest {
     checkNumDerivations(parser, "ignore", null, 3 + 3 * 3);
   }
 
+  private static List<String> parseFloating(ParseTest p, String utterance) {
+    Parser.opts.verbose = 0;
+    Example ex = TestUtils.makeSimpleExample(utterance);
+    new FloatingParser(p.getParserSpec()).parse(new Params(), ex, false);
+    List<String> derivations = new ArrayList<>();
+    for (Derivation deriv : ex.getPredDerivations())
+      derivations.add(deriv.formula + " " + deriv.value + " " + deriv.score);
+    return derivations;
+  }
+
+  @Test public void checkFloatingParallelExpansion() {
+    boolean defaultIsFloating = FloatingParser.opts.defaultIsFloating;
+    int maxDepth = FloatingParser.opts.maxDepth;
+    int numExpansionThreads = FloatingParser.opts.numExpansionThreads;
+    int verbose = Parser.opts.verbose;
+    FloatingParser.opts.defaultIsFloating = true;
+    FloatingParser.opts.maxDepth = 4;
+    try {
+      // All scores are tied, so this also checks the tie-breaking order
+      for (String utterance : Arrays.asList("ignore", "a b c", "c a b a")) {
+        FloatingParser.opts.numExpansionThreads = 1;
+        List<String> sequential = parseFloating(ABCTest(), utterance);
+        FloatingParser.opts.numExpansionThreads = 4;
+        assertEquals(sequential, parseFloating(ABCTest(), utterance));
+      }
+    } finally {
+      FloatingParser.opts.defaultIsFloating = defaultIsFloating;
+      FloatingParser.opts.maxDepth = maxDepth;
+      FloatingParser.opts.numExpansionThreads = numExpansionThreads;
+      Parser.opts.verbose = verbose;
+    }
+  }
+
   // TODO(chaganty): verify that things are ranked appropriately
   public void checkRankingArithmetic(Parser parser) {
     Params params = new Params();
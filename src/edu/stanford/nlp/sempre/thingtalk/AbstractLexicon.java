@@ -65,7 +65,7 @@ public abstract class AbstractLexicon<E extends Value> {
     }
   }
 
-  private final GenericObjectCache<String, Collection<Entry<E>>> cache = new GenericObjectCache<>(256);
+  private final GenericObjectCache<String, Collection<Entry<E>>> cache = new GenericObjectCache<>(1024);
 
   public void clear() {
     cache.clear();
@@ -87,8 +87,7 @@ public abstract class AbstractLexicon<E extends Value> {
 
     fromCache = doLookup(rawPhrase);
     // cache location lookups forever
-    // if memory pressure occcurs, the cache will automatically
-    // downsize itself
+    // the cache is bounded, so rarely used phrases are evicted
     cache.store(rawPhrase, fromCache, Long.MAX_VALUE);
     return fromCache;
   }
@@ -2,6 +2,8 @@ package edu.stanford.nlp.sempre.thingtalk;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
@@ -23,6 +25,8 @@ public class ThingpediaLexicon {
     public int verbose = 0;
     @Option
     public Set<String> subset = new HashSet<>();
+    @Option(gloss = "Load the whole lexicon of each language in memory, instead of querying the database for every phrase")
+    public boolean inMemory = false;
   }
 
   public static Options opts = new Options();
@@ -61,6 +65,19 @@ public class ThingpediaLexicon {
           .collect(Collectors.toList());
     }
 
+    // Same channel as |base|, found through a different lexicon token.
+    private Entry(Entry base, String search, double weight) {
+      this.rawPhrase = base.rawPhrase;
+      this.kind = base.kind;
+      this.name = base.name;
+      this.argnames = base.argnames;
+      this.argcanonicals = base.argcanonicals;
+      this.argtypes = base.argtypes;
+      this.isInputArg = base.isInputArg;
+      this.search = search;
+      this.weight = weight;
+    }
+
     public String getRawPhrase() {
       return rawPhrase;
     }
@@ -127,14 +144,61 @@ public class ThingpediaLexicon {
     }
   }
 
+  /**
+   * Immutable in-memory copy of the lexicon of one language (used with
+   * opts.inMemory).  Refreshing builds a new snapshot and swaps it in.
+   */
+  private static class Snapshot {
+    // (mode, stemmed token) => entries
+    private final Map<LexiconKey, List<Entry>> byToken;
+    // (mode, kind.name) => entry
+    private final Map<LexiconKey, Entry> byName;
+
+    private Snapshot(Map<LexiconKey, List<Entry>> byToken, Map<LexiconKey, Entry> byName) {
+      this.byToken = byToken;
+      this.byName = byName;
+    }
+
+    // Copy of this snapshot without the channels of |kind| (or without
+    // anything, if |kind| is null).
+    private Snapshot without(String kind) {
+      Map<LexiconKey, List<Entry>> newByToken = new HashMap<>();
+      Map<LexiconKey, Entry> newByName = new HashMap<>();
+      if (kind != null) {
+        for (Map.Entry<LexiconKey, List<Entry>> e : byToken.entrySet()) {
+          List<Entry> kept = new ArrayList<>();
+          for (Entry entry : e.getValue())
+            if (!kind.equals(entry.kind))
+              kept.add(entry);
+          if (!kept.isEmpty())
+            newByToken.put(e.getKey(), kept);
+        }
+        for (Map.Entry<LexiconKey, Entry> e : byName.entrySet())
+          if (!kind.equals(e.getValue().kind))
+            newByName.put(e.getKey(), e.getValue());
+      }
+      return new Snapshot(newByToken, newByName);
+    }
+  }
+
+  // Refreshes of the in-memory lexicons run here, one at a time and in order.
+  private static final ExecutorService refresher = Executors.newSingleThreadExecutor((r) -> {
+    Thread t = new Thread(r, "ThingpediaLexicon refresh");
+    t.setDaemon(true);
+    return t;
+  });
+
   private static final Map<String, ThingpediaLexicon> instances = new HashMap<>();
-  private final GenericObjectCache<LexiconKey, List<Entry>> cache = new GenericObjectCache<>(1024);
+  private final GenericObjectCache<LexiconKey, List<Entry>> cache = new GenericObjectCache<>(4096);
   private final DataSource dataSource;
   private final String languageTag;
+  private volatile Snapshot snapshot;
 
   private ThingpediaLexicon(String languageTag) {
     dataSource = ThingpediaDatabase.getSingleton();
     this.languageTag = languageTag;
+    if (opts.inMemory)
+      snapshot = load(new Snapshot(Collections.emptyMap(), Collections.emptyMap()), null);
   }
 
   public synchronized static ThingpediaLexicon getForLanguage(String languageTag) {
@@ -154,9 +218,100 @@ public class ThingpediaLexicon {
 
   public void clear() {
     cache.clear();
+    if (opts.inMemory)
+      refresh(null);
+  }
+
+  // Pick up changes to the channels of |kind| (all channels if null).  With
+  // opts.inMemory, the lexicon is reloaded in the background and swapped in
+  // when ready; lookups keep using the previous snapshot meanwhile.
+  public void refresh(String kind) {
+    if (!opts.inMemory) {
+      cache.clear();
+      return;
+    }
+    refresher.submit(() -> {
+      try {
+        snapshot = load(snapshot, kind);
+      } catch (RuntimeException e) {
+        LogInfo.logs("ThingpediaLexicon: failed to refresh %s: %s", kind == null ? languageTag : kind, e);
+      }
+    });
+  }
+
+  // Read the channels of |kind| (all channels if null) from the database, and
+  // return |prev| updated with them.
+  private Snapshot load(Snapshot prev, String kind) {
+    LogInfo.begin_track("ThingpediaLexicon: loading %s", kind == null ? "lexicon for " + languageTag : kind);
+    Snapshot result = prev.without(kind);
+    String kindFilter = kind == null ? "" : " and ds.kind = ?";
+
+    String channelQuery = "select dscc.canonical,ds.kind,dsc.name,dsc.argnames,dscc.argcanonicals,dsc.types,dsc.is_input,channel_type from "
+        + " device_schema_channels dsc, device_schema ds, device_schema_channel_canonicals dscc "
+        + " where dsc.schema_id = ds.id and dsc.version = ds.developer_version and dscc.schema_id = dsc.schema_id "
+        + " and dscc.version = dsc.version and dscc.name = dsc.name and dscc.language = ?" + kindFilter;
+    String tokenQuery = "select ds.kind,dsc.name,channel_type,lex.token,lex.token_weight from "
+        + " device_schema_channels dsc, device_schema ds, lexicon2 lex "
+        + " where dsc.schema_id = ds.id and dsc.version = ds.developer_version and lex.schema_id = ds.id "
+        + " and ds.kind_type <> 'global' and lex.channel_name = dsc.name and lex.language = ?" + kindFilter;
+
+    int numTokens = 0;
+    try (Connection con = dataSource.getConnection()) {
+      try (PreparedStatement stmt = con.prepareStatement(channelQuery)) {
+        stmt.setString(1, languageTag);
+        if (kind != null)
+          stmt.setString(2, kind);
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            Entry entry = new Entry(rs.getString(1), rs.getString(2), rs.getString(3),
+                rs.getString(4), rs.getString(5), rs.getString(6), rs.getString(7), null, 0);
+            Mode mode = parseMode(rs.getString(8));
+            if (mode == null)
+              continue;
+            result.byName.put(new LexiconKey(mode, entry.kind + "." + entry.name), entry);
+          }
+        }
+      }
+      try (PreparedStatement stmt = con.prepareStatement(tokenQuery)) {
+        stmt.setString(1, languageTag);
+        if (kind != null)
+          stmt.setString(2, kind);
+        try (ResultSet rs = stmt.executeQuery()) {
+          while (rs.next()) {
+            Mode mode = parseMode(rs.getString(3));
+            Entry base = result.byName.get(new LexiconKey(mode, rs.getString(1) + "." + rs.getString(2)));
+            if (base == null)  // no canonical in this language
+              continue;
+            String token = rs.getString(4);
+            result.byToken.computeIfAbsent(new LexiconKey(mode, token), (k) -> new ArrayList<>())
+                .add(new Entry(base, token, rs.getDouble(5)));
+            numTokens++;
+          }
+        }
+      }
+    } catch (SQLException | JsonProcessingException e) {
+      throw new RuntimeException(e);
+    }
+    LogInfo.logs("Loaded %d channels and %d lexicon entries", result.byName.size(), numTokens);
+    LogInfo.end_track();
+    return result;
+  }
+
+  private static Mode parseMode(String channelType) {
+    for (Mode mode : Mode.values())
+      if (mode.toString().equalsIgnoreCase(channelType))
+        return mode;
+    return null;
   }
 
   public Entry lookupChannelByName(String kindName, Mode channel_type) {
+    if (opts.inMemory) {
+      Entry entry = snapshot.byName.get(new LexiconKey(channel_type, kindName));
+      if (entry == null)
+        throw new RuntimeException("Invalid channel " + kindName);
+      return entry;
+    }
+
     List<Entry> entries = cache.hit(new LexiconKey(channel_type, kindName));
     if (entries != null) {
       if (opts.verbose >= 3)
@@ -203,6 +358,9 @@ public class ThingpediaLexicon {
     if (token == null)
       return Collections.emptyIterator();
 
+    if (opts.inMemory)
+      return lookupInSnapshot(LanguageUtils.stem(token), channel_type);
+
     List<Entry> entries = cache.hit(new LexiconKey(channel_type, phrase));
     if (entries != null) {
       if (opts.verbose >= 3)
@@ -250,6 +408,22 @@ public class ThingpediaLexicon {
     }
   }
 
+  private Iterator<Entry> lookupInSnapshot(String stemmed, Mode channel_type) {
+    List<Entry> entries = snapshot.byToken.get(new LexiconKey(channel_type, stemmed));
+    if (entries == null)
+      return Collections.emptyIterator();
+    // Same limit as the database query
+    int limit = 3 * Parser.opts.beamSize;
+    List<Entry> result = new ArrayList<>();
+    for (Entry entry : entries) {
+      if (result.size() >= limit)
+        break;
+      if (maybeFilterSubset(entry))
+        result.add(entry);
+    }
+    return result.iterator();
+  }
+
   private boolean maybeFilterSubset(Entry entry) {
     if (opts.subset.isEmpty())
       return true;